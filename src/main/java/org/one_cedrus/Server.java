@@ -1,37 +1,108 @@
 package org.one_cedrus;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import com.google.gson.reflect.TypeToken;
+import org.eclipse.jetty.server.HttpOutput;
 import org.jetbrains.annotations.NotNull;
 import org.one_cedrus.communication.VWebSocket;
+import org.one_cedrus.service.BlobGarbageCollector;
+import org.one_cedrus.service.BlobIndex;
+import org.one_cedrus.service.BlobStoreMigration;
+import org.one_cedrus.service.BlobMetrics;
+import org.one_cedrus.service.BlobRepacker;
+import org.one_cedrus.service.ChangeLogCommitter;
+import org.one_cedrus.service.ChangeLogIndex;
+import org.one_cedrus.service.ChangeLogResponseCache;
+import org.one_cedrus.service.CompactionService;
+import org.one_cedrus.service.VaultStateService;
+import org.one_cedrus.shared.BlobCodec;
 import org.one_cedrus.shared.ChangeLog;
+import org.one_cedrus.shared.ChangeLogCodec;
 import org.one_cedrus.shared.FileChange;
+import org.one_cedrus.shared.FileFrames;
+import org.one_cedrus.shared.StatePack;
+import org.one_cedrus.storage.ChangeLogJournal;
+import org.one_cedrus.storage.StoredBlob;
+import org.one_cedrus.util.ServerConfig;
 import org.one_cedrus.util.VaultUtils;
+import org.one_cedrus.util.VirtualThreadPool;
 import spark.Request;
 import spark.Response;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 
 import javax.servlet.MultipartConfigElement;
 import javax.servlet.http.Part;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import static spark.Spark.*;
 
 public class Server {
-    public static void main(String[] args) {
-        // TODO: Make port configurable via environment variable or command line
-        // argument
-        port(4289);
+    private static final String REQUEST_PERMIT_ATTRIBUTE = "sv.request.permit";
+    private static final Gson GSON = new Gson();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "migrate-journal".equals(args[0])) {
+            migrateAllVaultsToJournal();
+            return;
+        }
+
+        if (args.length > 0 && "gc".equals(args[0])) {
+            BlobGarbageCollector.collect();
+            return;
+        }
+
+        if (args.length > 0 && "repack".equals(args[0])) {
+            BlobRepacker.repack();
+            return;
+        }
+
+        if (args.length > 0 && "compact".equals(args[0])) {
+            if (args.length > 1) {
+                for (int i = 1; i < args.length; i++) {
+                    CompactionService.compactVault(args[i]);
+                }
+            } else {
+                CompactionService.compactAllVaults();
+            }
+            return;
+        }
+
+        port(ServerConfig.getHttpPort());
+        boolean virtualThreads = ServerConfig.useVirtualThreads();
+        if (virtualThreads) {
+            EmbeddedServers.add(EmbeddedServers.defaultIdentifier(),
+                    new EmbeddedJettyFactory().withThreadPool(new VirtualThreadPool()));
+        }
 
         webSocket("/v", VWebSocket.class);
 
+        if (virtualThreads) {
+            limitConcurrentRequests(ServerConfig.getHttpMaxConcurrentRequests());
+        }
+
         path("/vault", () -> {
             // Create new vault with initial change logs and files
             post("", Server::registerNewVault);
@@ -48,12 +119,75 @@ public class Server {
             // Get change log at specific timestamp version
             get("/:name/change_logs/:timestamp", Server::changeLogsAtTimestampVersion);
 
+            // Get the directory state (path -> hash) right after a change log
+            get("/:name/state/:timestamp", Server::stateAtTimestampVersion);
+
+            // Get the live state at the head change log plus the files it references
+            get("/:name/bootstrap", Server::bootstrapPack);
+
             // Get a specific file by hash
             get("/:name/files/:hash", Server::fileContentWithHash);
 
+            // Stream many files at once, framed as hash, length, content
+            post("/:name/files/batch", Server::fileContentsBatch);
+
+            // Find which of the given file hashes the vault does not have yet
+            post("/:name/blobs/missing", Server::missingBlobs);
+
             // Upload change logs with files
             post("/:name/sync", Server::syncChangeFromLocal);
         });
+
+        // Blob storage and transfer counters in Prometheus text format
+        get("/metrics", (req, res) -> {
+            res.type("text/plain; version=0.0.4");
+            return BlobMetrics.toPrometheusText();
+        });
+
+        CompactionService.startBackground();
+        BlobStoreMigration.startBackground();
+        BlobGarbageCollector.startBackground();
+        BlobRepacker.startBackground();
+    }
+
+    /**
+     * Cap the requests handled at once. On virtual threads nothing else bounds them, and
+     * each one may hold open files and buffers. Requests over the cap wait for a permit.
+     */
+    private static void limitConcurrentRequests(int maxRequests) {
+        Semaphore permits = new Semaphore(maxRequests, true);
+
+        before((req, res) -> {
+            permits.acquire();
+            req.attribute(REQUEST_PERMIT_ATTRIBUTE, Boolean.TRUE);
+        });
+
+        // Runs after halt() and exceptions too; the attribute guards against releasing a
+        // permit that was never acquired
+        afterAfter((req, res) -> {
+            if (req.attribute(REQUEST_PERMIT_ATTRIBUTE) != null) {
+                req.raw().removeAttribute(REQUEST_PERMIT_ATTRIBUTE);
+                permits.release();
+            }
+        });
+
+        System.out.println("[INFO]: Handling requests on virtual threads, at most " + maxRequests + " at once");
+    }
+
+    /**
+     * One-shot migration of every vault from one-file-per-log change logs to the
+     * journal backend
+     */
+    private static void migrateAllVaultsToJournal() throws IOException {
+        File[] vaultDirs = new File("vaults").listFiles(File::isDirectory);
+        if (vaultDirs == null) {
+            System.out.println("[INFO]: No vaults to migrate");
+            return;
+        }
+
+        for (File vaultDir : vaultDirs) {
+            ChangeLogJournal.openForVault(vaultDir.getName()).close();
+        }
     }
 
     public static String generateVaultName() {
@@ -64,11 +198,18 @@ public class Server {
     }
 
     /**
-     * Helper method to process change logs and files from multipart request
-     * Used by both vault creation and sync APIs
+     * Change logs of an upload and its file parts by hash
+     */
+    private record Upload(List<ChangeLog> changeLogs, Map<String, Part> filesByHash) {
+    }
+
+    /**
+     * Parse and validate the multipart request of a vault creation or sync, before
+     * anything is stored
+     *
+     * @throws IllegalArgumentException if the request is malformed
      */
-    private static void processChangeLogAndFiles(String vaultName, Collection<Part> parts) throws Exception {
-        Gson gson = new Gson();
+    private static Upload readUpload(Collection<Part> parts) throws IOException {
         List<ChangeLog> changeLogs = null;
         Map<String, Part> filesByHash = new HashMap<>();
 
@@ -76,13 +217,18 @@ public class Server {
             String fieldName = part.getName();
 
             if ("change_logs".equals(fieldName)) {
-                // Read change logs JSON array
+                // Binary change logs from clients that negotiated them, JSON otherwise
                 try (InputStream inputStream = part.getInputStream()) {
-                    String changeLogsJson = new String(inputStream.readAllBytes());
-
-                    Type listType = new TypeToken<List<ChangeLog>>() {
-                    }.getType();
-                    changeLogs = gson.fromJson(changeLogsJson, listType);
+                    if (ChangeLogCodec.matches(part.getContentType())) {
+                        changeLogs = ChangeLogCodec.decode(new BufferedInputStream(inputStream));
+                    } else {
+                        String changeLogsJson = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+                        Type listType = new TypeToken<List<ChangeLog>>() {
+                        }.getType();
+                        changeLogs = GSON.fromJson(changeLogsJson, listType);
+                    }
+                } catch (IOException | JsonParseException e) {
+                    throw new IllegalArgumentException("Invalid change_logs field: " + e.getMessage());
                 }
             } else if (fieldName != null && fieldName.startsWith("file_")) {
                 // File parts should be named "file_<hash>"
@@ -95,63 +241,203 @@ public class Server {
             throw new IllegalArgumentException("Missing change_logs field or empty array");
         }
 
-        // Collect all required hashes from all change logs
-        Set<String> requiredHashes = extractContainHashes(changeLogs);
+        // Change logs that could not be stored and read back are refused before commit
+        for (ChangeLog changeLog : changeLogs) {
+            try {
+                ChangeLogCodec.validate(changeLog);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid change log: " + e.getMessage());
+            }
+        }
+
+        // Hashes name files in the blob store, only SHA-256 hex is taken
+        for (FileChange fileChange : extractStoredFileChanges(changeLogs)) {
+            if (!VaultUtils.isValidHash(fileChange.getHash())) {
+                throw new IllegalArgumentException("Invalid hash of " + fileChange.getPath() + ": "
+                        + fileChange.getHash());
+            }
+            if (fileChange.isChunked()) {
+                for (String chunk : fileChange.getChunks()) {
+                    if (!VaultUtils.isValidHash(chunk)) {
+                        throw new IllegalArgumentException("Invalid chunk hash of " + fileChange.getPath() + ": "
+                                + chunk);
+                    }
+                }
+            }
+        }
+        return new Upload(changeLogs, filesByHash);
+    }
+
+    /**
+     * Store the files of an upload, then commit its change logs. Used by both vault
+     * creation and sync APIs.
+     *
+     * @throws IllegalArgumentException if a file is missing, before anything is stored
+     */
+    private static void processChangeLogAndFiles(String vaultName, Upload upload) throws Exception {
+        List<ChangeLog> changeLogs = upload.changeLogs();
+        Map<String, Part> filesByHash = upload.filesByHash();
+
+        // Collect all required hashes from all change logs. Chunked files need their
+        // chunks, unless the vault already has the whole file.
+        BlobIndex blobIndex = BlobIndex.forVault(vaultName);
+        Set<String> requiredHashes = new LinkedHashSet<>();
+        Map<String, List<String>> chunkedFiles = new LinkedHashMap<>();
+        for (FileChange fileChange : extractStoredFileChanges(changeLogs)) {
+            if (!fileChange.isChunked()) {
+                requiredHashes.add(fileChange.getHash());
+            } else if (!blobIndex.contains(fileChange.getHash())) {
+                chunkedFiles.put(fileChange.getHash(), fileChange.getChunks());
+                requiredHashes.addAll(fileChange.getChunks());
+            }
+        }
 
-        // Save files with hash verification
         for (String hash : requiredHashes) {
-            Part filePart = filesByHash.get(hash);
-            if (filePart == null) {
+            if (!blobIndex.contains(hash) && !filesByHash.containsKey(hash)) {
                 throw new IllegalArgumentException("Missing file for hash: " + hash);
             }
+        }
+
+        // Save files with hash verification. Clients skip files the vault already
+        // references (see /blobs/missing). Any other file must be uploaded, even when the
+        // store has it for another vault, so a vault only gets a reference to content it
+        // proved to have; such a file is verified but not written again.
+        for (String hash : requiredHashes) {
+            Part filePart = filesByHash.get(hash);
+            if (blobIndex.contains(hash)) {
+                VaultUtils.freshenBlob(hash);
+                if (filePart != null) {
+                    filePart.delete();
+                }
+                continue;
+            }
 
-            try (InputStream inputStream = filePart.getInputStream()) {
-                // Read file content once
-                byte[] fileContent = inputStream.readAllBytes();
+            if (filePart == null) {
+                // Referenced before the check above, then collected
+                throw new IOException("File for hash " + hash + " is no longer stored");
+            }
 
-                // Verify hash matches
-                String actualHash = VaultUtils.calculateByteArrayHash(fileContent);
-                if (!hash.equals(actualHash)) {
-                    throw new IllegalArgumentException(
-                            "Hash mismatch for file. Expected: " + hash + ", Actual: " + actualHash);
+            // Hash is verified while streaming, so memory use does not depend on file size.
+            // Parts the client sent gzip-compressed are stored as they are.
+            boolean gzip = BlobCodec.GZIP.equalsIgnoreCase(filePart.getHeader("Content-Encoding"));
+            try {
+                if (VaultUtils.hasBlob(hash)) {
+                    long rawBytes;
+                    try (InputStream inputStream = filePart.getInputStream()) {
+                        rawBytes = VaultUtils.verifyFileHash(hash, inputStream, gzip);
+                    }
+                    if (referenceStoredFile(blobIndex, vaultName, hash)) {
+                        BlobMetrics.onUploaded(rawBytes, filePart.getSize());
+                        continue;
+                    }
+                    // Collected in between, stored anew below
                 }
 
-                VaultUtils.saveFileByHash(vaultName, hash, fileContent);
+                try (InputStream inputStream = filePart.getInputStream()) {
+                    long rawBytes = gzip
+                            ? VaultUtils.saveCompressedFileByHash(hash, inputStream)
+                            : VaultUtils.saveFileByHash(hash, inputStream);
+                    BlobIndex.addRef(vaultName, hash);
+                    BlobMetrics.onUploaded(rawBytes, filePart.getSize());
+                }
+            } finally {
+                filePart.delete();
             }
         }
 
-        for (ChangeLog changeLog : changeLogs) {
-            VaultUtils.saveChangeLog(vaultName, changeLog);
+        for (Map.Entry<String, List<String>> chunkedFile : chunkedFiles.entrySet()) {
+            VaultUtils.saveChunkManifest(vaultName, chunkedFile.getKey(), chunkedFile.getValue());
+            BlobIndex.addRef(vaultName, chunkedFile.getKey());
+        }
+
+        ChangeLogCommitter.commit(vaultName, changeLogs);
+    }
+
+    /**
+     * Reference a file the blob store already has for another vault, once the vault
+     * uploaded it, freshening it so garbage collection keeps it until the change logs
+     * that use it are saved
+     *
+     * @return false if the store no longer has the file
+     */
+    private static boolean referenceStoredFile(BlobIndex blobIndex, String vaultName, String hash)
+            throws IOException {
+        synchronized (BlobIndex.REFS_LOCK) {
+            if (!VaultUtils.hasBlob(hash)) {
+                return false;
+            }
+
+            VaultUtils.freshenBlob(hash);
+            if (!blobIndex.contains(hash)) {
+                BlobIndex.addRef(vaultName, hash);
+                BlobMetrics.onDeduplicated();
+            }
+            return true;
         }
+    }
 
+    /**
+     * Let Jetty parse multipart uploads, spooling parts above the memory threshold into
+     * the blob store's incoming directory
+     */
+    private static void configureMultipart(Request req) {
+        File incomingDir = VaultUtils.getIncomingDir();
+        incomingDir.mkdirs();
+
+        req.attribute("org.eclipse.jetty.multipartConfig", new MultipartConfigElement(
+                incomingDir.getPath(),
+                ServerConfig.getUploadMaxFileBytes(),
+                ServerConfig.getUploadMaxRequestBytes(),
+                ServerConfig.getUploadMemoryThresholdBytes()));
     }
 
+    /**
+     * Added and modified files of the change logs, which the vault must store
+     */
     @NotNull
-    private static Set<String> extractContainHashes(List<ChangeLog> changeLogs) {
-        Set<String> requiredHashes = new HashSet<>();
+    private static List<FileChange> extractStoredFileChanges(List<ChangeLog> changeLogs) {
+        List<FileChange> fileChanges = new ArrayList<>();
 
         for (ChangeLog changeLog : changeLogs) {
-            if (changeLog.getChanges().getAdded() != null) {
-                for (FileChange fc : changeLog.getChanges().getAdded()) {
-                    requiredHashes.add(fc.getHash());
-                }
+            ChangeLog.Changes changes = changeLog.getChanges();
+            if (changes == null) {
+                continue;
             }
-            if (changeLog.getChanges().getModified() != null) {
-                for (FileChange fc : changeLog.getChanges().getModified()) {
-                    requiredHashes.add(fc.getHash());
-                }
+            if (changes.getAdded() != null) {
+                fileChanges.addAll(changes.getAdded());
+            }
+            if (changes.getModified() != null) {
+                fileChanges.addAll(changes.getModified());
             }
         }
-        return requiredHashes;
+        return fileChanges;
     }
 
     private static Object registerNewVault(Request req, Response res) throws Exception {
         String vaultName = generateVaultName();
-        VaultUtils.ensureVaultStructure(vaultName);
+        configureMultipart(req);
 
-        req.attribute("org.eclipse.jetty.multipartConfig", new MultipartConfigElement("/tmp"));
+        Upload upload;
+        try {
+            upload = readUpload(req.raw().getParts());
+        } catch (IllegalArgumentException e) {
+            res.status(400);
+            return "Bad request: " + e.getMessage();
+        }
 
-        processChangeLogAndFiles(vaultName, req.raw().getParts());
+        VaultUtils.ensureVaultStructure(vaultName);
+        try {
+            processChangeLogAndFiles(vaultName, upload);
+        } catch (IllegalArgumentException e) {
+            // Refused before anything was stored, only the empty directories are left
+            try (Stream<Path> paths = Files.walk(VaultUtils.getVaultDir(vaultName).toPath())) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(path);
+                }
+            }
+            res.status(400);
+            return "Bad request: " + e.getMessage();
+        }
         return vaultName;
     }
 
@@ -170,32 +456,38 @@ public class Server {
 
         try (ZipOutputStream zos = new ZipOutputStream(res.raw().getOutputStream())) {
             // Add all change logs
-            File changeLogsDir = VaultUtils.getChangeLogsDir(vaultName);
-            if (changeLogsDir.exists()) {
-                zos.putNextEntry(new ZipEntry("change_logs/"));
-                zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("change_logs/"));
+            zos.closeEntry();
 
-                for (File changeLogFile : Objects.requireNonNull(changeLogsDir.listFiles())) {
-                    if (changeLogFile.isFile()) {
-                        zos.putNextEntry(new ZipEntry("change_logs/" + changeLogFile.getName()));
-                        Files.copy(changeLogFile.toPath(), zos);
-                        zos.closeEntry();
+            VaultUtils.getChangeLogStore(vaultName).forEach((timestamp, json) -> {
+                zos.putNextEntry(new ZipEntry("change_logs/" + VaultUtils.generateChangeLogFileName(timestamp)));
+                zos.write(json.getBytes(StandardCharsets.UTF_8));
+                zos.closeEntry();
+            });
+
+            // Add all files the vault references, uncompressed whatever form they are stored
+            // in. Chunked files appear as their manifest plus their chunks.
+            zos.putNextEntry(new ZipEntry("files/"));
+            zos.closeEntry();
+
+            for (String hash : new TreeSet<>(BlobIndex.forVault(vaultName).hashes())) {
+                StoredBlob blob = VaultUtils.getStoredBlob(vaultName, hash);
+                if (blob != null) {
+                    zos.putNextEntry(new ZipEntry("files/" + hash));
+                    try (InputStream inputStream = blob.openRaw()) {
+                        inputStream.transferTo(zos);
                     }
+                    zos.closeEntry();
+                    continue;
                 }
-            }
 
-            // Add all files
-            File filesDir = VaultUtils.getFilesDir(vaultName);
-            if (filesDir.exists()) {
-                zos.putNextEntry(new ZipEntry("files/"));
-                zos.closeEntry();
-
-                for (File file : Objects.requireNonNull(filesDir.listFiles())) {
-                    if (file.isFile()) {
-                        zos.putNextEntry(new ZipEntry("files/" + file.getName()));
-                        Files.copy(file.toPath(), zos);
-                        zos.closeEntry();
+                List<String> chunks = VaultUtils.getChunkHashes(vaultName, hash);
+                if (chunks != null) {
+                    zos.putNextEntry(new ZipEntry("files/" + hash + VaultUtils.CHUNKS_SUFFIX));
+                    for (String chunk : chunks) {
+                        zos.write((chunk + "\n").getBytes(StandardCharsets.UTF_8));
                     }
+                    zos.closeEntry();
                 }
             }
 
@@ -205,33 +497,46 @@ public class Server {
         return res;
     }
 
-    private static Object changeLogs(Request req, Response res) {
+    private static Object changeLogs(Request req, Response res) throws Exception {
         String vaultName = req.params(":name");
 
         if (!VaultUtils.vaultExists(vaultName)) {
             halt(404, "Vault does not exist");
         }
 
-        res.type("application/json");
+        writeChangeLogs(req, res, vaultName, Long.MIN_VALUE);
+        return "";
+    }
 
-        List<File> changeLogFiles = VaultUtils.getChangeLogFiles(vaultName);
-        List<ChangeLog> changeLogs = new ArrayList<>();
+    private static Object changeLogsSinceTimestampVersion(Request req, Response res) throws Exception {
+        String vaultName = req.params(":name");
+        String timestampStr = req.params(":timestamp");
 
-        for (File changeLogFile : changeLogFiles) {
-            try {
-                String content = Files.readString(changeLogFile.toPath());
-                ChangeLog changeLog = ChangeLog.fromJson(content);
-                changeLogs.add(changeLog);
-            } catch (IOException e) {
-                System.err.println(
-                        "[ERROR]: Error reading change log: " + changeLogFile.getName() + " - " + e.getMessage());
-            }
+        if (!VaultUtils.vaultExists(vaultName)) {
+            halt(404, "Vault does not exist");
+        }
+
+        long sinceTimestamp;
+        try {
+            sinceTimestamp = Long.parseLong(timestampStr);
+        } catch (NumberFormatException e) {
+            halt(400, "Invalid timestamp format");
+            return null;
         }
 
-        return new Gson().toJson(changeLogs);
+        // Compaction dropped the history between that version and the oldest change log
+        // left, so replaying from it would miss deletions; the client has to bootstrap again
+        Long oldestTimestamp = ChangeLogIndex.forVault(vaultName).oldestTimestamp();
+        if (sinceTimestamp > 0 && oldestTimestamp != null && sinceTimestamp < oldestTimestamp) {
+            halt(410, "Change logs since " + sinceTimestamp + " were compacted, bootstrap the vault again");
+        }
+
+        // The index is sorted by timestamp, so this is already in chronological order
+        writeChangeLogs(req, res, vaultName, sinceTimestamp);
+        return "";
     }
 
-    private static Object changeLogsSinceTimestampVersion(Request req, Response res) {
+    private static Object changeLogsAtTimestampVersion(Request req, Response res) throws Exception {
         String vaultName = req.params(":name");
         String timestampStr = req.params(":timestamp");
 
@@ -239,9 +544,9 @@ public class Server {
             halt(404, "Vault does not exist");
         }
 
-        long sinceTimestamp;
+        long timestamp;
         try {
-            sinceTimestamp = Long.parseLong(timestampStr);
+            timestamp = Long.parseLong(timestampStr);
         } catch (NumberFormatException e) {
             halt(400, "Invalid timestamp format");
             return null;
@@ -249,51 +554,97 @@ public class Server {
 
         res.type("application/json");
 
-        List<File> changeLogFiles = VaultUtils.getChangeLogFiles(vaultName);
-        List<ChangeLog> changeLogs = new ArrayList<>();
+        String changeLogJson = ChangeLogIndex.forVault(vaultName).at(timestamp);
+        if (changeLogJson == null) {
+            halt(404, "Change log file not found");
+        }
 
-        for (File changeLogFile : changeLogFiles) {
-            try {
-                String content = Files.readString(changeLogFile.toPath());
-                ChangeLog changeLog = ChangeLog.fromJson(content);
+        return GSON.toJson(changeLogJson);
+    }
 
-                // Only include change logs with timestamp greater than sinceTimestamp
-                if (changeLog.getTimestamp() > sinceTimestamp) {
-                    changeLogs.add(changeLog);
-                }
-            } catch (IOException e) {
-                System.err.println(
-                        "[ERROR]: Error reading change log: " + changeLogFile.getName() + " - " + e.getMessage());
-            }
+    private static Object stateAtTimestampVersion(Request req, Response res) throws Exception {
+        String vaultName = req.params(":name");
+        String timestampStr = req.params(":timestamp");
+
+        if (!VaultUtils.vaultExists(vaultName)) {
+            halt(404, "Vault does not exist");
+        }
+
+        long timestamp;
+        try {
+            timestamp = Long.parseLong(timestampStr);
+        } catch (NumberFormatException e) {
+            halt(400, "Invalid timestamp format");
+            return null;
         }
 
-        // Sort by timestamp to ensure chronological order
-        changeLogs.sort(Comparator.comparingLong(ChangeLog::getTimestamp));
+        String changeLogJson = ChangeLogIndex.forVault(vaultName).at(timestamp);
+        if (changeLogJson == null) {
+            halt(404, "Change log file not found");
+        }
 
-        return new Gson().toJson(changeLogs);
+        res.type("application/json");
+        return GSON.toJson(new TreeMap<>(
+                VaultStateService.getStateAt(vaultName, ChangeLog.fromJson(changeLogJson))));
     }
 
-    private static Object changeLogsAtTimestampVersion(Request req, Response res) throws Exception {
+    /**
+     * Stream the change logs after a timestamp out, without building the whole response
+     * in memory: as a JSON array of the stored change logs, or in the binary encoding when
+     * the client accepts it, gzip-compressed for clients taking gzip
+     */
+    private static void writeChangeLogs(Request req, Response res, String vaultName, long sinceTimestamp)
+            throws IOException {
+        ChangeLogResponseCache.Format format = ChangeLogCodec.matches(req.headers("Accept"))
+                ? ChangeLogResponseCache.Format.BINARY
+                : ChangeLogResponseCache.Format.JSON;
+        res.type(format == ChangeLogResponseCache.Format.BINARY ? ChangeLogCodec.MEDIA_TYPE : "application/json");
+        res.header("Vary", "Accept, Accept-Encoding");
+
+        ChangeLogIndex index = ChangeLogIndex.forVault(vaultName);
+        OutputStream out = res.raw().getOutputStream();
+        if (acceptsGzip(req.headers("Accept-Encoding"))) {
+            res.header("Content-Encoding", BlobCodec.GZIP);
+            ChangeLogResponseCache.writeGzip(vaultName, index, sinceTimestamp, format, out);
+        } else {
+            ChangeLogResponseCache.write(index, sinceTimestamp, format, out);
+        }
+        // Commits the response, so nothing is appended to the encoded body
+        out.flush();
+    }
+
+    private static Object bootstrapPack(Request req, Response res) throws Exception {
         String vaultName = req.params(":name");
-        String timestampStr = req.params(":timestamp");
 
         if (!VaultUtils.vaultExists(vaultName)) {
             halt(404, "Vault does not exist");
         }
 
-        res.type("application/json");
+        ChangeLog manifest = VaultStateService.buildHeadManifest(vaultName);
+        if (manifest == null) {
+            halt(404, "Vault has no change logs");
+        }
 
-        File changeLogsDir = VaultUtils.getChangeLogsDir(vaultName);
-        File file = Arrays
-                .stream(Objects.requireNonNull(changeLogsDir
-                        .listFiles((dir, name) -> name.endsWith(".json") && name.contains(timestampStr))))
-                .findFirst().orElse(null);
+        res.type("application/octet-stream");
 
-        if (file == null) {
-            halt(404, "Change log file not found");
+        boolean encoded = acceptsEncodedFrames(req, res);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(res.raw().getOutputStream()));
+        StatePack.writeManifest(out, manifest);
+
+        // Only the files reachable from the head, each one once
+        Set<String> sent = new HashSet<>();
+        for (FileChange fileChange : manifest.getChanges().getAdded()) {
+            if (!sent.add(fileChange.getHash())) {
+                continue;
+            }
+
+            if (!writeFileFrame(out, encoded, vaultName, fileChange.getHash())) {
+                System.err.println("[ERROR]: File " + fileChange.getHash() + " missing from vault " + vaultName);
+            }
         }
+        FileFrames.writeEnd(out);
 
-        return new Gson().toJson(Files.readString(file.toPath()));
+        return "";
     }
 
     private static Object fileContentWithHash(Request req, Response res) throws Exception {
@@ -304,27 +655,360 @@ public class Server {
             halt(404, "Vault does not exist");
         }
 
-        File file = VaultUtils.getFileByHash(vaultName, hash);
-        if (file == null) {
+        StoredBlob blob = VaultUtils.isValidHash(hash) ? VaultUtils.getStoredBlob(vaultName, hash) : null;
+        List<StoredBlob> chunkBlobs = blob == null && VaultUtils.isValidHash(hash)
+                ? VaultUtils.getChunkBlobs(vaultName, hash)
+                : null;
+        if (blob == null && chunkBlobs == null) {
             halt(404, "File not found");
         }
 
-        return Files.readAllBytes(file.toPath());
+        // Blobs stored compressed are sent as they are to clients that take gzip, as a
+        // separate representation with its own validator
+        String range = req.headers("Range");
+        boolean sendCompressed = blob != null && blob.compressed() && range == null
+                && acceptsGzip(req.headers("Accept-Encoding"));
+
+        // Blobs are content-addressed, so the hash is a strong validator that never changes
+        String etag = "\"" + hash + "\"";
+        String compressedETag = "\"" + hash + VaultUtils.COMPRESSED_SUFFIX + "\"";
+        res.header("ETag", sendCompressed ? compressedETag : etag);
+        res.header("Vary", "Accept-Encoding");
+        res.header("Cache-Control", "public, max-age=31536000, immutable");
+        res.header("Accept-Ranges", blob != null ? "bytes" : "none");
+
+        String ifNoneMatch = req.headers("If-None-Match");
+        if (matchesETag(ifNoneMatch, etag) || matchesETag(ifNoneMatch, compressedETag)) {
+            res.status(304);
+            return "";
+        }
+
+        res.type("application/octet-stream");
+
+        if (sendCompressed) {
+            long rawLength = blob.rawLength();
+            long storedLength = blob.storedLength();
+            res.header("Content-Encoding", BlobCodec.GZIP);
+            res.raw().setContentLengthLong(storedLength);
+            blob.transferStored(0, storedLength, responseChannel(res.raw().getOutputStream()));
+            BlobMetrics.onDownloaded(rawLength, storedLength);
+            return "";
+        }
+
+        if (blob == null) {
+            // Chunked file, reassembled on the fly for clients asking for the whole file
+            long length = rawLength(chunkBlobs);
+            res.raw().setContentLengthLong(length);
+            try (InputStream inputStream = openRaw(chunkBlobs)) {
+                inputStream.transferTo(res.raw().getOutputStream());
+            }
+            BlobMetrics.onDownloaded(length, length);
+            return "";
+        }
+
+        long length = blob.rawLength();
+        long start = 0;
+        long end = length - 1;
+
+        String ifRange = req.headers("If-Range");
+        if (range != null && (ifRange == null || ifRange.trim().equals(etag))) {
+            long[] byteRange = parseByteRange(range, length);
+            if (byteRange != null && byteRange.length == 0) {
+                res.status(416);
+                res.header("Content-Range", "bytes */" + length);
+                return "";
+            }
+
+            if (byteRange != null) {
+                start = byteRange[0];
+                end = byteRange[1];
+                res.status(206);
+                res.header("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+
+        res.raw().setContentLengthLong(end - start + 1);
+
+        if (blob.compressed()) {
+            // Ranges address the uncompressed content, so it is decompressed up to the range
+            try (InputStream inputStream = blob.openRaw()) {
+                inputStream.skipNBytes(start);
+                byte[] buffer = new byte[64 * 1024];
+                OutputStream outputStream = res.raw().getOutputStream();
+                long remaining = end - start + 1;
+                while (remaining > 0) {
+                    int n = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (n < 0) {
+                        break;
+                    }
+                    outputStream.write(buffer, 0, n);
+                    remaining -= n;
+                }
+            }
+        } else {
+            blob.transferStored(start, end - start + 1, responseChannel(res.raw().getOutputStream()));
+        }
+        BlobMetrics.onDownloaded(end - start + 1, end - start + 1);
+
+        return "";
     }
 
-    private static Object syncChangeFromLocal(Request req, Response res) {
+    private static Object fileContentsBatch(Request req, Response res) throws Exception {
         String vaultName = req.params(":name");
 
         if (!VaultUtils.vaultExists(vaultName)) {
             halt(404, "Vault does not exist");
         }
 
-        req.attribute("org.eclipse.jetty.multipartConfig", new MultipartConfigElement("/tmp"));
+        List<String> hashes;
+        try {
+            Type listType = new TypeToken<List<String>>() {
+            }.getType();
+            hashes = GSON.fromJson(req.body(), listType);
+        } catch (JsonParseException e) {
+            halt(400, "Invalid hash list");
+            return null;
+        }
+
+        res.type("application/octet-stream");
+
+        // Unknown hashes are left out, the client notices which files it did not get
+        boolean encoded = acceptsEncodedFrames(req, res);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(res.raw().getOutputStream()));
+        for (String hash : new LinkedHashSet<>(hashes == null ? List.<String>of() : hashes)) {
+            if (VaultUtils.isValidHash(hash)) {
+                writeFileFrame(out, encoded, vaultName, hash);
+            }
+        }
+        FileFrames.writeEnd(out);
+
+        return "";
+    }
+
+    /**
+     * Write a stored file as a frame, whether it is stored whole or as chunks. Blobs
+     * stored compressed go out as they are when the reader takes encoded frames.
+     *
+     * @return false if the vault does not have the file
+     */
+    private static boolean writeFileFrame(DataOutputStream out, boolean encoded, String vaultName, String hash)
+            throws IOException {
+        StoredBlob blob = VaultUtils.getStoredBlob(vaultName, hash);
+        if (blob != null && blob.compressed() && encoded) {
+            try (InputStream inputStream = blob.openStored()) {
+                FileFrames.writeGzipFrame(out, hash, blob.storedLength(), inputStream);
+            }
+            BlobMetrics.onDownloaded(blob.rawLength(), blob.storedLength());
+            return true;
+        }
+
+        List<StoredBlob> blobs = blob != null ? List.of(blob) : VaultUtils.getChunkBlobs(vaultName, hash);
+        if (blobs == null) {
+            return false;
+        }
+
+        long length = rawLength(blobs);
+        try (InputStream inputStream = openRaw(blobs)) {
+            FileFrames.writeFrame(out, encoded, hash, length, inputStream);
+        }
+        BlobMetrics.onDownloaded(length, length);
+        return true;
+    }
+
+    /**
+     * Whether the client asked for encoded file frames, which the response then confirms
+     */
+    private static boolean acceptsEncodedFrames(Request req, Response res) {
+        if (!BlobCodec.GZIP.equalsIgnoreCase(req.headers(FileFrames.ENCODING_HEADER))) {
+            return false;
+        }
+
+        res.header(FileFrames.ENCODING_HEADER, BlobCodec.GZIP);
+        return true;
+    }
 
+    private static long rawLength(List<StoredBlob> blobs) throws IOException {
+        long length = 0;
+        for (StoredBlob blob : blobs) {
+            length += blob.rawLength();
+        }
+        return length;
+    }
+
+    /**
+     * Uncompressed content of the given blobs one after the other, each opened only when
+     * it is reached
+     */
+    private static InputStream openRaw(List<StoredBlob> blobs) {
+        Iterator<StoredBlob> iterator = blobs.iterator();
+        return new SequenceInputStream(new Enumeration<>() {
+            @Override
+            public boolean hasMoreElements() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                try {
+                    return iterator.next().openRaw();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            if (!params[0].trim().equalsIgnoreCase(BlobCodec.GZIP)) {
+                continue;
+            }
+
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse a single "bytes=" range against a resource of the given length.
+     * Returns {start, end} (inclusive), an empty array if the range is not satisfiable,
+     * or null if the header should be ignored (malformed or multiple ranges).
+     */
+    private static long[] parseByteRange(String range, long length) {
+        range = range.trim();
+        if (!range.startsWith("bytes=") || range.contains(",")) {
+            return null;
+        }
+
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+
+            if (first.isEmpty()) {
+                // Suffix range: the last N bytes
+                long suffixLength = Long.parseLong(last);
+                if (suffixLength <= 0 || length == 0) {
+                    return new long[0];
+                }
+                return new long[] { Math.max(0, length - suffixLength), length - 1 };
+            }
+
+            long start = Long.parseLong(first);
+            Long requestedEnd = last.isEmpty() ? null : Long.parseLong(last);
+            if (requestedEnd != null && requestedEnd < start) {
+                return null;
+            }
+            if (start >= length) {
+                return new long[0];
+            }
+            return new long[] { start, requestedEnd == null ? length - 1 : Math.min(requestedEnd, length - 1) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Channel view of the response output. On Jetty the direct buffers handed out by
+     * FileChannel.transferTo, and slices of mapped packs, are written to the socket as-is
+     * instead of being copied through a heap array.
+     */
+    private static WritableByteChannel responseChannel(OutputStream outputStream) {
+        if (!(outputStream instanceof HttpOutput httpOutput)) {
+            return Channels.newChannel(outputStream);
+        }
+
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                int length = src.remaining();
+                httpOutput.write(src);
+                src.position(src.limit());
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static Object missingBlobs(Request req, Response res) throws Exception {
+        String vaultName = req.params(":name");
+
+        if (!VaultUtils.vaultExists(vaultName)) {
+            halt(404, "Vault does not exist");
+        }
+
+        List<String> hashes;
         try {
-            processChangeLogAndFiles(vaultName, req.raw().getParts());
+            Type listType = new TypeToken<List<String>>() {
+            }.getType();
+            hashes = GSON.fromJson(req.body(), listType);
+        } catch (JsonParseException e) {
+            halt(400, "Invalid hash list");
+            return null;
+        }
+
+        res.type("application/json");
+
+        return GSON.toJson(BlobIndex.forVault(vaultName).missing(hashes == null ? List.of() : hashes));
+    }
 
-            VWebSocket.notifyChange(vaultName);
+    private static Object syncChangeFromLocal(Request req, Response res) {
+        String vaultName = req.params(":name");
+
+        if (!VaultUtils.vaultExists(vaultName)) {
+            halt(404, "Vault does not exist");
+        }
+
+        configureMultipart(req);
+
+        try {
+            // Monitoring clients are notified by the commit
+            processChangeLogAndFiles(vaultName, readUpload(req.raw().getParts()));
 
             return "Sync completed successfully";
         } catch (IllegalArgumentException e) {
@@ -3,19 +3,34 @@ package org.one_cedrus.communication;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 import okhttp3.*;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.GzipSink;
+import okio.Okio;
+import okio.Sink;
+import org.jetbrains.annotations.NotNull;
+import org.one_cedrus.shared.BlobCodec;
 import org.one_cedrus.shared.ChangeLog;
+import org.one_cedrus.shared.ChangeLogCodec;
+import org.one_cedrus.shared.FileFrames;
+import org.one_cedrus.shared.StatePack;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.lang.reflect.Type;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.List;
-import java.util.Map;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
 
 public class ApiClient {
+    private static final String CHANGE_LOGS_ACCEPT = ChangeLogCodec.MEDIA_TYPE + ", application/json";
+
     private final String serverUrl;
     private final OkHttpClient client;
     private final Gson gson;
+    // Set once the server has answered in the binary change log encoding, so it also reads it
+    private volatile boolean binaryChangeLogs;
 
     public ApiClient(String serverUrl) {
         this.serverUrl = serverUrl.endsWith("/") ? serverUrl.substring(0, serverUrl.length() - 1) : serverUrl;
@@ -23,7 +38,7 @@ public class ApiClient {
         this.gson = new Gson();
     }
 
-    public String createVault(ChangeLog initialCL, Map<String, Path> files) throws IOException {
+    public String createVault(ChangeLog initialCL, Map<String, FileSlice> files) throws IOException {
         String url = serverUrl + "/vault";
 
         MultipartBody.Builder builder = new MultipartBody.Builder()
@@ -32,15 +47,9 @@ public class ApiClient {
         // Add change logs as JSON
         builder.addFormDataPart("change_logs", gson.toJson(List.of(initialCL)));
 
-        // Add files
-        for (Map.Entry<String, Path> entry : files.entrySet()) {
-            String hash = entry.getKey();
-            Path filePath = entry.getValue();
-
-            RequestBody fileBody = RequestBody.create(
-                Files.readAllBytes(filePath),
-                MediaType.parse("application/octet-stream"));
-            builder.addFormDataPart("file_" + hash, hash, fileBody);
+        // Add files, streamed from disk when the request is sent
+        for (Map.Entry<String, FileSlice> entry : files.entrySet()) {
+            addFilePart(builder, entry.getKey(), entry.getValue());
         }
 
         Request request = new Request.Builder()
@@ -56,24 +65,23 @@ public class ApiClient {
         }
     }
 
-    public void syncVault(String vaultName, List<ChangeLog> changeLogs, Map<String, Path> files) throws IOException {
+    public void syncVault(String vaultName, List<ChangeLog> changeLogs, Map<String, FileSlice> files) throws IOException {
         String url = serverUrl + "/vault/" + vaultName + "/sync";
 
         MultipartBody.Builder builder = new MultipartBody.Builder()
             .setType(MultipartBody.FORM);
 
-        // Add change logs as JSON
-        builder.addFormDataPart("change_logs", gson.toJson(changeLogs));
-
-        // Add files
-        for (Map.Entry<String, Path> entry : files.entrySet()) {
-            String hash = entry.getKey();
-            Path filePath = entry.getValue();
+        if (binaryChangeLogs) {
+            builder.addPart(MultipartBody.Part.create(
+                Headers.of("Content-Disposition", "form-data; name=\"change_logs\""),
+                RequestBody.create(ChangeLogCodec.encode(changeLogs), MediaType.parse(ChangeLogCodec.MEDIA_TYPE))));
+        } else {
+            builder.addFormDataPart("change_logs", gson.toJson(changeLogs));
+        }
 
-            RequestBody fileBody = RequestBody.create(
-                Files.readAllBytes(filePath),
-                MediaType.parse("application/octet-stream"));
-            builder.addFormDataPart("file_" + hash, hash, fileBody);
+        // Add files, streamed from disk when the request is sent
+        for (Map.Entry<String, FileSlice> entry : files.entrySet()) {
+            addFilePart(builder, entry.getKey(), entry.getValue());
         }
 
         Request request = new Request.Builder()
@@ -88,25 +96,56 @@ public class ApiClient {
         }
     }
 
+    /**
+     * Ask the server which of the given file hashes the vault does not have yet, so only
+     * those need to be uploaded
+     */
+    public Set<String> getMissingFiles(String vaultName, Collection<String> fileHashes) throws IOException {
+        String url = serverUrl + "/vault/" + vaultName + "/blobs/missing";
+
+        Request request = new Request.Builder()
+            .url(url)
+            .post(RequestBody.create(gson.toJson(fileHashes), MediaType.parse("application/json")))
+            .build();
+
+        try (Response response = client.newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                throw new IOException(
+                    "Failed to get missing files: " + response.code() + " - " + response.body().string());
+            }
+
+            String json = response.body().string();
+            Type listType = new TypeToken<List<String>>() {
+            }.getType();
+            List<String> missing = gson.fromJson(json, listType);
+            return new HashSet<>(missing);
+        }
+    }
+
+    /**
+     * @return the change logs after the given version, or null if the server compacted the
+     * history after it away and the vault has to be bootstrapped again
+     */
     public List<ChangeLog> getChangeLogsSince(String vaultName, long sinceTimestamp) throws IOException {
         String url = serverUrl + "/vault/" + vaultName + "/change_logs/since/" + sinceTimestamp;
 
         Request request = new Request.Builder()
             .url(url)
+            .header("Accept", CHANGE_LOGS_ACCEPT)
             .get()
             .build();
 
         try (Response response = client.newCall(request).execute()) {
+            if (response.code() == 410) {
+                return null;
+            }
             if (!response.isSuccessful()) {
                 throw new IOException(
                     "Failed to get change logs since " + sinceTimestamp + ": " + response.code() + " - "
                         + response.body().string());
             }
 
-            String json = response.body().string();
-            Type listType = new TypeToken<List<ChangeLog>>() {
-            }.getType();
-            return gson.fromJson(json, listType);
+            return readChangeLogs(response);
         }
     }
 
@@ -115,6 +154,7 @@ public class ApiClient {
 
         Request request = new Request.Builder()
             .url(url)
+            .header("Accept", CHANGE_LOGS_ACCEPT)
             .get()
             .build();
 
@@ -124,10 +164,62 @@ public class ApiClient {
                     "Failed to get change logs: " + response.code() + " - " + response.body().string());
             }
 
-            String json = response.body().string();
-            Type listType = new TypeToken<List<ChangeLog>>() {
-            }.getType();
-            return gson.fromJson(json, listType);
+            return readChangeLogs(response);
+        }
+    }
+
+    /**
+     * Download many files in one request. Each file is handed to the consumer while it
+     * streams in, so nothing is buffered in memory. Hashes the server does not have are
+     * simply not delivered.
+     *
+     * @return number of files received
+     */
+    public int downloadFiles(String vaultName, Collection<String> fileHashes, FileFrames.FrameConsumer consumer)
+        throws Exception {
+        String url = serverUrl + "/vault/" + vaultName + "/files/batch";
+
+        Request request = new Request.Builder()
+            .url(url)
+            .header(FileFrames.ENCODING_HEADER, BlobCodec.GZIP)
+            .post(RequestBody.create(gson.toJson(fileHashes), MediaType.parse("application/json")))
+            .build();
+
+        try (Response response = client.newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                throw new IOException("Failed to get files: " + response.code() + " - " + response.body().string());
+            }
+
+            return FileFrames.readFrames(response.body().byteStream(), hasEncodedFrames(response), consumer);
+        }
+    }
+
+    /**
+     * Download the state pack of a vault: the live state at its head as a manifest change
+     * log, plus the files it references, which are handed to the consumer as they stream
+     * in
+     *
+     * @return the manifest change log
+     */
+    public ChangeLog downloadStatePack(String vaultName, FileFrames.FrameConsumer consumer) throws Exception {
+        String url = serverUrl + "/vault/" + vaultName + "/bootstrap";
+
+        Request request = new Request.Builder()
+            .url(url)
+            .header(FileFrames.ENCODING_HEADER, BlobCodec.GZIP)
+            .get()
+            .build();
+
+        try (Response response = client.newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                throw new IOException(
+                    "Failed to get state pack: " + response.code() + " - " + response.body().string());
+            }
+
+            DataInputStream in = new DataInputStream(response.body().byteStream());
+            ChangeLog manifest = StatePack.readManifest(in);
+            FileFrames.readFrames(in, hasEncodedFrames(response), consumer);
+            return manifest;
         }
     }
 
@@ -147,4 +239,103 @@ public class ApiClient {
             return response.body().bytes();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Older servers ignore the Accept header and answer in JSON
+     */
+    private List<ChangeLog> readChangeLogs(Response response) throws IOException {
+        if (ChangeLogCodec.matches(response.header("Content-Type"))) {
+            binaryChangeLogs = true;
+            return ChangeLogCodec.decode(response.body().byteStream());
+        }
+
+        String json = response.body().string();
+        Type listType = new TypeToken<List<ChangeLog>>() {
+        }.getType();
+        return gson.fromJson(json, listType);
+    }
+
+    /**
+     * Servers that do not know encoded frames ignore the request header and send plain
+     * frames
+     */
+    private static boolean hasEncodedFrames(Response response) {
+        return BlobCodec.GZIP.equalsIgnoreCase(response.header(FileFrames.ENCODING_HEADER));
+    }
+
+    /**
+     * Add a file part, gzip-compressed while it is sent if its start compresses well. The
+     * server checks the hash of the uncompressed content and stores the part as it is.
+     */
+    private static void addFilePart(MultipartBody.Builder builder, String hash, FileSlice slice) throws IOException {
+        Headers.Builder headers = new Headers.Builder()
+            .add("Content-Disposition", "form-data; name=\"file_" + hash + "\"; filename=\"" + hash + "\"");
+        RequestBody body = fileSliceBody(slice);
+
+        if (isCompressible(slice)) {
+            headers.add("Content-Encoding", BlobCodec.GZIP);
+            body = gzipBody(body);
+        }
+        builder.addPart(MultipartBody.Part.create(headers.build(), body));
+    }
+
+    private static boolean isCompressible(FileSlice slice) throws IOException {
+        byte[] sample = new byte[(int) Math.min(BlobCodec.PROBE_BYTES, slice.length())];
+        try (FileChannel channel = FileChannel.open(slice.path(), StandardOpenOption.READ)) {
+            channel.position(slice.offset());
+            int length = Channels.newInputStream(channel).readNBytes(sample, 0, sample.length);
+            return BlobCodec.isCompressible(sample, length);
+        }
+    }
+
+    private static RequestBody gzipBody(RequestBody body) {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return body.contentType();
+            }
+
+            @Override
+            public long contentLength() {
+                return -1;
+            }
+
+            @Override
+            public void writeTo(@NotNull BufferedSink sink) throws IOException {
+                // Closing the gzip sink writes its trailer, but the parts after this one
+                // still go to the underlying sink
+                Sink partSink = new ForwardingSink(sink) {
+                    @Override
+                    public void close() throws IOException {
+                        flush();
+                    }
+                };
+                try (BufferedSink gzipSink = Okio.buffer(new GzipSink(partSink))) {
+                    body.writeTo(gzipSink);
+                }
+            }
+        };
+    }
+
+    private static RequestBody fileSliceBody(FileSlice slice) {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return MediaType.parse("application/octet-stream");
+            }
+
+            @Override
+            public long contentLength() {
+                return slice.length();
+            }
+
+            @Override
+            public void writeTo(@NotNull BufferedSink sink) throws IOException {
+                try (FileChannel channel = FileChannel.open(slice.path(), StandardOpenOption.READ)) {
+                    channel.position(slice.offset());
+                    sink.write(Okio.source(Channels.newInputStream(channel)), slice.length());
+                }
+            }
+        };
+    }
+}
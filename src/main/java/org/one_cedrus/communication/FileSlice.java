@@ -0,0 +1,16 @@
+package org.one_cedrus.communication;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A byte range of a local file to upload as one blob: a whole file, or one chunk of a
+ * chunked file
+ */
+public record FileSlice(Path path, long offset, long length) {
+
+    public static FileSlice wholeFile(Path path) throws IOException {
+        return new FileSlice(path, 0, Files.size(path));
+    }
+}
@@ -0,0 +1,199 @@
+package org.one_cedrus.communication;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.one_cedrus.shared.MessageFrames;
+import org.one_cedrus.shared.MessageType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.function.Consumer;
+
+/**
+ * Outbound messages of one WebSocket session, text messages or binary
+ * {@link MessageFrames frames}, sent asynchronously one at a time so callers never wait
+ * for the client. Messages that only say something happened replace
+ * a queued one of the same kind: a {@link MessageType#FILE_CHANGE} the queued one of its
+ * vault, which it carries a newer head for, and a {@link MessageType#HEARTBEAT} the
+ * queued heartbeat.
+ * <p>
+ * A client that lets more than {@code maxMessages} pile up, or does not take a message
+ * within {@code sendTimeoutMillis}, is disconnected as a slow consumer; it catches up
+ * over HTTP when it reconnects.
+ */
+public class SessionSendQueue {
+    private final Session session;
+    private final int maxMessages;
+    private final long sendTimeoutMillis;
+    private final Consumer<Session> onFailure;
+    private final LinkedList<Outbound> pending = new LinkedList<>();
+
+    private boolean sending = false;
+    private long sendStartedAt = 0;
+    private boolean closed = false;
+
+    /**
+     * A text message or a binary frame, with the key it replaces queued messages by
+     */
+    private record Outbound(String text, byte[] frame, String coalescingKey) {
+    }
+
+    public SessionSendQueue(Session session, int maxMessages, long sendTimeoutMillis, Consumer<Session> onFailure) {
+        this.session = session;
+        this.maxMessages = maxMessages;
+        this.sendTimeoutMillis = sendTimeoutMillis;
+        this.onFailure = onFailure;
+    }
+
+    /**
+     * Queue a message and return at once
+     *
+     * @return false if the session was closed instead, as gone or too slow
+     */
+    public boolean offer(String message) {
+        return offer(new Outbound(message, null, coalescingKey(message)));
+    }
+
+    /**
+     * Queue a binary frame and return at once
+     *
+     * @return false if the session was closed instead, as gone or too slow
+     */
+    public boolean offer(byte[] frame) {
+        return offer(new Outbound(null, frame, coalescingKey(frame)));
+    }
+
+    private boolean offer(Outbound message) {
+        boolean slow;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            if (replaceQueued(message)) {
+                return true;
+            }
+
+            boolean stalled = sending && System.currentTimeMillis() - sendStartedAt > sendTimeoutMillis;
+            slow = pending.size() >= maxMessages || stalled;
+            if (slow) {
+                closed = true;
+                pending.clear();
+            } else {
+                pending.add(message);
+                if (sending) {
+                    return true;
+                }
+                sending = true;
+            }
+        }
+
+        if (slow) {
+            System.out.println("[INFO]: Disconnecting slow WebSocket client: " + session.getRemoteAddress());
+            session.close(StatusCode.TRY_AGAIN_LATER, "Slow consumer");
+            onFailure.accept(session);
+            return false;
+        }
+
+        sendNext();
+        return true;
+    }
+
+    /**
+     * Drop the queued messages, once the session is closed
+     */
+    public synchronized void close() {
+        closed = true;
+        pending.clear();
+    }
+
+    private void sendNext() {
+        Outbound message;
+        synchronized (this) {
+            message = closed ? null : pending.poll();
+            if (message == null) {
+                sending = false;
+                return;
+            }
+            sendStartedAt = System.currentTimeMillis();
+        }
+
+        WriteCallback callback = new WriteCallback() {
+            @Override
+            public void writeFailed(Throwable error) {
+                fail(error);
+            }
+
+            @Override
+            public void writeSuccess() {
+                sendNext();
+            }
+        };
+        try {
+            if (message.text() != null) {
+                session.getRemote().sendString(message.text(), callback);
+            } else {
+                session.getRemote().sendBytes(ByteBuffer.wrap(message.frame()), callback);
+            }
+        } catch (RuntimeException e) {
+            // Session already closed
+            fail(e);
+        }
+    }
+
+    private void fail(Throwable error) {
+        System.out.println("[DEBUG]: Failed to send to " + session.getRemoteAddress() + ": " + error.getMessage());
+        close();
+        onFailure.accept(session);
+    }
+
+    private boolean replaceQueued(Outbound message) {
+        String key = message.coalescingKey();
+        if (key == null) {
+            return false;
+        }
+
+        for (ListIterator<Outbound> iterator = pending.listIterator(); iterator.hasNext(); ) {
+            if (key.equals(iterator.next().coalescingKey())) {
+                iterator.set(message);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * HEARTBEAT, or FILE_CHANGE:vault without the head, or null for other messages
+     */
+    private static String coalescingKey(String message) {
+        if (message.equals(MessageType.HEARTBEAT.name())) {
+            return message;
+        }
+        if (!message.startsWith(MessageType.FILE_CHANGE + ":")) {
+            return null;
+        }
+
+        int headSeparator = message.indexOf(':', MessageType.FILE_CHANGE.name().length() + 1);
+        return headSeparator < 0 ? message : message.substring(0, headSeparator);
+    }
+
+    /**
+     * Type and vault id of HEARTBEAT and FILE_CHANGE frames, or null for other frames
+     */
+    private static String coalescingKey(byte[] frame) {
+        if (frame.length == 0
+                || (frame[0] != MessageType.HEARTBEAT.code() && frame[0] != MessageType.FILE_CHANGE.code())) {
+            return null;
+        }
+
+        MessageFrames.Frame decoded;
+        try {
+            decoded = MessageFrames.decode(ByteBuffer.wrap(frame));
+        } catch (IOException e) {
+            return null;
+        }
+        return decoded.type().code() + ":" + decoded.vaultId();
+    }
+}
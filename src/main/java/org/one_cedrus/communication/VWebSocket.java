@@ -2,40 +2,73 @@ package org.one_cedrus.communication;
 
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.annotations.*;
+import org.one_cedrus.shared.ChangeLog;
+import org.one_cedrus.shared.ChangeLogCodec;
+import org.one_cedrus.shared.MessageFrames;
 import org.one_cedrus.shared.MessageType;
+import org.one_cedrus.util.ServerConfig;
+import org.one_cedrus.util.TimingWheel;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @WebSocket
 public class VWebSocket {
-    private static final List<Session> sessions = new CopyOnWriteArrayList<>();
-    private static final Map<String, List<Session>> sessionsByVault = new ConcurrentHashMap<>();
-    private static final Map<Session, Set<String>> sessionToVaults = new ConcurrentHashMap<>();
+    private static final byte[] HEARTBEAT_FRAME = MessageFrames.encode(MessageType.HEARTBEAT, MessageFrames.NO_VAULT);
+    private static final Map<Session, SessionState> sessions = new ConcurrentHashMap<>();
     private static final Map<String, Set<Session>> vaultToSessions = new ConcurrentHashMap<>();
     private static final ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(1);
+    // Sends HEARTBEAT to every session once per interval, a slice of the sessions per tick
+    private static final TimingWheel<Session> heartbeats = new TimingWheel<>(
+            ServerConfig.getWsHeartbeatMillis(), ServerConfig.getWsHeartbeatSlots(),
+            VWebSocket::sendHeartbeat);
+    // Change logs committed to a vault during its current coalescing window
+    private static final Map<String, PendingNotification> pendingNotifications = new ConcurrentHashMap<>();
+
+    /**
+     * Everything known about a connected session
+     */
+    private static class SessionState {
+        // Sends go through a queue per session, so no caller waits for a client
+        final SessionSendQueue sendQueue;
+        // Whether the client applies pushed change logs instead of fetching them
+        final boolean changeLogPush;
+        // Whether the client takes binary frames instead of text messages
+        final boolean binaryFrames;
+        // Monitored vaults, by name, with the ids binary frames refer to them by
+        final Map<String, Integer> vaultIds = new ConcurrentHashMap<>();
+        final AtomicInteger nextVaultId = new AtomicInteger(MessageFrames.NO_VAULT + 1);
+        final int heartbeatSlot;
+
+        SessionState(Session session) {
+            this.sendQueue = new SessionSendQueue(session, ServerConfig.getWsQueueMaxMessages(),
+                    ServerConfig.getWsSendTimeoutMillis(), VWebSocket::cleanupSession);
+            this.changeLogPush = MessageType.hasCapability(
+                    session.getUpgradeRequest().getHeader(MessageType.CAPABILITIES_HEADER), MessageType.CHANGE_LOG_PUSH);
+            this.binaryFrames = ServerConfig.useWsBinaryFrames() && MessageType.hasCapability(
+                    session.getUpgradeRequest().getHeader(MessageType.CAPABILITIES_HEADER), MessageType.BINARY_FRAMES);
+            this.heartbeatSlot = heartbeats.add(session);
+        }
+    }
+
+    private static class PendingNotification {
+        final List<ChangeLog> changeLogs = new ArrayList<>();
+        final long firstAt = System.currentTimeMillis();
+        ScheduledFuture<?> flush;
+    }
 
-    // Periodically send HEARTBEAT message to keep sessions alive.
     static {
-        scheduledExecutorService.scheduleAtFixedRate(() -> {
-            sessions.forEach(session -> {
-                try {
-                    session.getRemote().sendString(MessageType.HEARTBEAT.name());
-                } catch (IOException e) {
-                    sessions.remove(session);
-
-                    throw new RuntimeException(e);
-                }
-            });
-        }, 0, 30, TimeUnit.SECONDS);
+        heartbeats.start(scheduledExecutorService);
     }
 
     @OnWebSocketConnect
     public void onWebSocketConnect(Session session) {
         System.out.println("[INFO]: WebSocket connected: " + session.getRemoteAddress());
 
-        sessions.add(session);
+        sessions.put(session, new SessionState(session));
     }
 
     @OnWebSocketClose
@@ -58,12 +91,7 @@ public class VWebSocket {
 
         switch (messageType) {
             case HELLO:
-                registerVaultMonitoring(session, payload);
-                try {
-                    session.getRemote().sendString(MessageType.STATUS + ":registered");
-                } catch (IOException e) {
-                    System.err.println("[ERROR]: Failed to send registration confirmation: " + e.getMessage());
-                }
+                onHello(session, payload);
                 break;
             case STATUS:
                 // Handle client status update if needed
@@ -71,11 +99,63 @@ public class VWebSocket {
         }
     }
 
-    private void registerVaultMonitoring(Session session, String vaultName) {
-        sessionToVaults.computeIfAbsent(session, k -> new HashSet<>()).add(vaultName);
-        vaultToSessions.computeIfAbsent(vaultName, k -> new HashSet<>()).add(session);
+    @OnWebSocketMessage
+    public void onWebSocketBinary(Session session, byte[] buffer, int offset, int length) {
+        MessageFrames.Frame frame;
+        try {
+            frame = MessageFrames.decode(ByteBuffer.wrap(buffer, offset, length));
+        } catch (IOException e) {
+            System.err.println("[ERROR]: Invalid frame from " + session.getRemoteAddress() + ": " + e.getMessage());
+            return;
+        }
 
-        System.out.println("[DEBUG]: Client monitoring vaults: " + sessionToVaults.get(session));
+        System.out.println("[DEBUG]: Received frame: " + frame.type());
+
+        switch (frame.type()) {
+            case HELLO:
+                onHello(session, MessageFrames.vaultName(frame.payload()));
+                break;
+            case STATUS:
+                // Handle client status update if needed
+                break;
+        }
+    }
+
+    /**
+     * Register the session for a vault, and confirm it, with the vault id in binary frames
+     */
+    private void onHello(Session session, String vaultName) {
+        SessionState state = sessions.get(session);
+        if (state == null) {
+            return;
+        }
+
+        int vaultId = registerVaultMonitoring(session, state, vaultName);
+        if (state.binaryFrames) {
+            state.sendQueue.offer(MessageFrames.encode(MessageType.STATUS, vaultId,
+                    MessageFrames.vaultName(vaultName)));
+        } else {
+            state.sendQueue.offer(MessageType.STATUS + ":registered");
+        }
+    }
+
+    private int registerVaultMonitoring(Session session, SessionState state, String vaultName) {
+        int vaultId = state.vaultIds.computeIfAbsent(vaultName, name -> state.nextVaultId.getAndIncrement());
+        vaultToSessions.compute(vaultName, (name, vaultSessions) -> {
+            if (vaultSessions == null) {
+                vaultSessions = ConcurrentHashMap.newKeySet();
+            }
+            vaultSessions.add(session);
+            return vaultSessions;
+        });
+
+        // Closed while registering, after the cleanup went through its vaults
+        if (!sessions.containsKey(session)) {
+            unregisterVaultMonitoring(session, vaultName);
+        }
+
+        System.out.println("[DEBUG]: Client monitoring vaults: " + state.vaultIds.keySet());
+        return vaultId;
     }
 
     @OnWebSocketError
@@ -83,7 +163,47 @@ public class VWebSocket {
         System.err.println("[ERROR]: WebSocket error for " + session.getRemoteAddress() + ": " + error.getMessage());
     }
 
-    public static void notifyChange(String vaultName) {
+    /**
+     * Tell the clients monitoring a vault about change logs just committed to it. Commits
+     * following each other within {@link ServerConfig#getWsCoalesceMillis()} are announced
+     * together, at most {@link ServerConfig#getWsCoalesceMaxMillis()} after the first one.
+     */
+    public static void notifyChange(String vaultName, List<ChangeLog> changeLogs) {
+        long window = ServerConfig.getWsCoalesceMillis();
+        if (window <= 0) {
+            sendNotification(vaultName, changeLogs);
+            return;
+        }
+
+        long maxDelay = ServerConfig.getWsCoalesceMaxMillis();
+        pendingNotifications.compute(vaultName, (name, pending) -> {
+            if (pending == null) {
+                pending = new PendingNotification();
+            } else {
+                pending.flush.cancel(false);
+            }
+            pending.changeLogs.addAll(changeLogs);
+
+            long delay = Math.max(0, Math.min(window, pending.firstAt + maxDelay - System.currentTimeMillis()));
+            pending.flush = scheduledExecutorService.schedule(() -> flushNotification(name), delay,
+                    TimeUnit.MILLISECONDS);
+            return pending;
+        });
+    }
+
+    private static void flushNotification(String vaultName) {
+        PendingNotification pending = pendingNotifications.remove(vaultName);
+        if (pending != null) {
+            sendNotification(vaultName, pending.changeLogs);
+        }
+    }
+
+    /**
+     * Clients that apply pushed change logs get them in the message, unless they are too
+     * large, and otherwise learn the new head of the vault. Other clients only learn that
+     * the vault changed.
+     */
+    private static void sendNotification(String vaultName, List<ChangeLog> changeLogs) {
         Set<Session> vaultSessions = vaultToSessions.get(vaultName);
 
         System.out.println("[DEBUG]: Notifying change for vault: " + vaultName);
@@ -95,28 +215,128 @@ public class VWebSocket {
 
         System.out.println("[DEBUG]: Found " + vaultSessions.size() + " sessions monitoring vault: " + vaultName);
 
-        vaultSessions.forEach(session -> {
-            try {
-                session.getRemote().sendString(MessageType.FILE_CHANGE + ":" + vaultName);
-                System.out.println("[DEBUG]: Sent notification to: " + session.getRemoteAddress());
-            } catch (IOException e) {
-                System.out.println("[DEBUG]: Session closed, removing from vault: " + session.getRemoteAddress());
-                cleanupSession(session);
+        Notification notification = new Notification(vaultName, changeLogs);
+        for (Session session : vaultSessions) {
+            SessionState state = sessions.get(session);
+            if (state != null && notification.offer(state)) {
+                System.out.println("[DEBUG]: Queued notification to: " + session.getRemoteAddress());
             }
-        });
+        }
     }
 
-    private static void cleanupSession(Session session) {
-        sessions.remove(session);
-
-        Set<String> vaults = sessionToVaults.remove(session);
-        if (vaults != null) {
-            vaults.forEach(vault -> {
-                Set<Session> vaultSessions = vaultToSessions.get(vault);
-                if (vaultSessions != null) {
-                    vaultSessions.remove(session);
+    /**
+     * The messages announcing change logs in each encoding, built once for all sessions
+     * needing them
+     */
+    private static class Notification {
+        private final String vaultName;
+        private final List<ChangeLog> changeLogs;
+        private final long head;
+        private String pushMessage;
+        private byte[] pushPayload;
+
+        Notification(String vaultName, List<ChangeLog> changeLogs) {
+            this.vaultName = vaultName;
+            this.changeLogs = changeLogs;
+            this.head = changeLogs.stream().mapToLong(ChangeLog::getTimestamp).max().orElse(0);
+        }
+
+        boolean offer(SessionState state) {
+            if (state.binaryFrames) {
+                Integer vaultId = state.vaultIds.get(vaultName);
+                return vaultId != null && state.sendQueue.offer(frame(state, vaultId));
+            }
+            return state.sendQueue.offer(text(state));
+        }
+
+        private String text(SessionState state) {
+            String fileChangeMessage = MessageType.FILE_CHANGE + ":" + vaultName;
+            if (!state.changeLogPush) {
+                return fileChangeMessage;
+            }
+
+            if (pushMessage == null) {
+                pushMessage = changeLogsMessage(vaultName, changeLogs);
+                if (pushMessage == null) {
+                    pushMessage = fileChangeMessage + ":" + head;
                 }
-            });
+            }
+            return pushMessage;
+        }
+
+        private byte[] frame(SessionState state, int vaultId) {
+            if (!state.changeLogPush) {
+                return MessageFrames.encode(MessageType.FILE_CHANGE, vaultId);
+            }
+
+            if (pushPayload == null) {
+                pushPayload = changeLogsPayload(changeLogs);
+            }
+            return pushPayload.length > 0
+                    ? MessageFrames.encode(MessageType.CHANGE_LOGS, vaultId, pushPayload)
+                    : MessageFrames.encode(MessageType.FILE_CHANGE, vaultId, MessageFrames.head(head));
+        }
+    }
+
+    private static void sendHeartbeat(Session session) {
+        SessionState state = sessions.get(session);
+        if (state != null) {
+            if (state.binaryFrames) {
+                state.sendQueue.offer(HEARTBEAT_FRAME);
+            } else {
+                state.sendQueue.offer(MessageType.HEARTBEAT.name());
+            }
+        }
+    }
+
+    /**
+     * Change logs in binary encoding, or nothing if they exceed the push limit
+     */
+    private static byte[] changeLogsPayload(List<ChangeLog> changeLogs) {
+        try {
+            byte[] payload = ChangeLogCodec.encode(changeLogs);
+            return payload.length > ServerConfig.getWsPushMaxBytes() ? new byte[0] : payload;
+        } catch (IOException e) {
+            System.err.println("[ERROR]: Failed to encode pushed change logs: " + e.getMessage());
+            return new byte[0];
+        }
+    }
+
+    /**
+     * CHANGE_LOGS:vault:[change logs], or null if it exceeds the push limit
+     */
+    private static String changeLogsMessage(String vaultName, List<ChangeLog> changeLogs) {
+        long maxBytes = ServerConfig.getWsPushMaxBytes();
+        StringBuilder message = new StringBuilder(MessageType.CHANGE_LOGS + ":" + vaultName + ":[");
+        for (int i = 0; i < changeLogs.size(); i++) {
+            if (i > 0) {
+                message.append(',');
+            }
+            message.append(changeLogs.get(i).toJson());
+            if (message.length() > maxBytes) {
+                return null;
+            }
         }
+        return message.append(']').toString();
+    }
+
+    private static void cleanupSession(Session session) {
+        SessionState state = sessions.remove(session);
+        if (state == null) {
+            return;
+        }
+
+        state.sendQueue.close();
+        heartbeats.remove(session, state.heartbeatSlot);
+        for (String vault : state.vaultIds.keySet()) {
+            unregisterVaultMonitoring(session, vault);
+        }
+    }
+
+    private static void unregisterVaultMonitoring(Session session, String vaultName) {
+        vaultToSessions.computeIfPresent(vaultName, (name, vaultSessions) -> {
+            vaultSessions.remove(session);
+            return vaultSessions.isEmpty() ? null : vaultSessions;
+        });
     }
 }
@@ -1,31 +1,60 @@
 package org.one_cedrus.communication;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
 import org.java_websocket.client.WebSocketClient;
 import org.java_websocket.handshake.ServerHandshake;
+import org.one_cedrus.shared.ChangeLog;
+import org.one_cedrus.shared.ChangeLogCodec;
+import org.one_cedrus.shared.MessageFrames;
 import org.one_cedrus.shared.MessageType;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Type;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 public class VWebSocketClient extends WebSocketClient {
+    private static final Gson GSON = new Gson();
+    private static final Type CHANGE_LOG_LIST_TYPE = new TypeToken<List<ChangeLog>>() {
+    }.getType();
+
     private final String vaultName;
-    private final Consumer<String> onFileChangeMessage;
+    private final BiConsumer<String, Long> onFileChangeMessage;
+    private final BiConsumer<String, List<ChangeLog>> onChangeLogsMessage;
     private final Consumer<Integer> onCloseHandler;
+    // Vaults by the ids the server gave them for binary frames
+    private final Map<Integer, String> vaultsById = new ConcurrentHashMap<>();
     private final static byte MAX_RETRY = 5;
     private final static AtomicInteger retryCount = new AtomicInteger(0);
 
-    public VWebSocketClient(URI webSocketURI, String vaultName, Consumer<String> onFileChangeMessage,
-            Consumer<Integer> onCloseHandler) {
-        super(webSocketURI);
+    /**
+     * Servers that push change logs send them to onChangeLogsMessage, older ones only
+     * announce changes to onFileChangeMessage, with the new vault head when they know it.
+     * Servers that send binary frames use them, others text messages.
+     */
+    public VWebSocketClient(URI webSocketURI, String vaultName, BiConsumer<String, Long> onFileChangeMessage,
+            BiConsumer<String, List<ChangeLog>> onChangeLogsMessage, Consumer<Integer> onCloseHandler) {
+        super(webSocketURI, Map.of(MessageType.CAPABILITIES_HEADER,
+                MessageType.CHANGE_LOG_PUSH + ", " + MessageType.BINARY_FRAMES));
         this.vaultName = vaultName;
         this.onFileChangeMessage = onFileChangeMessage;
+        this.onChangeLogsMessage = onChangeLogsMessage;
         this.onCloseHandler = onCloseHandler;
     }
 
     @Override
     public void onOpen(ServerHandshake handshake) {
         System.out.println("[INFO]: WebSocket connected");
+        vaultsById.clear();
 
         // Send HELLO messages to register for vault notifications
         send(String.format("%s:%s", MessageType.HELLO.name(), vaultName));
@@ -33,15 +62,40 @@ public class VWebSocketClient extends WebSocketClient {
 
     @Override
     public void onMessage(String message) {
-        System.out.println("[DEBUG]: WebSocket message: " + message);
+        System.out.println("[DEBUG]: WebSocket message: "
+                + (message.length() > 200 ? message.substring(0, 200) + "..." : message));
 
         String[] parts = message.split(":", 2);
         MessageType type = MessageType.valueOf(parts[0]);
 
         switch (type) {
             case MessageType.FILE_CHANGE -> {
+                // vault or vault:head
                 if (parts.length >= 2) {
-                    onFileChangeMessage.accept(parts[1]);
+                    String[] payload = parts[1].split(":", 2);
+                    Long head = null;
+                    try {
+                        head = payload.length == 2 ? Long.parseLong(payload[1]) : null;
+                    } catch (NumberFormatException ignored) {
+                        // Treated as a change of unknown head
+                    }
+                    onFileChangeMessage.accept(payload[0], head);
+                }
+            }
+            case MessageType.CHANGE_LOGS -> {
+                // vault:[change logs]
+                String[] payload = parts.length >= 2 ? parts[1].split(":", 2) : new String[0];
+                if (payload.length < 2) {
+                    return;
+                }
+
+                try {
+                    List<ChangeLog> changeLogs = GSON.fromJson(payload[1], CHANGE_LOG_LIST_TYPE);
+                    onChangeLogsMessage.accept(payload[0], changeLogs);
+                } catch (JsonParseException e) {
+                    System.err.println("[ERROR]: Invalid pushed change logs, fetching them instead: "
+                            + e.getMessage());
+                    onFileChangeMessage.accept(payload[0], null);
                 }
             }
             case MessageType.STATUS -> {
@@ -53,6 +107,60 @@ public class VWebSocketClient extends WebSocketClient {
         }
     }
 
+    @Override
+    public void onMessage(ByteBuffer bytes) {
+        MessageFrames.Frame frame;
+        try {
+            frame = MessageFrames.decode(bytes);
+        } catch (IOException e) {
+            System.err.println("[ERROR]: Invalid WebSocket frame: " + e.getMessage());
+            return;
+        }
+
+        System.out.println("[DEBUG]: WebSocket frame: " + frame.type() + " for vault " + frame.vaultId() + " ("
+                + frame.payload().length + " bytes)");
+
+        switch (frame.type()) {
+            case MessageType.STATUS -> {
+                // Reply to HELLO, naming the vault of the id
+                vaultsById.put(frame.vaultId(), MessageFrames.vaultName(frame.payload()));
+                System.out.println("[INFO]: WebSocket registration confirmed");
+            }
+            case MessageType.FILE_CHANGE -> {
+                String vault = vaultsById.get(frame.vaultId());
+                if (vault == null) {
+                    return;
+                }
+
+                Long head = null;
+                try {
+                    head = MessageFrames.head(frame.payload());
+                } catch (IOException ignored) {
+                    // Treated as a change of unknown head
+                }
+                onFileChangeMessage.accept(vault, head);
+            }
+            case MessageType.CHANGE_LOGS -> {
+                String vault = vaultsById.get(frame.vaultId());
+                if (vault == null) {
+                    return;
+                }
+
+                try {
+                    List<ChangeLog> changeLogs = ChangeLogCodec.decode(new ByteArrayInputStream(frame.payload()));
+                    onChangeLogsMessage.accept(vault, changeLogs);
+                } catch (IOException e) {
+                    System.err.println("[ERROR]: Invalid pushed change logs, fetching them instead: "
+                            + e.getMessage());
+                    onFileChangeMessage.accept(vault, null);
+                }
+            }
+            case MessageType.HEARTBEAT, MessageType.HELLO -> {
+                // Nothing to do
+            }
+        }
+    }
+
     @Override
     public void onClose(int code, String reason, boolean remote) {
         System.out.println("[INFO]: WebSocket disconnected: " + reason + " (code: " + code + ")");
@@ -1,16 +1,15 @@
 package org.one_cedrus.manager;
 
 import org.one_cedrus.shared.ChangeLog;
+import org.one_cedrus.shared.ChangeLogCompactor;
 import org.one_cedrus.shared.FileChange;
 
 import java.io.IOException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.TreeSet;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
 
 public class ChangeLogManager {
     private final SharedVaultDirManager svDirManager;
@@ -96,6 +95,10 @@ public class ChangeLogManager {
         Files.writeString(changeLogFile, changeLog.toJson());
     }
 
+    public boolean hasChangeLog(long timestamp) {
+        return Files.exists(svDirManager.getChangeLogFilePath().resolve(String.format("%015d.json", timestamp)));
+    }
+
     public TreeSet<Long> getLocalTimestamps() {
         TreeSet<Long> timestamps = new TreeSet<>();
 
@@ -142,4 +145,40 @@ public class ChangeLogManager {
 
         return changeLogs;
     }
-}
\ No newline at end of file
+
+    /**
+     * Squash the local change logs at or before the horizon into base change logs, the
+     * same way the server compacts its history
+     *
+     * @return number of change logs removed
+     */
+    public int compactLocalChangeLogs(long horizon) throws IOException {
+        Map<Long, ChangeLog> changeLogs = new HashMap<>();
+        TreeMap<Long, Long> parents = new TreeMap<>();
+        for (ChangeLog changeLog : getLocalChangeLogs()) {
+            changeLogs.put(changeLog.getTimestamp(), changeLog);
+            parents.put(changeLog.getTimestamp(), changeLog.getParent());
+        }
+
+        ChangeLogCompactor.Plan plan = ChangeLogCompactor.plan(parents, horizon,
+                ChangeLogCompactor.replaying(changeLogs));
+        if (plan.isEmpty()) {
+            return 0;
+        }
+
+        for (ChangeLog base : plan.replacements().values()) {
+            Path changeLogFile = svDirManager.getChangeLogFilePath()
+                    .resolve(String.format("%015d.json", base.getTimestamp()));
+            Path tmpFile = changeLogFile.resolveSibling(changeLogFile.getFileName() + ".tmp");
+
+            Files.writeString(tmpFile, base.toJson());
+            Files.move(tmpFile, changeLogFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        for (long timestamp : plan.removed()) {
+            Files.deleteIfExists(svDirManager.getChangeLogFilePath().resolve(String.format("%015d.json", timestamp)));
+        }
+
+        return plan.removed().size();
+    }
+}
@@ -1,17 +1,29 @@
 package org.one_cedrus.manager;
 
+import org.one_cedrus.communication.FileSlice;
 import org.one_cedrus.exception.HashCalculationException;
+import org.one_cedrus.shared.BlobPaths;
+import org.one_cedrus.shared.BlobSweeper;
 import org.one_cedrus.util.HashCalculator;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.function.Predicate;
 
 public class SharedVaultDirManager {
     public static String SHARED_VAULT_REGISTRY_DIRNAME = ".sv";
@@ -37,6 +49,12 @@ public class SharedVaultDirManager {
         Files.createDirectories(svDir);
         Files.createDirectories(filesDir);
         Files.createDirectories(changeLogsDir);
+
+        // Local storage created before the fan-out layout is moved over once
+        int moved = BlobPaths.migrate(filesDir);
+        if (moved > 0) {
+            System.out.println("[INFO]: Moved " + moved + " stored files to the fan-out layout");
+        }
     }
 
     public String calculateFileHash(Path filePath) throws IOException, HashCalculationException {
@@ -68,18 +86,99 @@ public class SharedVaultDirManager {
     }
 
     public void saveFileByHash(String fileHash, byte[] content) throws IOException {
-        Path hashFilePath = filesDir.resolve(fileHash);
+        Path hashFilePath = BlobPaths.resolveForWrite(filesDir, fileHash);
         Files.write(hashFilePath, content);
     }
 
+    /**
+     * Stream a file into local storage. It is hashed while being written to a
+     * temporary file and only renamed to its hash name if the hash matches.
+     */
+    public void saveFileByHash(String fileHash, InputStream content) throws IOException, HashCalculationException {
+        Path tmpFile = Files.createTempFile(filesDir, fileHash, ".tmp");
+
+        try {
+            MessageDigest digest = HashCalculator.newMessageDigest();
+            try (OutputStream outputStream = new DigestOutputStream(Files.newOutputStream(tmpFile), digest)) {
+                content.transferTo(outputStream);
+            }
+
+            String actualHash = HashCalculator.bytesToHex(digest.digest());
+            if (!fileHash.equals(actualHash)) {
+                throw new IOException("Hash mismatch for downloaded file. Expected: " + fileHash + ", Actual: "
+                        + actualHash);
+            }
+
+            Files.move(tmpFile, BlobPaths.resolveForWrite(filesDir, fileHash), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    /**
+     * Rebuild a chunked file into local storage. Each chunk comes from local storage or,
+     * failing that, from a slice of a local file; the result must hash to the file hash.
+     */
+    public void saveFileFromChunks(String fileHash, List<String> chunks, Map<String, FileSlice> localChunks)
+            throws IOException, HashCalculationException {
+        Path tmpFile = Files.createTempFile(filesDir, fileHash, ".tmp");
+
+        try {
+            MessageDigest digest = HashCalculator.newMessageDigest();
+            try (OutputStream outputStream = new DigestOutputStream(Files.newOutputStream(tmpFile), digest)) {
+                for (String chunk : chunks) {
+                    Path storedChunk = BlobPaths.locate(filesDir, chunk);
+                    if (storedChunk != null) {
+                        Files.copy(storedChunk, outputStream);
+                        continue;
+                    }
+
+                    FileSlice slice = localChunks.get(chunk);
+                    if (slice == null) {
+                        throw new IOException("Missing chunk " + chunk);
+                    }
+                    try (FileChannel channel = FileChannel.open(slice.path(), StandardOpenOption.READ)) {
+                        channel.position(slice.offset());
+                        outputStream.write(Channels.newInputStream(channel).readNBytes((int) slice.length()));
+                    }
+                }
+            }
+
+            String actualHash = HashCalculator.bytesToHex(digest.digest());
+            if (!fileHash.equals(actualHash)) {
+                throw new IOException("Hash mismatch for rebuilt file. Expected: " + fileHash + ", Actual: "
+                        + actualHash);
+            }
+
+            Files.move(tmpFile, BlobPaths.resolveForWrite(filesDir, fileHash), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    public void deleteFileByHash(String fileHash) throws IOException {
+        BlobPaths.delete(filesDir, fileHash);
+    }
+
     public boolean hasFileByHash(String fileHash) {
-        return Files.exists(filesDir.resolve(fileHash));
+        return BlobPaths.exists(filesDir, fileHash);
+    }
+
+    /**
+     * Delete stored files that are not live, in batches, keeping files written within
+     * the grace period
+     */
+    public BlobSweeper.Result collectGarbage(Predicate<String> isLive, long graceMillis, int batchSize,
+                                             long pauseMillis) throws IOException, InterruptedException {
+        return BlobSweeper.sweep(filesDir, isLive, this, graceMillis, batchSize, pauseMillis);
     }
 
     public void restoreFileFromHash(String fileHash, Path targetPath) throws IOException {
-        Path hashFilePath = filesDir.resolve(fileHash);
+        Path hashFilePath = BlobPaths.locate(filesDir, fileHash);
 
-        if (!Files.exists(hashFilePath)) {
+        if (hashFilePath == null) {
             throw new IOException("File with hash " + fileHash + " not found in local storage");
         }
 
@@ -1,24 +1,36 @@
 package org.one_cedrus.manager;
 
 import org.one_cedrus.communication.ApiClient;
+import org.one_cedrus.communication.FileSlice;
 import org.one_cedrus.communication.VWebSocketClient;
 import org.one_cedrus.exception.ConfigurationException;
+import org.one_cedrus.exception.HashCalculationException;
 import org.one_cedrus.exception.SyncException;
 import org.one_cedrus.exception.VaultNotInitializedException;
 import org.one_cedrus.service.DirectoryStateService;
+import org.one_cedrus.shared.BlobSweeper;
 import org.one_cedrus.shared.ChangeLog;
+import org.one_cedrus.shared.ContentChunker;
 import org.one_cedrus.shared.FileChange;
 import org.one_cedrus.util.FileWatcher;
 import org.one_cedrus.util.VaultConfig;
 
-import sun.security.krb5.internal.LastReq;
-
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 
 public class VaultManager {
+    private static final int DOWNLOAD_BATCH_SIZE = 1000;
+    // Local history younger than this, or among the newest change logs, is never squashed
+    private static final long LOCAL_RETENTION_MILLIS = 30L * 24 * 60 * 60 * 1000;
+    private static final int LOCAL_KEEP_CHANGE_LOGS = 100;
+    // Local files written more recently than this are never collected
+    private static final long LOCAL_GC_GRACE_MILLIS = 60L * 60 * 1000;
+    private static final int LOCAL_GC_BATCH_SIZE = 500;
+    private static final long LOCAL_GC_BATCH_PAUSE_MILLIS = 50;
+
     private final Path linkedDirPath;
     private final String serverUrl;
 
@@ -62,10 +74,11 @@ public class VaultManager {
             System.out.println("[INFO]: Found " + filesToUpload.size() + " files");
 
             ChangeLog initialCL = changeLogManager.createInitialChangeLog(filesToUpload);
+            Map<String, FileSlice> uploads = prepareUploads(List.of(initialCL));
             changeLogManager.saveChangeLog(initialCL);
 
             System.out.println("[INFO]: Uploading to server...");
-            this.vaultName = apiClient.createVault(initialCL, filesToUpload);
+            this.vaultName = apiClient.createVault(initialCL, uploads);
 
             this.vaultConfig = new VaultConfig(vaultName, serverUrl, debounceSeconds);
             this.vaultConfig.setCurrentChangeLog(initialCL);
@@ -73,7 +86,7 @@ public class VaultManager {
             vaultConfig.saveToFile(svDirManager.getConfigFilePath());
 
             return vaultName;
-        } catch (IOException e) {
+        } catch (IOException | HashCalculationException e) {
             throw new SyncException("Failed to create vault: " + e.getMessage(), e);
         }
     }
@@ -95,7 +108,12 @@ public class VaultManager {
                 }
             }
 
-            syncFromServer();
+            compactLocalHistory();
+            collectLocalGarbage();
+
+            if (!bootstrapFromServer()) {
+                syncFromServer();
+            }
         } catch (Exception e) {
             if (e instanceof ConfigurationException) {
                 throw e;
@@ -117,6 +135,7 @@ public class VaultManager {
                     webSocketURI,
                     vaultName,
                     this::onRemoteChange,
+                    this::onRemoteChangeLogs,
                     code -> {
                         // TODO! Handle reconnect
                     });
@@ -172,10 +191,10 @@ public class VaultManager {
      * Common method to upload changes to server and save them locally
      */
     private void uploadAndSaveChanges(ChangeLog changeLog) {
-        Map<String, Path> filesToUpload = extractFilesFromChangeLog(List.of(changeLog));
-
         try {
+            Map<String, FileSlice> filesToUpload = prepareUploads(List.of(changeLog));
             changeLogManager.saveChangeLog(changeLog);
+            filesToUpload = skipFilesOnServer(filesToUpload);
             // TODO: Implement retry!
             apiClient.syncVault(vaultName, List.of(changeLog), filesToUpload);
             vaultConfig.setCurrentChangeLog(changeLog);
@@ -188,38 +207,89 @@ public class VaultManager {
         }
     }
 
-    private Map<String, Path> extractFilesFromChangeLog(List<ChangeLog> changeLogs) {
-        Map<String, Path> filesToUpload = new HashMap<>();
+    /**
+     * Drop the files the server already stores (reverts, copies, ...) from an upload
+     */
+    private Map<String, FileSlice> skipFilesOnServer(Map<String, FileSlice> filesToUpload) {
+        if (filesToUpload.isEmpty()) {
+            return filesToUpload;
+        }
+
+        try {
+            Set<String> missing = apiClient.getMissingFiles(vaultName, filesToUpload.keySet());
+            Map<String, FileSlice> missingFiles = new HashMap<>(filesToUpload);
+            missingFiles.keySet().retainAll(missing);
+
+            System.out.println("[DEBUG]: Server already has " + (filesToUpload.size() - missingFiles.size()) + " of "
+                    + filesToUpload.size() + " files");
+            return missingFiles;
+        } catch (IOException e) {
+            System.err.println("[ERROR]: Failed to check files on server, uploading all: " + e.getMessage());
+            return filesToUpload;
+        }
+    }
+
+    /**
+     * Blobs to upload for the change logs: small files whole, large files as chunks.
+     * Chunked files get their chunk list recorded in their file change, so this must
+     * run before the change logs are saved or sent.
+     */
+    private Map<String, FileSlice> prepareUploads(List<ChangeLog> changeLogs)
+            throws IOException, HashCalculationException {
+        Map<String, FileSlice> uploads = new HashMap<>();
         for (ChangeLog changeLog : changeLogs) {
-            if (changeLog.getChanges().getAdded() != null) {
-                for (FileChange fileChange : changeLog.getChanges().getAdded()) {
-                    Path filePath = linkedDirPath.resolve(fileChange.getPath());
-                    if (filePath.toFile().exists()) {
-                        filesToUpload.put(fileChange.getHash(), filePath);
-                    }
+            ChangeLog.Changes changes = changeLog.getChanges();
+            for (List<FileChange> fileChanges : Arrays.asList(changes.getAdded(), changes.getModified())) {
+                if (fileChanges == null) {
+                    continue;
                 }
-            }
-            if (changeLog.getChanges().getModified() != null) {
-                for (FileChange fileChange : changeLog.getChanges().getModified()) {
+
+                for (FileChange fileChange : fileChanges) {
                     Path filePath = linkedDirPath.resolve(fileChange.getPath());
-                    if (filePath.toFile().exists()) {
-                        filesToUpload.put(fileChange.getHash(), filePath);
+                    if (!filePath.toFile().exists()) {
+                        continue;
+                    }
+
+                    if (ContentChunker.shouldChunk(Files.size(filePath))) {
+                        ContentChunker.ChunkedFile chunkedFile = ContentChunker.chunk(filePath);
+
+                        // A file changed again since it was hashed is sent whole, as before
+                        if (chunkedFile.hash().equals(fileChange.getHash())) {
+                            fileChange.setChunks(chunkedFile.chunkHashes());
+                            for (ContentChunker.Chunk chunk : chunkedFile.chunks()) {
+                                uploads.put(chunk.hash(), new FileSlice(filePath, chunk.offset(), chunk.length()));
+                            }
+                            continue;
+                        }
                     }
+
+                    uploads.put(fileChange.getHash(), FileSlice.wholeFile(filePath));
                 }
             }
         }
-        return filesToUpload;
+        return uploads;
     }
 
-    private void onRemoteChange(String changedVaultName) {
+    /**
+     * @param head newest change log of the vault, if the server told it
+     */
+    private void onRemoteChange(String changedVaultName, Long head) {
         if (!changedVaultName.equals(vaultName)) {
             return;
         }
+        if (head != null && changeLogManager.hasChangeLog(head)) {
+            // Already up to date, like after our own upload
+            return;
+        }
 
         try {
             watcher.pause();
-            syncFromServer();
-            watcher.start();
+            try {
+                syncFromServer();
+            } finally {
+                // Watch local changes again even if the sync failed
+                watcher.start();
+            }
         } catch (SyncException e) {
             System.err.println("[ERROR]: Failed to sync from server: " + e.getMessage());
         } catch (IOException e) {
@@ -231,6 +301,84 @@ public class VaultManager {
         System.out.println("[INFO]: Remote changes detected in vault '" + changedVaultName + "'");
     }
 
+    /**
+     * Apply change logs pushed by the server. They are applied directly when they extend
+     * the change log the vault is at and no local change is pending; anything else, like
+     * a gap in the parent chain or a concurrent branch, falls back to a full sync.
+     */
+    private void onRemoteChangeLogs(String changedVaultName, List<ChangeLog> pushedChangeLogs) {
+        if (!changedVaultName.equals(vaultName)) {
+            return;
+        }
+
+        List<ChangeLog> chain = findPushedChain(pushedChangeLogs);
+        if (chain != null && chain.isEmpty()) {
+            // Our own uploads coming back
+            return;
+        }
+        if (chain == null || watcher.hasPendingChanges()) {
+            System.out.println("[DEBUG]: Pushed change logs do not follow the local head, syncing");
+            onRemoteChange(changedVaultName, null);
+            return;
+        }
+
+        try {
+            watcher.pause();
+            try {
+                downloadMissingFiles(chain);
+                for (ChangeLog changeLog : chain) {
+                    applyChangeLog(changeLog);
+                    changeLogManager.saveChangeLog(changeLog);
+                }
+                vaultConfig.setCurrentChangeLog(chain.get(chain.size() - 1));
+                vaultConfig.saveToFile(svDirManager.getConfigFilePath());
+            } finally {
+                // Watch local changes again even if applying failed
+                watcher.start();
+            }
+
+            System.out.println("[INFO]: Applied " + chain.size() + " pushed change logs of vault '"
+                    + changedVaultName + "'");
+        } catch (IOException e) {
+            System.err.println("[ERROR]: IO error applying pushed change logs: " + e.getMessage());
+        } catch (Exception e) {
+            System.err.println("[ERROR]: Unexpected error applying pushed change logs: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The pushed change logs that follow the current one and are not stored locally yet,
+     * in order, or null if they do not form one unbroken chain from it
+     */
+    private List<ChangeLog> findPushedChain(List<ChangeLog> pushedChangeLogs) {
+        ChangeLog current = vaultConfig.getCurrentChangeLog();
+        if (current == null || pushedChangeLogs == null) {
+            return null;
+        }
+
+        List<ChangeLog> chain = new ArrayList<>();
+        long head = current.getTimestamp();
+        for (ChangeLog changeLog : pushedChangeLogs.stream().sorted().toList()) {
+            if (changeLog.getTimestamp() == head) {
+                continue;
+            }
+            if (changeLogManager.hasChangeLog(changeLog.getTimestamp())) {
+                // Saved before it was uploaded from here
+                if (changeLog.getParent() == head) {
+                    head = changeLog.getTimestamp();
+                }
+                continue;
+            }
+            if (changeLog.getParent() != head || changeLog.getChanges() == null) {
+                return null;
+            }
+
+            chain.add(changeLog);
+            head = changeLog.getTimestamp();
+        }
+        return chain;
+    }
+
     private boolean isDirChangedSinceLastSync() {
         Map<String, String> currentDirState = directoryStateService.getCurrentDirState();
         Map<String, String> afterDirState = directoryStateService
@@ -239,6 +387,91 @@ public class VaultManager {
         return !currentDirState.equals(afterDirState);
     }
 
+    /**
+     * Squash old local change logs, never past the change log the vault is at
+     */
+    private void compactLocalHistory() {
+        TreeSet<Long> timestamps = changeLogManager.getLocalTimestamps();
+        if (timestamps.size() <= LOCAL_KEEP_CHANGE_LOGS) {
+            return;
+        }
+
+        long newestSquashable = timestamps.descendingSet().stream().skip(LOCAL_KEEP_CHANGE_LOGS).findFirst().get();
+        long horizon = Math.min(System.currentTimeMillis() - LOCAL_RETENTION_MILLIS, newestSquashable);
+        if (vaultConfig.getCurrentChangeLog() != null) {
+            horizon = Math.min(horizon, vaultConfig.getCurrentChangeLog().getTimestamp());
+        }
+
+        try {
+            int removed = changeLogManager.compactLocalChangeLogs(horizon);
+            if (removed > 0) {
+                System.out.println("[INFO]: Squashed " + removed + " old local change logs");
+            }
+        } catch (IOException e) {
+            System.err.println("[ERROR]: Failed to compact local change logs: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Delete files from local storage that no retained local change log uses any more
+     */
+    private void collectLocalGarbage() {
+        Set<String> live = new HashSet<>();
+        for (ChangeLog changeLog : changeLogManager.getLocalChangeLogs()) {
+            BlobSweeper.mark(changeLog, live);
+        }
+
+        try {
+            BlobSweeper.Result result = svDirManager.collectGarbage(live::contains, LOCAL_GC_GRACE_MILLIS,
+                    LOCAL_GC_BATCH_SIZE, LOCAL_GC_BATCH_PAUSE_MILLIS);
+            if (result.deletedBlobs() > 0) {
+                System.out.println("[INFO]: Deleted " + result.deletedBlobs() + " unused local files, reclaiming "
+                        + result.reclaimedBytes() + " bytes in " + result.elapsedMillis() + " ms");
+            }
+        } catch (IOException e) {
+            System.err.println("[ERROR]: Failed to collect unused local files: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Join a vault from its head state instead of replaying its whole history. Only used
+     * for a fresh join into an empty folder; the server sends the live state at its head
+     * as a single base change log together with the files it needs.
+     *
+     * @return false if the folder is not a fresh join or the server cannot bootstrap
+     */
+    private boolean bootstrapFromServer() throws Exception {
+        if (changeLogManager.getNewestLocalTimestamp() != null
+                || !directoryStateService.getCurrentDirState().isEmpty()) {
+            return false;
+        }
+
+        System.out.println("[INFO]: Bootstrapping from the vault head...");
+
+        ChangeLog manifest;
+        try {
+            manifest = apiClient.downloadStatePack(vaultName,
+                    (hash, length, content) -> svDirManager.saveFileByHash(hash, content));
+        } catch (IOException e) {
+            System.err.println("[ERROR]: Bootstrap failed, replaying change logs instead: " + e.getMessage());
+            return false;
+        }
+
+        applyChangeLog(manifest);
+        changeLogManager.saveChangeLog(manifest);
+        vaultConfig.setCurrentChangeLog(manifest);
+        vaultConfig.saveToFile(svDirManager.getConfigFilePath());
+
+        System.out.println("[INFO]: Bootstrapped " + manifest.getChanges().getAdded().size() + " files at version "
+                + manifest.getTimestamp());
+
+        // Pick up anything committed while the pack was streaming
+        syncFromServer();
+        return true;
+    }
+
     private void syncFromServer() throws Exception {
         boolean isDirChangedSinceLastSync = isDirChangedSinceLastSync();
         List<ChangeLog> newChangeLogs = fetchNewChangeLogsFromServer();
@@ -259,6 +492,9 @@ public class VaultManager {
         List<ChangeLog> newChangeLogs;
         if (newestLocalTimestamp != null) {
             newChangeLogs = apiClient.getChangeLogsSince(vaultName, newestLocalTimestamp);
+            if (newChangeLogs == null) {
+                newChangeLogs = fetchHeadStateFromServer(newestLocalTimestamp);
+            }
         } else {
             newChangeLogs = apiClient.getChangeLogs(vaultName);
         }
@@ -273,6 +509,30 @@ public class VaultManager {
         return newChangeLogs;
     }
 
+    /**
+     * Catch up through the state pack when the server no longer has the change logs after
+     * the local head: its manifest is a base change log holding the whole head state, so
+     * deletions in the compacted history are applied too
+     */
+    private List<ChangeLog> fetchHeadStateFromServer(long newestLocalTimestamp) throws Exception {
+        System.out.println("[INFO]: Server compacted the history since " + newestLocalTimestamp
+                + ", bootstrapping from the vault head...");
+
+        ChangeLog manifest = apiClient.downloadStatePack(vaultName,
+                (hash, length, content) -> svDirManager.saveFileByHash(hash, content));
+
+        // Anything committed while the pack was streaming
+        List<ChangeLog> newer = apiClient.getChangeLogsSince(vaultName, manifest.getTimestamp());
+        if (newer == null) {
+            throw new SyncException("Vault head " + manifest.getTimestamp() + " was compacted while bootstrapping");
+        }
+
+        List<ChangeLog> changeLogs = new ArrayList<>();
+        changeLogs.add(manifest);
+        changeLogs.addAll(newer);
+        return changeLogs;
+    }
+
     private List<ChangeLog> determineChangeLogsToApply(List<ChangeLog> newChangeLogs) {
         List<ChangeLog> sortedChangeLogs = newChangeLogs.stream().sorted().toList();
         List<ChangeLog> toApply = new ArrayList<>();
@@ -282,13 +542,20 @@ public class VaultManager {
         // Means this is the first sync or no change logs were found, 
         // also there might be no chance that sortedChangeLogs is empty.
         // But it's better to be safe.
-        if (latestChangeLog == null) {
-            latestChangeLog = sortedChangeLogs.isEmpty() ? null : sortedChangeLogs.get(0); 
-        } 
+        if (latestChangeLog == null && !sortedChangeLogs.isEmpty()) {
+            latestChangeLog = sortedChangeLogs.get(0);
+            toApply.add(latestChangeLog);
+        }
 
         if (latestChangeLog != null) {
           for (ChangeLog changeLog : sortedChangeLogs) {
-                if (changeLog.getParent() == latestChangeLog.getTimestamp()) {
+                if (toApply.contains(changeLog)) {
+                    continue;
+                }
+
+                // Base change logs, from server compaction or a state pack, hold the whole
+                // state and replace whatever the local history led to
+                if (changeLog.getParent() == latestChangeLog.getTimestamp() || changeLog.getParent() == 0) {
                     toApply.add(changeLog);
                 }
 
@@ -321,6 +588,8 @@ public class VaultManager {
         if (isDirChangedSinceLastSync) {
             handleLocalUncommittedChanges();
         } else {
+            downloadMissingFiles(changeLogsToApply);
+
             // Apply remote changes to local directory
             for (ChangeLog changeLog : changeLogsToApply) {
                 applyChangeLog(changeLog);
@@ -368,12 +637,117 @@ public class VaultManager {
         return notCommittedChanges;
     }
 
+    /**
+     * Fetch every file the change logs need and local storage lacks, a batch of files
+     * per request instead of one request per file
+     */
+    private void downloadMissingFiles(List<ChangeLog> changeLogs) throws Exception {
+        Set<String> missingHashes = new LinkedHashSet<>();
+        Map<String, FileChange> chunkedFiles = new LinkedHashMap<>();
+        for (ChangeLog changeLog : changeLogs) {
+            ChangeLog.Changes changes = changeLog.getChanges();
+            for (List<FileChange> fileChanges : Arrays.asList(changes.getAdded(), changes.getModified())) {
+                if (fileChanges == null) {
+                    continue;
+                }
+                for (FileChange fileChange : fileChanges) {
+                    if (svDirManager.hasFileByHash(fileChange.getHash())) {
+                        continue;
+                    }
+
+                    if (fileChange.isChunked()) {
+                        chunkedFiles.putIfAbsent(fileChange.getHash(), fileChange);
+                    } else {
+                        missingHashes.add(fileChange.getHash());
+                    }
+                }
+            }
+        }
+
+        // Chunked files are rebuilt from the unchanged chunks of the local copies, only the
+        // other chunks are downloaded
+        Map<String, FileSlice> localChunks = findLocalChunks(chunkedFiles.values());
+        Set<String> downloadedChunks = new LinkedHashSet<>();
+        for (FileChange fileChange : chunkedFiles.values()) {
+            for (String chunk : fileChange.getChunks()) {
+                if (!localChunks.containsKey(chunk) && !svDirManager.hasFileByHash(chunk)
+                        && !missingHashes.contains(chunk)) {
+                    downloadedChunks.add(chunk);
+                }
+            }
+        }
+        missingHashes.addAll(downloadedChunks);
+
+        if (!missingHashes.isEmpty()) {
+            System.out.println("[INFO]: Downloading " + missingHashes.size() + " files and chunks");
+        }
+
+        List<String> hashes = new ArrayList<>(missingHashes);
+        for (int i = 0; i < hashes.size(); i += DOWNLOAD_BATCH_SIZE) {
+            List<String> batch = hashes.subList(i, Math.min(i + DOWNLOAD_BATCH_SIZE, hashes.size()));
+            apiClient.downloadFiles(vaultName, batch,
+                    (hash, length, content) -> svDirManager.saveFileByHash(hash, content));
+        }
+
+        for (FileChange fileChange : chunkedFiles.values()) {
+            try {
+                svDirManager.saveFileFromChunks(fileChange.getHash(), fileChange.getChunks(), localChunks);
+            } catch (IOException e) {
+                // applyChangeLog downloads the whole file instead
+                System.err.println("[ERROR]: Failed to rebuild " + fileChange.getPath() + " from chunks: "
+                        + e.getMessage());
+            }
+        }
+
+        // Downloaded chunks are only kept until their files are rebuilt
+        for (String chunk : downloadedChunks) {
+            svDirManager.deleteFileByHash(chunk);
+        }
+    }
+
+    /**
+     * Chunks of the local copies of the given files, to rebuild new versions from
+     */
+    private Map<String, FileSlice> findLocalChunks(Collection<FileChange> chunkedFiles) {
+        Map<String, FileSlice> localChunks = new HashMap<>();
+        for (FileChange fileChange : chunkedFiles) {
+            Path localCopy = linkedDirPath.resolve(fileChange.getPath());
+            if (!Files.isRegularFile(localCopy)) {
+                continue;
+            }
+
+            try {
+                for (ContentChunker.Chunk chunk : ContentChunker.chunk(localCopy).chunks()) {
+                    localChunks.putIfAbsent(chunk.hash(), new FileSlice(localCopy, chunk.offset(), chunk.length()));
+                }
+            } catch (IOException | HashCalculationException e) {
+                System.err.println("[ERROR]: Failed to chunk " + localCopy + ": " + e.getMessage());
+            }
+        }
+        return localChunks;
+    }
+
     private void applyChangeLog(ChangeLog changeLog) throws Exception {
         long timestamp = changeLog.getTimestamp();
         ChangeLog.Changes changes = changeLog.getChanges();
 
         System.out.println("[DEBUG]: Applying change log " + timestamp);
 
+        // A base change log lists every live file, anything else was deleted in the history
+        // it replaces
+        if (changeLog.getParent() == 0) {
+            Set<String> livePaths = new HashSet<>();
+            if (changes.getAdded() != null) {
+                changes.getAdded().forEach(fileChange -> livePaths.add(fileChange.getPath()));
+            }
+            for (String relPath : directoryStateService.getCurrentDirState().keySet()) {
+                if (!livePaths.contains(relPath)) {
+                    System.out.println("[INFO]: Deleting: " + relPath);
+                    linkedDirPath.resolve(relPath).toFile().delete();
+                }
+            }
+        }
+
         // Handle added files
         if (changes.getAdded() != null) {
             for (FileChange fileChange : changes.getAdded()) {
@@ -435,19 +809,23 @@ public class VaultManager {
 
     private List<ChangeLog> findCurrentBranchChangeLogs() {
         List<ChangeLog> changeLogs = changeLogManager.getLocalChangeLogs();
-        if (changeLogs.isEmpty()) {
+        ChangeLog tmp = vaultConfig.getCurrentChangeLog();
+        if (changeLogs.isEmpty() || tmp == null) {
             return Collections.emptyList();
         }
 
-        List<ChangeLog> currentBranch = new ArrayList<>();
-        ChangeLog tmp = vaultConfig.getCurrentChangeLog();
+        Map<Long, ChangeLog> byTimestamp = new HashMap<>();
+        for (ChangeLog cl : changeLogs) {
+            byTimestamp.put(cl.getTimestamp(), cl);
+        }
 
+        // Follow parents back to a base change log, which holds the whole state on its own
+        List<ChangeLog> currentBranch = new ArrayList<>();
         currentBranch.add(tmp);
-        for (ChangeLog cl : changeLogs) {
-            if (tmp.getParent() == cl.getTimestamp()) {
-                currentBranch.add(cl);
-                tmp = cl;
-            }
+        while (tmp.getParent() != 0 && tmp.getParent() < tmp.getTimestamp()
+                && byTimestamp.containsKey(tmp.getParent())) {
+            tmp = byTimestamp.get(tmp.getParent());
+            currentBranch.add(tmp);
         }
 
         return currentBranch.stream().sorted().toList();
@@ -0,0 +1,110 @@
+package org.one_cedrus.service;
+
+import org.one_cedrus.shared.BlobSweeper;
+import org.one_cedrus.shared.ChangeLog;
+import org.one_cedrus.storage.BlobPacks;
+import org.one_cedrus.util.ServerConfig;
+import org.one_cedrus.util.VaultUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mark-and-sweep garbage collection of the blob store, running alongside syncs.
+ * <p>
+ * Mark: for each vault, the files used by its retained change logs (after compaction)
+ * are live, and the vault's references to any other file are dropped. Sweep: blobs no
+ * vault references any more are deleted in rate-limited batches (see
+ * {@link BlobSweeper}), and packs holding such blobs are rewritten without them (see
+ * {@link BlobPacks#collect}).
+ * <p>
+ * Uploads in flight are protected by a grace period on blob modification times: new
+ * blobs, and stored blobs a sync is about to reference, are freshened and kept for
+ * {@link ServerConfig#getGcGraceMillis()}. Collection runs offline ({@code gc} server
+ * argument) or in the background every {@link ServerConfig#getGcIntervalMillis()}.
+ */
+public class BlobGarbageCollector {
+
+    /**
+     * Schedule background collection, if enabled
+     */
+    public static void startBackground() {
+        long interval = ServerConfig.getGcIntervalMillis();
+        if (interval <= 0) {
+            return;
+        }
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "blob-gc");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                collect();
+            } catch (Exception e) {
+                System.err.println("[ERROR]: Blob garbage collection failed: " + e.getMessage());
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+
+        System.out.println("[INFO]: Background blob garbage collection every " + interval + " ms");
+    }
+
+    public static synchronized BlobSweeper.Result collect() throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        long grace = ServerConfig.getGcGraceMillis();
+
+        int droppedRefs = 0;
+        File[] vaultDirs = new File("vaults").listFiles(File::isDirectory);
+        if (vaultDirs != null) {
+            for (File vaultDir : vaultDirs) {
+                try {
+                    droppedRefs += BlobIndex.forVault(vaultDir.getName()).dropUnusedRefs(mark(vaultDir.getName()),
+                            grace);
+                } catch (IOException e) {
+                    System.err.println("[ERROR]: Failed to mark files of vault " + vaultDir.getName() + ": "
+                            + e.getMessage());
+                }
+            }
+        }
+
+        BlobSweeper.Result sweep = BlobSweeper.sweep(VaultUtils.getBlobsDir().toPath(),
+                hash -> BlobIndex.refCount(hash) > 0, BlobIndex.REFS_LOCK, grace,
+                ServerConfig.getGcBatchSize(), ServerConfig.getGcBatchPauseMillis());
+        BlobSweeper.Result packSweep = BlobPacks.collect(hash -> BlobIndex.refCount(hash) > 0, BlobIndex.REFS_LOCK,
+                grace);
+
+        int deletedBlobs = sweep.deletedBlobs() + packSweep.deletedBlobs();
+        long reclaimedBytes = sweep.reclaimedBytes() + packSweep.reclaimedBytes();
+        long elapsed = System.currentTimeMillis() - start;
+        BlobMetrics.onCollected(droppedRefs, deletedBlobs, reclaimedBytes, elapsed);
+        System.out.println("[INFO]: Blob garbage collection dropped " + droppedRefs + " references and deleted "
+                + deletedBlobs + " blobs (" + packSweep.deletedBlobs() + " packed), reclaiming " + reclaimedBytes
+                + " bytes in " + elapsed + " ms");
+        return new BlobSweeper.Result(deletedBlobs, reclaimedBytes, elapsed);
+    }
+
+    /**
+     * Files the vault's retained change logs use, including the chunks of chunked files
+     */
+    private static Set<String> mark(String vaultName) throws IOException {
+        Set<String> live = new HashSet<>();
+        VaultUtils.getChangeLogStore(vaultName).forEach((timestamp, json) ->
+                BlobSweeper.mark(ChangeLog.fromJson(json), live));
+
+        // Base change logs from compaction do not list chunks, the manifests do
+        for (String hash : new HashSet<>(live)) {
+            List<String> chunks = VaultUtils.getChunkHashes(vaultName, hash);
+            if (chunks != null) {
+                live.addAll(chunks);
+            }
+        }
+        return live;
+    }
+}
@@ -0,0 +1,201 @@
+package org.one_cedrus.service;
+
+import org.one_cedrus.shared.BlobPaths;
+import org.one_cedrus.util.VaultUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Server-side reference sets: the file hashes each vault references in the global blob
+ * store, kept in memory so existence checks do not touch the disk. Files stored as
+ * chunks are referenced through both their own hash and their chunks' hashes.
+ * <p>
+ * A vault's set is persisted in vaults/&lt;name&gt;/blob_refs, one hash per line in the
+ * order they were added, and read on first use. Blobs still in a vault's own files
+ * directory from before the global store are added to its set at the same time. Across
+ * loaded vaults, the index also counts how many vaults reference each blob.
+ * <p>
+ * References are added and dropped under {@link #REFS_LOCK}, which garbage collection
+ * also holds while it deletes a blob, so a blob is never deleted while a vault is
+ * getting a reference to it.
+ */
+public class BlobIndex {
+    public static final String REFS_FILENAME = "blob_refs";
+    public static final Object REFS_LOCK = new Object();
+
+    private static final Map<String, BlobIndex> indexes = new ConcurrentHashMap<>();
+    private static final Map<String, Integer> refCounts = new ConcurrentHashMap<>();
+
+    private final String vaultName;
+    private final Path refsFile;
+    private final Set<String> hashes = ConcurrentHashMap.newKeySet();
+    private volatile boolean loaded = false;
+
+    private BlobIndex(String vaultName) {
+        this.vaultName = vaultName;
+        this.refsFile = VaultUtils.getVaultDir(vaultName).toPath().resolve(REFS_FILENAME);
+    }
+
+    public static BlobIndex forVault(String vaultName) {
+        BlobIndex index = indexes.computeIfAbsent(vaultName, BlobIndex::new);
+        index.ensureLoaded();
+        return index;
+    }
+
+    /**
+     * Record that a vault references a stored file, whether it was just uploaded or
+     * already stored for another vault
+     */
+    public static void addRef(String vaultName, String hash) throws IOException {
+        forVault(vaultName).add(List.of(hash));
+    }
+
+    /**
+     * Number of vaults referencing a blob, among all vaults
+     */
+    public static int refCount(String hash) {
+        loadAllVaults();
+        return refCounts.getOrDefault(hash, 0);
+    }
+
+    public boolean contains(String hash) {
+        return hashes.contains(hash);
+    }
+
+    public Set<String> hashes() {
+        return Collections.unmodifiableSet(hashes);
+    }
+
+    /**
+     * The subset of the given hashes the vault does not reference, in request order.
+     * Whether other vaults store them is not revealed, and they have to be uploaded. The
+     * others are freshened, so they are not collected before the client's sync records
+     * its change logs.
+     */
+    public List<String> missing(Collection<String> candidates) throws IOException {
+        List<String> missing = new ArrayList<>();
+        for (String hash : new LinkedHashSet<>(candidates)) {
+            synchronized (REFS_LOCK) {
+                if (hashes.contains(hash)) {
+                    VaultUtils.freshenBlob(hash);
+                } else {
+                    missing.add(hash);
+                }
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Drop the vault's references to files it no longer uses, except files freshened
+     * within the grace period
+     *
+     * @return number of references dropped
+     */
+    public int dropUnusedRefs(Set<String> live, long graceMillis) throws IOException {
+        synchronized (REFS_LOCK) {
+            List<String> unused = new ArrayList<>();
+            for (String hash : hashes) {
+                if (!live.contains(hash) && !VaultUtils.isRecentBlob(hash, graceMillis)) {
+                    unused.add(hash);
+                }
+            }
+            if (unused.isEmpty()) {
+                return 0;
+            }
+
+            List<String> kept = new ArrayList<>(hashes);
+            kept.removeAll(new HashSet<>(unused));
+
+            Path tmpFile = refsFile.resolveSibling(REFS_FILENAME + ".tmp");
+            Files.write(tmpFile, kept, StandardCharsets.UTF_8);
+            Files.move(tmpFile, refsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            for (String hash : unused) {
+                hashes.remove(hash);
+                refCounts.computeIfPresent(hash, (key, count) -> count > 1 ? count - 1 : null);
+            }
+            return unused.size();
+        }
+    }
+
+    private void add(Collection<String> newHashes) throws IOException {
+        synchronized (REFS_LOCK) {
+            List<String> added = new ArrayList<>();
+            for (String hash : newHashes) {
+                if (!hashes.contains(hash)) {
+                    added.add(hash);
+                }
+            }
+            if (added.isEmpty()) {
+                return;
+            }
+
+            // Persisted before it becomes visible, so a reference is never lost on restart
+            Files.write(refsFile, added, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+            for (String hash : added) {
+                hashes.add(hash);
+                refCounts.merge(hash, 1, Integer::sum);
+            }
+        }
+    }
+
+    private static void loadAllVaults() {
+        File[] vaultDirs = new File("vaults").listFiles(File::isDirectory);
+        if (vaultDirs == null) {
+            return;
+        }
+
+        for (File vaultDir : vaultDirs) {
+            forVault(vaultDir.getName());
+        }
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+
+        // The same lock as reference changes, since the collector may load vaults while
+        // holding it
+        synchronized (REFS_LOCK) {
+            if (loaded) {
+                return;
+            }
+
+            try {
+                if (Files.exists(refsFile)) {
+                    for (String hash : Files.readAllLines(refsFile, StandardCharsets.UTF_8)) {
+                        if (VaultUtils.isValidHash(hash) && hashes.add(hash)) {
+                            refCounts.merge(hash, 1, Integer::sum);
+                        }
+                    }
+                }
+
+                // Blob names are the hash, possibly followed by a suffix (.gz, .chunks)
+                List<String> legacyHashes = new ArrayList<>();
+                for (Path blob : BlobPaths.list(VaultUtils.getFilesDir(vaultName).toPath())) {
+                    legacyHashes.add(blob.getFileName().toString().substring(0, 64));
+                }
+                add(legacyHashes);
+            } catch (IOException e) {
+                // Files left out are only uploaded again
+                System.err.println("[ERROR]: Failed to load blob references of vault " + vaultName + ": "
+                        + e.getMessage());
+            }
+
+            loaded = true;
+        }
+
+        System.out.println("[DEBUG]: Loaded blob index for vault " + vaultName + ": " + hashes.size() + " files");
+    }
+}
@@ -0,0 +1,98 @@
+package org.one_cedrus.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-wide counters of blob bytes before and after compression, on disk and on the
+ * wire, since the server started. Exposed in Prometheus text format on /metrics.
+ */
+public class BlobMetrics {
+    private static final AtomicLong storedRawBytes = new AtomicLong();
+    private static final AtomicLong storedDiskBytes = new AtomicLong();
+    private static final AtomicLong storedCompressedBlobs = new AtomicLong();
+    private static final AtomicLong storedBlobs = new AtomicLong();
+    private static final AtomicLong deduplicatedBlobs = new AtomicLong();
+    private static final AtomicLong uploadRawBytes = new AtomicLong();
+    private static final AtomicLong uploadWireBytes = new AtomicLong();
+    private static final AtomicLong downloadRawBytes = new AtomicLong();
+    private static final AtomicLong downloadWireBytes = new AtomicLong();
+    private static final AtomicLong gcRuns = new AtomicLong();
+    private static final AtomicLong gcDroppedRefs = new AtomicLong();
+    private static final AtomicLong gcDeletedBlobs = new AtomicLong();
+    private static final AtomicLong gcReclaimedBytes = new AtomicLong();
+    private static final AtomicLong gcMillis = new AtomicLong();
+    private static final AtomicLong packedBlobs = new AtomicLong();
+    private static final AtomicLong packsWritten = new AtomicLong();
+
+    public static void onStored(long rawBytes, long diskBytes, boolean compressed) {
+        storedRawBytes.addAndGet(rawBytes);
+        storedDiskBytes.addAndGet(diskBytes);
+        storedBlobs.incrementAndGet();
+        if (compressed) {
+            storedCompressedBlobs.incrementAndGet();
+        }
+    }
+
+    /**
+     * A vault got a reference to a blob already stored for another vault
+     */
+    public static void onDeduplicated() {
+        deduplicatedBlobs.incrementAndGet();
+    }
+
+    public static void onUploaded(long rawBytes, long wireBytes) {
+        uploadRawBytes.addAndGet(rawBytes);
+        uploadWireBytes.addAndGet(wireBytes);
+    }
+
+    public static void onDownloaded(long rawBytes, long wireBytes) {
+        downloadRawBytes.addAndGet(rawBytes);
+        downloadWireBytes.addAndGet(wireBytes);
+    }
+
+    public static void onCollected(long droppedRefs, long deletedBlobs, long reclaimedBytes, long millis) {
+        gcRuns.incrementAndGet();
+        gcDroppedRefs.addAndGet(droppedRefs);
+        gcDeletedBlobs.addAndGet(deletedBlobs);
+        gcReclaimedBytes.addAndGet(reclaimedBytes);
+        gcMillis.addAndGet(millis);
+    }
+
+    public static void onRepacked(long blobs, long packs) {
+        packedBlobs.addAndGet(blobs);
+        packsWritten.addAndGet(packs);
+    }
+
+    public static String toPrometheusText() {
+        StringBuilder sb = new StringBuilder();
+        counter(sb, "sv_blobs_stored_total", "Blobs written to disk", storedBlobs.get());
+        counter(sb, "sv_blobs_stored_compressed_total", "Blobs written to disk compressed",
+                storedCompressedBlobs.get());
+        counter(sb, "sv_blobs_deduplicated_total", "Blobs referenced by one more vault without storing them again",
+                deduplicatedBlobs.get());
+        counter(sb, "sv_blob_stored_raw_bytes_total", "Uncompressed size of blobs written to disk",
+                storedRawBytes.get());
+        counter(sb, "sv_blob_stored_disk_bytes_total", "Disk space taken by blobs written", storedDiskBytes.get());
+        counter(sb, "sv_blob_upload_raw_bytes_total", "Uncompressed size of uploaded blobs", uploadRawBytes.get());
+        counter(sb, "sv_blob_upload_wire_bytes_total", "Bytes received for uploaded blobs", uploadWireBytes.get());
+        counter(sb, "sv_blob_download_raw_bytes_total", "Uncompressed size of served blobs",
+                downloadRawBytes.get());
+        counter(sb, "sv_blob_download_wire_bytes_total", "Bytes sent for served blobs", downloadWireBytes.get());
+        counter(sb, "sv_gc_runs_total", "Blob garbage collections", gcRuns.get());
+        counter(sb, "sv_gc_dropped_refs_total", "Vault references dropped by garbage collection",
+                gcDroppedRefs.get());
+        counter(sb, "sv_gc_deleted_blobs_total", "Blobs deleted by garbage collection", gcDeletedBlobs.get());
+        counter(sb, "sv_gc_reclaimed_bytes_total", "Disk space reclaimed by garbage collection",
+                gcReclaimedBytes.get());
+        counter(sb, "sv_gc_duration_ms_total", "Time spent in garbage collection", gcMillis.get());
+        counter(sb, "sv_blobs_packed_total", "Loose blobs moved into packs", packedBlobs.get());
+        counter(sb, "sv_packs_written_total", "Packs written by repacking", packsWritten.get());
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+}
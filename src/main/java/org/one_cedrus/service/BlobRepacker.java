@@ -0,0 +1,128 @@
+package org.one_cedrus.service;
+
+import org.one_cedrus.shared.BlobPaths;
+import org.one_cedrus.storage.BlobPacks;
+import org.one_cedrus.util.ServerConfig;
+import org.one_cedrus.util.VaultUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Consolidation of small loose blobs into packs (see {@link BlobPacks}). Only blobs
+ * older than the garbage collection grace period are packed: younger ones may still be
+ * dropped, which is cheaper for a loose file than for a pack entry. Chunk manifests stay
+ * loose.
+ * <p>
+ * Repacking runs offline ({@code repack} server argument) or in the background every
+ * {@link ServerConfig#getPackIntervalMillis()}, and leaves the loose blobs alone until
+ * there are at least {@link ServerConfig#getPackMinBlobs()} of them.
+ */
+public class BlobRepacker {
+
+    /**
+     * Schedule background repacking, if enabled
+     */
+    public static void startBackground() {
+        long interval = ServerConfig.getPackIntervalMillis();
+        if (interval <= 0) {
+            return;
+        }
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "blob-repack");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                repack();
+            } catch (Exception e) {
+                System.err.println("[ERROR]: Blob repacking failed: " + e.getMessage());
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+
+        System.out.println("[INFO]: Background blob repacking every " + interval + " ms");
+    }
+
+    /**
+     * @return number of blobs moved into packs
+     */
+    public static synchronized int repack() throws IOException {
+        long start = System.currentTimeMillis();
+        long maxBlobBytes = ServerConfig.getPackMaxBlobBytes();
+        long targetBytes = ServerConfig.getPackTargetBytes();
+        long cutoff = start - ServerConfig.getGcGraceMillis();
+        Path blobsDir = VaultUtils.getBlobsDir().toPath();
+
+        List<BlobPacks.Source> candidates = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (Path blob : BlobPaths.list(blobsDir)) {
+            String name = blob.getFileName().toString();
+            if (name.endsWith(VaultUtils.CHUNKS_SUFFIX)) {
+                continue;
+            }
+
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(blob, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+            if (attributes.size() > maxBlobBytes || attributes.lastModifiedTime().toMillis() > cutoff) {
+                continue;
+            }
+
+            String hash = name.substring(0, 64);
+            if (BlobPacks.contains(hash)) {
+                // Left behind by a repack interrupted after its pack was written
+                Files.deleteIfExists(blob);
+                continue;
+            }
+            if (seen.add(hash)) {
+                candidates.add(new BlobPacks.Source(hash, blob, name.endsWith(VaultUtils.COMPRESSED_SUFFIX)));
+                sizes.add(attributes.size());
+            }
+        }
+
+        if (candidates.size() < ServerConfig.getPackMinBlobs()) {
+            return 0;
+        }
+
+        int packed = 0;
+        int packs = 0;
+        List<BlobPacks.Source> group = new ArrayList<>();
+        long groupBytes = 0;
+        for (int i = 0; i < candidates.size(); i++) {
+            group.add(candidates.get(i));
+            groupBytes += sizes.get(i);
+            if (groupBytes >= targetBytes) {
+                packed += BlobPacks.write(group);
+                packs++;
+                group = new ArrayList<>();
+                groupBytes = 0;
+            }
+        }
+        if (!group.isEmpty()) {
+            packed += BlobPacks.write(group);
+            packs++;
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        BlobMetrics.onRepacked(packed, packs);
+        System.out.println("[INFO]: Blob repacking moved " + packed + " blobs into " + packs + " packs in " + elapsed
+                + " ms");
+        return packed;
+    }
+}
@@ -0,0 +1,83 @@
+package org.one_cedrus.service;
+
+import org.one_cedrus.shared.BlobPaths;
+import org.one_cedrus.util.VaultUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Online migration of vault files directories, flat or fanned out, into the global blob
+ * store. It runs once in the background after startup while the server keeps serving:
+ * each vault's references are recorded first, and lookups find a blob in the vault's
+ * own directory until it is moved. A blob the store already has is dropped from the
+ * vault instead, so duplicated content across vaults is stored once.
+ */
+public class BlobStoreMigration {
+
+    public static void startBackground() {
+        Thread thread = new Thread(BlobStoreMigration::migrateAllVaults, "blob-store-migration");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static void migrateAllVaults() {
+        // The store was always fanned out, confirming it spares lookups the flat layout
+        try {
+            BlobPaths.migrate(VaultUtils.getBlobsDir().toPath());
+        } catch (IOException e) {
+            System.err.println("[ERROR]: Failed to check the blob store layout: " + e.getMessage());
+        }
+
+        File[] vaultDirs = new File("vaults").listFiles(File::isDirectory);
+        if (vaultDirs == null) {
+            return;
+        }
+
+        for (File vaultDir : vaultDirs) {
+            String vaultName = vaultDir.getName();
+            try {
+                migrateVault(vaultName);
+            } catch (Exception e) {
+                System.err.println("[ERROR]: Failed to migrate files of vault " + vaultName + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void migrateVault(String vaultName) throws IOException {
+        Path filesDir = VaultUtils.getFilesDir(vaultName).toPath();
+        if (!Files.isDirectory(filesDir)) {
+            return;
+        }
+
+        // Loading the index records the vault's references to the blobs about to move
+        BlobIndex.forVault(vaultName);
+
+        Path blobsDir = VaultUtils.getBlobsDir().toPath();
+        int moved = 0;
+        int deduplicated = 0;
+        for (Path blob : BlobPaths.list(filesDir)) {
+            Path target = BlobPaths.resolveForWrite(blobsDir, blob.getFileName().toString());
+            try {
+                if (Files.exists(target)) {
+                    Files.delete(blob);
+                    deduplicated++;
+                } else {
+                    Files.move(blob, target, StandardCopyOption.ATOMIC_MOVE);
+                    moved++;
+                }
+            } catch (NoSuchFileException e) {
+                // Moved within the vault directory by a concurrent lookup, found next run
+            }
+        }
+
+        if (moved + deduplicated > 0) {
+            System.out.println("[INFO]: Migrated files of vault " + vaultName + " to the blob store: " + moved
+                    + " moved, " + deduplicated + " already stored");
+        }
+    }
+}
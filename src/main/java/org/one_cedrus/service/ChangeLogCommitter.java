@@ -0,0 +1,153 @@
+package org.one_cedrus.service;
+
+import org.one_cedrus.communication.VWebSocket;
+import org.one_cedrus.shared.ChangeLog;
+import org.one_cedrus.shared.ChangeLogCodec;
+import org.one_cedrus.util.ServerConfig;
+import org.one_cedrus.util.VaultUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Single writer of each vault's change logs, with group commit. Syncs hand their
+ * validated change logs to {@link #commit(String, List)} and wait. The vault's committer
+ * then takes every commit queued so far as one batch, appends each commit as one unit
+ * (a commit that cannot be encoded or appended fails alone), forces them to disk once,
+ * publishes them to the change log index and checkpoints, and notifies monitoring clients
+ * once for the whole batch, pushing them its change logs.
+ * <p>
+ * A vault always commits on the same thread of a striped pool of
+ * {@link ServerConfig#getCommitThreads()} threads, so different vaults commit in
+ * parallel while commits of one vault never interleave.
+ */
+public class ChangeLogCommitter {
+    private static final Map<String, VaultQueue> queues = new ConcurrentHashMap<>();
+    private static final ExecutorService[] stripes = new ExecutorService[ServerConfig.getCommitThreads()];
+
+    static {
+        for (int i = 0; i < stripes.length; i++) {
+            String name = "commit-" + i;
+            stripes[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private record Commit(List<ChangeLog> changeLogs, CompletableFuture<Void> done) {
+    }
+
+    private static class VaultQueue {
+        final Queue<Commit> pending = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+    }
+
+    /**
+     * Durably save the change logs of a sync, in order. Returns once they are on disk
+     * and visible to readers. A change log that cannot be encoded fails the commit with an
+     * {@link IllegalArgumentException}.
+     */
+    public static void commit(String vaultName, List<ChangeLog> changeLogs) throws IOException, InterruptedException {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        VaultQueue queue = queues.computeIfAbsent(vaultName, name -> new VaultQueue());
+        queue.pending.add(new Commit(changeLogs, done));
+        schedule(vaultName, queue);
+
+        try {
+            done.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (e.getCause() instanceof IllegalArgumentException) {
+                throw new IllegalArgumentException(e.getCause().getMessage(), e.getCause());
+            }
+            throw new IOException("Commit failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private static void schedule(String vaultName, VaultQueue queue) {
+        if (queue.scheduled.compareAndSet(false, true)) {
+            stripes[Math.floorMod(vaultName.hashCode(), stripes.length)].execute(() -> drain(vaultName, queue));
+        }
+    }
+
+    private static void drain(String vaultName, VaultQueue queue) {
+        List<Commit> batch = new ArrayList<>();
+        Commit commit;
+        while ((commit = queue.pending.poll()) != null) {
+            batch.add(commit);
+        }
+
+        try {
+            if (!batch.isEmpty()) {
+                commitBatch(vaultName, batch);
+            }
+        } finally {
+            queue.scheduled.set(false);
+            // Commits queued during this batch go in the next one, behind other vaults
+            if (!queue.pending.isEmpty()) {
+                schedule(vaultName, queue);
+            }
+        }
+    }
+
+    private static void commitBatch(String vaultName, List<Commit> batch) {
+        // Each commit is checked and appended on its own, so a bad one only fails its sync
+        List<Commit> appended = new ArrayList<>(batch.size());
+        int changeLogCount = 0;
+        for (Commit commit : batch) {
+            try {
+                for (ChangeLog changeLog : commit.changeLogs()) {
+                    ChangeLogCodec.validate(changeLog);
+                }
+                VaultUtils.getChangeLogStore(vaultName).appendAll(commit.changeLogs());
+            } catch (Exception e) {
+                System.err.println("[ERROR]: Failed to commit change logs of vault " + vaultName + ": "
+                        + e.getMessage());
+                commit.done().completeExceptionally(e);
+                continue;
+            }
+            appended.add(commit);
+            changeLogCount += commit.changeLogs().size();
+        }
+        if (appended.isEmpty()) {
+            return;
+        }
+
+        try {
+            VaultUtils.getChangeLogStore(vaultName).sync();
+
+            for (Commit commit : appended) {
+                for (ChangeLog changeLog : commit.changeLogs()) {
+                    ChangeLogIndex.onChangeLogSaved(vaultName, changeLog);
+                    CheckpointService.onChangeLogSaved(vaultName, changeLog, changeLog.toJson().length());
+                }
+            }
+        } catch (Exception e) {
+            // Appended but maybe not durable, they are saved again by the clients' retries
+            System.err.println("[ERROR]: Failed to sync change logs of vault " + vaultName + ": "
+                    + e.getMessage());
+            for (Commit commit : appended) {
+                commit.done().completeExceptionally(e);
+            }
+            return;
+        }
+
+        List<ChangeLog> committed = new ArrayList<>(changeLogCount);
+        for (Commit commit : appended) {
+            committed.addAll(commit.changeLogs());
+            commit.done().complete(null);
+        }
+        System.out.println("[DEBUG]: Committed " + changeLogCount + " change logs from " + appended.size()
+                + " syncs to vault " + vaultName);
+        VWebSocket.notifyChange(vaultName, committed);
+    }
+}
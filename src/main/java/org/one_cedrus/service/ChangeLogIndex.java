@@ -0,0 +1,286 @@
+package org.one_cedrus.service;
+
+import org.one_cedrus.shared.ChangeLog;
+import org.one_cedrus.storage.ChangeLogStore;
+import org.one_cedrus.util.ServerConfig;
+import org.one_cedrus.util.VaultUtils;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Server-side in-memory index of the change logs of a vault, sorted by timestamp.
+ * Entries keep the serialized JSON as stored on disk so responses can be built without
+ * re-parsing. A vault index is loaded lazily from the vault's change log store on first
+ * use, and the least recently used vault indexes are evicted once all loaded indexes
+ * exceed the memory budget. A vault that does not fit in the budget on its own is read
+ * straight from its store.
+ */
+public class ChangeLogIndex {
+    // Rough per-entry overhead of a skip list node plus the boxed key and String header
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private static final LinkedHashMap<String, ChangeLogIndex> indexes = new LinkedHashMap<>(16, 0.75f, true);
+    private static long loadedBytes = 0;
+
+    private final String vaultName;
+    private final ConcurrentSkipListMap<Long, String> entries = new ConcurrentSkipListMap<>();
+    private volatile boolean loaded = false;
+    private volatile boolean bypassed = false;
+    private long sizeBytes = 0;
+    private volatile long generation = 0;
+
+    private ChangeLogIndex(String vaultName) {
+        this.vaultName = vaultName;
+    }
+
+    /**
+     * Get the index of a vault, loading it from disk if it is not in memory yet
+     */
+    public static ChangeLogIndex forVault(String vaultName) throws IOException {
+        ChangeLogIndex index;
+        synchronized (indexes) {
+            index = indexes.computeIfAbsent(vaultName, ChangeLogIndex::new);
+        }
+
+        index.ensureLoaded();
+        return index;
+    }
+
+    /**
+     * Record a change log that has just been saved to disk. Vaults whose index is not
+     * in memory are skipped, they will pick the change log up when loaded.
+     */
+    public static void onChangeLogSaved(String vaultName, ChangeLog changeLog) {
+        ChangeLogIndex index;
+        synchronized (indexes) {
+            index = indexes.get(vaultName);
+        }
+
+        if (index != null) {
+            index.put(changeLog.getTimestamp(), changeLog.toJson());
+        }
+    }
+
+    /**
+     * Drop the in-memory index of a vault after its history was rewritten, it is
+     * reloaded from storage on next use
+     */
+    public static void invalidate(String vaultName) {
+        synchronized (indexes) {
+            ChangeLogIndex index = indexes.remove(vaultName);
+            if (index != null) {
+                loadedBytes -= index.sizeBytes;
+            }
+        }
+    }
+
+    /**
+     * Visit the serialized change logs with a timestamp strictly greater than the given
+     * one, in chronological order. Nothing is copied, so callers can stream them out.
+     */
+    public void forEachSince(long timestamp, ChangeLogStore.Visitor visitor) throws IOException {
+        if (bypassed) {
+            readSorted(timestamp, visitor);
+            return;
+        }
+
+        for (Map.Entry<Long, String> entry : entries.tailMap(timestamp, false).entrySet()) {
+            visitor.visit(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Whether the change logs are held in memory rather than read from storage
+     */
+    public boolean inMemory() {
+        return !bypassed;
+    }
+
+    /**
+     * Changes whenever a change log is replaced or inserted before the newest one. Runs
+     * of consecutive change logs read while it stays the same are still current.
+     */
+    public long generation() {
+        return generation;
+    }
+
+    /**
+     * Serialized change log with exactly the given timestamp, or null
+     */
+    public String at(long timestamp) throws IOException {
+        if (bypassed) {
+            return VaultUtils.getChangeLogStore(vaultName).get(timestamp);
+        }
+        return entries.get(timestamp);
+    }
+
+    /**
+     * Timestamp of the oldest change log still stored, or null if the vault has none
+     */
+    public Long oldestTimestamp() throws IOException {
+        if (bypassed) {
+            Long[] oldest = {null};
+            VaultUtils.getChangeLogStore(vaultName).forEach((timestamp, json) -> {
+                if (oldest[0] == null || timestamp < oldest[0]) {
+                    oldest[0] = timestamp;
+                }
+            });
+            return oldest[0];
+        }
+
+        Map.Entry<Long, String> oldest = entries.firstEntry();
+        return oldest == null ? null : oldest.getKey();
+    }
+
+    /**
+     * Serialized newest change log, or null if the vault has none
+     */
+    public String latest() throws IOException {
+        if (bypassed) {
+            TreeMap<Long, String> changeLogs = new TreeMap<>();
+            VaultUtils.getChangeLogStore(vaultName).forEach((timestamp, json) -> {
+                if (changeLogs.isEmpty() || timestamp >= changeLogs.firstKey()) {
+                    changeLogs.clear();
+                    changeLogs.put(timestamp, json);
+                }
+            });
+            return changeLogs.isEmpty() ? null : changeLogs.firstEntry().getValue();
+        }
+
+        Map.Entry<Long, String> latest = entries.lastEntry();
+        return latest == null ? null : latest.getValue();
+    }
+
+    /**
+     * Stream change logs from storage in chronological order, holding only their
+     * timestamps in memory. Storage order is usually chronological already and is then
+     * streamed as it is, otherwise each change log is looked up in timestamp order.
+     */
+    private void readSorted(long sinceTimestamp, ChangeLogStore.Visitor visitor) throws IOException {
+        ChangeLogStore store = VaultUtils.getChangeLogStore(vaultName);
+
+        List<Long> timestamps = new ArrayList<>();
+        boolean[] sorted = {true};
+        store.forEachSince(sinceTimestamp, (timestamp, json) -> {
+            if (!timestamps.isEmpty() && timestamp <= timestamps.get(timestamps.size() - 1)) {
+                sorted[0] = false;
+            }
+            timestamps.add(timestamp);
+        });
+
+        if (sorted[0]) {
+            store.forEachSince(sinceTimestamp, visitor);
+            return;
+        }
+
+        // A timestamp stored twice was replaced, the lookup returns its latest version
+        for (long timestamp : new TreeSet<>(timestamps)) {
+            String json = store.get(timestamp);
+            if (json != null) {
+                visitor.visit(timestamp, json);
+            }
+        }
+    }
+
+    private void ensureLoaded() throws IOException {
+        if (loaded) {
+            return;
+        }
+
+        long budget = ServerConfig.getChangeLogIndexBudgetBytes();
+
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+
+            try {
+                VaultUtils.getChangeLogStore(vaultName).forEach((timestamp, json) -> {
+                    putEntry(timestamp, json);
+                    if (sizeBytes > budget) {
+                        throw new BudgetExceededException();
+                    }
+                });
+            } catch (BudgetExceededException e) {
+                // This vault alone does not fit, serve it straight from storage instead
+                System.out.println("[INFO]: Change log index for vault " + vaultName
+                        + " exceeds the memory budget, reading from storage");
+                entries.clear();
+                sizeBytes = 0;
+                bypassed = true;
+            }
+
+            loaded = true;
+        }
+
+        System.out.println("[DEBUG]: Loaded change log index for vault " + vaultName + ": " + entries.size()
+                + " entries, " + sizeBytes + " bytes");
+        accountAndEvict(sizeBytes);
+    }
+
+    private void put(long timestamp, String json) {
+        long delta;
+        synchronized (this) {
+            if (!loaded || bypassed) {
+                return;
+            }
+
+            long before = sizeBytes;
+            putEntry(timestamp, json);
+            delta = sizeBytes - before;
+        }
+
+        accountAndEvict(delta);
+    }
+
+    private void putEntry(long timestamp, String json) {
+        if (!entries.isEmpty() && timestamp <= entries.lastKey()) {
+            generation++;
+        }
+        String previous = entries.put(timestamp, json);
+        if (previous != null) {
+            sizeBytes -= entrySize(previous);
+        }
+        sizeBytes += entrySize(json);
+    }
+
+    private void accountAndEvict(long delta) {
+        long budget = ServerConfig.getChangeLogIndexBudgetBytes();
+
+        synchronized (indexes) {
+            if (indexes.get(vaultName) != this) {
+                // Already evicted while loading
+                return;
+            }
+
+            loadedBytes += delta;
+
+            // Evict least recently used vaults first, but always keep the one in use
+            Iterator<Map.Entry<String, ChangeLogIndex>> iterator = indexes.entrySet().iterator();
+            while (loadedBytes > budget && iterator.hasNext()) {
+                ChangeLogIndex eldest = iterator.next().getValue();
+                if (eldest == this || !eldest.loaded) {
+                    continue;
+                }
+
+                iterator.remove();
+                loadedBytes -= eldest.sizeBytes;
+                System.out.println("[DEBUG]: Evicted change log index for vault " + eldest.vaultName);
+            }
+        }
+    }
+
+    private static long entrySize(String json) {
+        return ENTRY_OVERHEAD_BYTES + 2L * json.length();
+    }
+
+    private static class BudgetExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        BudgetExceededException() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package org.one_cedrus.service;
+
+import org.one_cedrus.shared.ChangeLog;
+import org.one_cedrus.shared.ChangeLogCodec;
+import org.one_cedrus.util.GzipSegmentOutputStream;
+import org.one_cedrus.util.ServerConfig;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+/**
+ * Writer of change log responses, with a cache of precompressed batches for gzip ones.
+ * <p>
+ * The change logs of a vault are cut into batches of
+ * {@link ServerConfig#getChangeLogCacheBatch()} consecutive change logs, counted from the
+ * oldest one. A full batch never changes until the vault history is rewritten, so it is
+ * compressed once, on first use, and its deflate segment is then spliced into every gzip
+ * response covering it (see {@link GzipSegmentOutputStream}). Only the parts of a response
+ * outside full batches are compressed per request. The least recently used batches are
+ * dropped once they exceed {@link ServerConfig#getChangeLogCacheBudgetBytes()}.
+ */
+public class ChangeLogResponseCache {
+    private static final Map<String, Batches> batches = new ConcurrentHashMap<>();
+    private static final LinkedHashMap<SegmentKey, GzipSegmentOutputStream.Segment> segments =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private static long cachedBytes = 0;
+
+    /**
+     * Encoding of a change log response
+     */
+    public enum Format {
+        JSON {
+            @Override
+            void begin(OutputStream out) throws IOException {
+                out.write('[');
+            }
+
+            @Override
+            void entry(OutputStream out, String changeLogJson, boolean first) throws IOException {
+                if (!first) {
+                    out.write(',');
+                }
+                out.write(changeLogJson.getBytes(StandardCharsets.UTF_8));
+            }
+
+            @Override
+            void end(OutputStream out) throws IOException {
+                out.write(']');
+            }
+        },
+        BINARY {
+            @Override
+            void begin(OutputStream out) throws IOException {
+                ChangeLogCodec.writeHeader(out);
+            }
+
+            @Override
+            void entry(OutputStream out, String changeLogJson, boolean first) throws IOException {
+                ChangeLogCodec.writeRecord(out, ChangeLog.fromJson(changeLogJson));
+            }
+
+            @Override
+            void end(OutputStream out) throws IOException {
+                ChangeLogCodec.writeEnd(out);
+            }
+        };
+
+        abstract void begin(OutputStream out) throws IOException;
+
+        abstract void entry(OutputStream out, String changeLogJson, boolean first) throws IOException;
+
+        abstract void end(OutputStream out) throws IOException;
+    }
+
+    private record SegmentKey(String vaultName, Batches batches, long first, Format format) {
+    }
+
+    /**
+     * Full batches of one version of a vault's change log index, by timestamp of their
+     * first change log
+     */
+    private static class Batches {
+        final ChangeLogIndex index;
+        final long generation;
+        final Map<Long, Long> lastByFirst = new ConcurrentHashMap<>();
+        long sealedUpTo = Long.MIN_VALUE;
+
+        Batches(ChangeLogIndex index, long generation) {
+            this.index = index;
+            this.generation = generation;
+        }
+
+        /**
+         * Cut the change logs appended since the last call into batches
+         */
+        synchronized void extend(int batchSize) throws IOException {
+            long[] pending = new long[1];
+            int[] count = {0};
+            index.forEachSince(sealedUpTo, (timestamp, json) -> {
+                if (count[0] == 0) {
+                    pending[0] = timestamp;
+                }
+                count[0]++;
+                if (count[0] == batchSize) {
+                    lastByFirst.put(pending[0], timestamp);
+                    sealedUpTo = timestamp;
+                    count[0] = 0;
+                }
+            });
+        }
+
+        boolean isCurrent() {
+            return index.generation() == generation;
+        }
+    }
+
+    /**
+     * Write the change logs with a timestamp strictly greater than the given one
+     */
+    public static void write(ChangeLogIndex index, long sinceTimestamp, Format format, OutputStream out)
+            throws IOException {
+        OutputStream buffered = new BufferedOutputStream(out, 64 * 1024);
+        format.begin(buffered);
+        boolean[] first = {true};
+        index.forEachSince(sinceTimestamp, (timestamp, json) -> {
+            format.entry(buffered, json, first[0]);
+            first[0] = false;
+        });
+        format.end(buffered);
+        buffered.flush();
+    }
+
+    /**
+     * Write the change logs with a timestamp strictly greater than the given one as a
+     * gzip stream, taking full batches from the cache
+     */
+    public static void writeGzip(String vaultName, ChangeLogIndex index, long sinceTimestamp, Format format,
+                                 OutputStream out) throws IOException {
+        GzipSegmentOutputStream gzip = new GzipSegmentOutputStream(out, Deflater.DEFAULT_COMPRESSION);
+        OutputStream live = new BufferedOutputStream(gzip, 64 * 1024);
+
+        Batches vaultBatches = batchesOf(vaultName, index);
+        if (vaultBatches == null) {
+            write(index, sinceTimestamp, format, gzip);
+            gzip.close();
+            return;
+        }
+
+        format.begin(live);
+        BatchWriter writer = new BatchWriter(vaultName, vaultBatches, format, gzip, live);
+        index.forEachSince(sinceTimestamp, writer::visit);
+        writer.finish();
+        format.end(live);
+        live.flush();
+        gzip.close();
+    }
+
+    /**
+     * Splits the change logs of a response into live parts and cached batches. A batch
+     * is only taken from the cache after the first change log of the response, whose
+     * encoding differs from the others.
+     */
+    private static class BatchWriter {
+        private final String vaultName;
+        private final Batches batches;
+        private final Format format;
+        private final GzipSegmentOutputStream gzip;
+        private final OutputStream live;
+
+        private boolean first = true;
+        private long batchFirst;
+        private long batchLast;
+        private boolean skipping = false;
+        private ByteArrayOutputStream collecting = null;
+
+        BatchWriter(String vaultName, Batches batches, Format format, GzipSegmentOutputStream gzip,
+                    OutputStream live) {
+            this.vaultName = vaultName;
+            this.batches = batches;
+            this.format = format;
+            this.gzip = gzip;
+            this.live = live;
+        }
+
+        void visit(long timestamp, String json) throws IOException {
+            if (!skipping && collecting == null && !first) {
+                Long last = batches.lastByFirst.get(timestamp);
+                if (last != null) {
+                    startBatch(timestamp, last);
+                }
+            }
+
+            if (skipping) {
+                // Already written from the cache
+            } else if (collecting != null) {
+                format.entry(collecting, json, false);
+            } else {
+                format.entry(live, json, first);
+            }
+            first = false;
+
+            if ((skipping || collecting != null) && timestamp == batchLast) {
+                endBatch();
+            }
+        }
+
+        /**
+         * Write out a batch cut short by a concurrent rewrite of the history
+         */
+        void finish() throws IOException {
+            if (collecting != null) {
+                collecting.writeTo(live);
+                collecting = null;
+            }
+            skipping = false;
+        }
+
+        private void startBatch(long first, long last) throws IOException {
+            batchFirst = first;
+            batchLast = last;
+
+            GzipSegmentOutputStream.Segment segment = getSegment(new SegmentKey(vaultName, batches, first, format));
+            if (segment != null) {
+                live.flush();
+                gzip.writeSegment(segment);
+                skipping = true;
+            } else {
+                collecting = new ByteArrayOutputStream();
+            }
+        }
+
+        private void endBatch() throws IOException {
+            if (collecting != null) {
+                GzipSegmentOutputStream.Segment segment = GzipSegmentOutputStream.compress(
+                        collecting.toByteArray(), 0, collecting.size(), Deflater.BEST_COMPRESSION);
+                collecting = null;
+                if (batches.isCurrent()) {
+                    putSegment(new SegmentKey(vaultName, batches, batchFirst, format), segment);
+                }
+                live.flush();
+                gzip.writeSegment(segment);
+            }
+            skipping = false;
+        }
+    }
+
+    /**
+     * Batches of the current version of a vault's index, or null if its change logs are
+     * not cached
+     */
+    private static Batches batchesOf(String vaultName, ChangeLogIndex index) throws IOException {
+        if (ServerConfig.getChangeLogCacheBudgetBytes() <= 0 || !index.inMemory()) {
+            return null;
+        }
+
+        Batches current = batches.get(vaultName);
+        if (current == null || current.index != index || !current.isCurrent()) {
+            Batches fresh = new Batches(index, index.generation());
+            if (current == null ? batches.putIfAbsent(vaultName, fresh) == null
+                    : batches.replace(vaultName, current, fresh)) {
+                dropSegments(vaultName);
+            }
+            current = batches.get(vaultName);
+        }
+
+        current.extend(ServerConfig.getChangeLogCacheBatch());
+        return current;
+    }
+
+    private static GzipSegmentOutputStream.Segment getSegment(SegmentKey key) {
+        synchronized (segments) {
+            return segments.get(key);
+        }
+    }
+
+    private static void putSegment(SegmentKey key, GzipSegmentOutputStream.Segment segment) {
+        long budget = ServerConfig.getChangeLogCacheBudgetBytes();
+        synchronized (segments) {
+            GzipSegmentOutputStream.Segment previous = segments.put(key, segment);
+            if (previous != null) {
+                cachedBytes -= previous.deflated().length;
+            }
+            cachedBytes += segment.deflated().length;
+
+            Iterator<GzipSegmentOutputStream.Segment> iterator = segments.values().iterator();
+            while (cachedBytes > budget && iterator.hasNext()) {
+                cachedBytes -= iterator.next().deflated().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    private static void dropSegments(String vaultName) {
+        synchronized (segments) {
+            Iterator<Map.Entry<SegmentKey, GzipSegmentOutputStream.Segment>> iterator =
+                    segments.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<SegmentKey, GzipSegmentOutputStream.Segment> entry = iterator.next();
+                if (entry.getKey().vaultName().equals(vaultName)) {
+                    cachedBytes -= entry.getValue().deflated().length;
+                    iterator.remove();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package org.one_cedrus.service;
+
+import org.one_cedrus.shared.ChangeLog;
+import org.one_cedrus.util.ServerConfig;
+import org.one_cedrus.util.VaultUtils;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+/**
+ * Materialized directory states (path -> hash) of a vault, saved at some change logs so
+ * state queries only replay the deltas after the nearest checkpoint.
+ * <p>
+ * A checkpoint is taken every {@link ServerConfig#getCheckpointIntervalChangeLogs()}
+ * change logs or {@link ServerConfig#getCheckpointIntervalBytes()} bytes of deltas,
+ * whichever comes first, in the background. Checkpoints live in
+ * vaults/&lt;name&gt;/checkpoints/&lt;timestamp&gt;.ckpt with paths sorted and
+ * prefix-compressed, and hashes stored as 32 raw bytes.
+ */
+public class CheckpointService {
+    public static final String CHECKPOINTS_DIRNAME = "checkpoints";
+    private static final String CHECKPOINT_SUFFIX = ".ckpt";
+    private static final int MAGIC = 0x53564350; // "SVCP"
+    private static final int VERSION = 1;
+
+    private static final Map<String, CheckpointService> services = new ConcurrentHashMap<>();
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "checkpoint-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String vaultName;
+    private final Path checkpointsDir;
+    private final ConcurrentSkipListSet<Long> timestamps = new ConcurrentSkipListSet<>();
+
+    // Deltas committed since the last checkpoint, across all branches
+    private long pendingChangeLogs = 0;
+    private long pendingBytes = 0;
+
+    private CheckpointService(String vaultName) {
+        this.vaultName = vaultName;
+        this.checkpointsDir = VaultUtils.getVaultDir(vaultName).toPath().resolve(CHECKPOINTS_DIRNAME);
+    }
+
+    public static CheckpointService forVault(String vaultName) {
+        return services.computeIfAbsent(vaultName, name -> {
+            CheckpointService service = new CheckpointService(name);
+            service.loadTimestamps();
+            return service;
+        });
+    }
+
+    /**
+     * Count a committed change log towards the next checkpoint, and take that checkpoint
+     * in the background once the interval is reached
+     */
+    public static void onChangeLogSaved(String vaultName, ChangeLog changeLog, long sizeBytes) {
+        CheckpointService service = forVault(vaultName);
+
+        synchronized (service) {
+            service.pendingChangeLogs++;
+            service.pendingBytes += sizeBytes;
+            if (!isDue(service.pendingChangeLogs, service.pendingBytes)) {
+                return;
+            }
+
+            service.pendingChangeLogs = 0;
+            service.pendingBytes = 0;
+        }
+
+        executor.submit(() -> {
+            try {
+                service.save(changeLog.getTimestamp(), VaultStateService.getStateAt(vaultName, changeLog));
+            } catch (Exception e) {
+                System.err.println("[ERROR]: Failed to checkpoint vault " + vaultName + " at "
+                        + changeLog.getTimestamp() + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Delete the checkpoints of change logs that compaction removed
+     */
+    public static void onCompacted(String vaultName, Set<Long> removed) {
+        CheckpointService service = forVault(vaultName);
+
+        for (long timestamp : removed) {
+            if (!service.timestamps.remove(timestamp)) {
+                continue;
+            }
+
+            try {
+                Files.deleteIfExists(service.checkpointFile(timestamp));
+            } catch (IOException e) {
+                System.err.println("[ERROR]: Failed to delete checkpoint " + timestamp + " of vault " + vaultName
+                        + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Whether replaying this many deltas is enough to warrant a checkpoint
+     */
+    public static boolean isDue(long changeLogs, long bytes) {
+        return changeLogs >= ServerConfig.getCheckpointIntervalChangeLogs()
+                || bytes >= ServerConfig.getCheckpointIntervalBytes();
+    }
+
+    public boolean has(long timestamp) {
+        return timestamps.contains(timestamp);
+    }
+
+    /**
+     * Save a checkpoint in the background, e.g. after a long replay
+     */
+    public void saveAsync(long timestamp, Map<String, String> dirState) {
+        if (has(timestamp)) {
+            return;
+        }
+
+        Map<String, String> snapshot = new HashMap<>(dirState);
+        executor.submit(() -> {
+            try {
+                save(timestamp, snapshot);
+            } catch (IOException e) {
+                System.err.println("[ERROR]: Failed to checkpoint vault " + vaultName + " at " + timestamp + ": "
+                        + e.getMessage());
+            }
+        });
+    }
+
+    public void save(long timestamp, Map<String, String> dirState) throws IOException {
+        if (has(timestamp)) {
+            return;
+        }
+
+        for (String hash : dirState.values()) {
+            if (!VaultUtils.isValidHash(hash)) {
+                System.err.println("[ERROR]: Not checkpointing vault " + vaultName + " at " + timestamp
+                        + ", state has an invalid hash: " + hash);
+                return;
+            }
+        }
+
+        Files.createDirectories(checkpointsDir);
+        Path checkpointFile = checkpointFile(timestamp);
+        Path tmpFile = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+
+        try (FileOutputStream fileOut = new FileOutputStream(tmpFile.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(timestamp);
+            out.writeInt(dirState.size());
+
+            String previousPath = "";
+            for (Map.Entry<String, String> entry : new TreeMap<>(dirState).entrySet()) {
+                String path = entry.getKey();
+                int prefix = commonPrefixLength(previousPath, path);
+
+                out.writeShort(prefix);
+                out.writeUTF(path.substring(prefix));
+                out.write(HexFormat.of().parseHex(entry.getValue()));
+                previousPath = path;
+            }
+
+            // Durable before the rename, so a crash cannot leave a truncated checkpoint in place
+            out.flush();
+            fileOut.getChannel().force(false);
+        }
+
+        Files.move(tmpFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        timestamps.add(timestamp);
+
+        System.out.println("[DEBUG]: Checkpointed vault " + vaultName + " at " + timestamp + " with "
+                + dirState.size() + " files");
+    }
+
+    /**
+     * @return the directory state of the checkpoint, or null if it cannot be read, in which
+     * case it is discarded to be rebuilt
+     */
+    public Map<String, String> load(long timestamp) {
+        Path checkpointFile = checkpointFile(timestamp);
+
+        try {
+            return read(checkpointFile, timestamp);
+        } catch (IOException e) {
+            System.err.println("[ERROR]: Discarding unreadable checkpoint " + timestamp + " of vault " + vaultName
+                    + ": " + e.getMessage());
+            timestamps.remove(timestamp);
+            try {
+                Files.deleteIfExists(checkpointFile);
+            } catch (IOException deleteError) {
+                System.err.println("[ERROR]: Failed to delete checkpoint " + timestamp + " of vault " + vaultName
+                        + ": " + deleteError.getMessage());
+            }
+            return null;
+        }
+    }
+
+    private static Map<String, String> read(Path checkpointFile, long timestamp) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(checkpointFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != timestamp) {
+                throw new IOException("Invalid checkpoint file: " + checkpointFile);
+            }
+
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("Invalid checkpoint file: " + checkpointFile);
+            }
+
+            Map<String, String> dirState = new HashMap<>();
+            String previousPath = "";
+            byte[] hash = new byte[32];
+
+            for (int i = 0; i < count; i++) {
+                int prefix = in.readUnsignedShort();
+                if (prefix > previousPath.length()) {
+                    throw new IOException("Invalid checkpoint file: " + checkpointFile);
+                }
+                String path = previousPath.substring(0, prefix) + in.readUTF();
+                in.readFully(hash);
+                dirState.put(path, HexFormat.of().formatHex(hash));
+                previousPath = path;
+            }
+            return dirState;
+        }
+    }
+
+    private Path checkpointFile(long timestamp) {
+        return checkpointsDir.resolve(String.format("%015d%s", timestamp, CHECKPOINT_SUFFIX));
+    }
+
+    private void loadTimestamps() {
+        if (!Files.isDirectory(checkpointsDir)) {
+            return;
+        }
+
+        try (Stream<Path> paths = Files.list(checkpointsDir)) {
+            paths.map(path -> path.getFileName().toString())
+                    .filter(name -> name.endsWith(CHECKPOINT_SUFFIX))
+                    .forEach(name -> timestamps.add(
+                            Long.parseLong(name.substring(0, name.length() - CHECKPOINT_SUFFIX.length()))));
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("[ERROR]: Failed to list checkpoints of vault " + vaultName + ": " + e.getMessage());
+        }
+    }
+
+    private static int commonPrefixLength(String a, String b) {
+        int max = Math.min(Math.min(a.length(), b.length()), 0xFFFF);
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,124 @@
+package org.one_cedrus.service;
+
+import org.one_cedrus.shared.ChangeLog;
+import org.one_cedrus.shared.ChangeLogCompactor;
+import org.one_cedrus.storage.ChangeLogStore;
+import org.one_cedrus.util.ServerConfig;
+import org.one_cedrus.util.VaultUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Server-side change log compaction. Change logs older than the retention policy are
+ * squashed into synthetic base logs (see {@link ChangeLogCompactor}), so full-history
+ * reads skip entries that later change logs already superseded.
+ * <p>
+ * The policy keeps every change log younger than {@link ServerConfig#getCompactionRetentionMillis()}
+ * and the newest {@link ServerConfig#getCompactionKeepChangeLogs()} ones, and only
+ * compacts a vault once at least {@link ServerConfig#getCompactionMinChangeLogs()} change
+ * logs can go. Compaction runs offline ({@code compact} server argument) or in the
+ * background every {@link ServerConfig#getCompactionIntervalMillis()}. Syncs keep going
+ * while a vault is compacted, the store only locks appends to swap the result in.
+ */
+public class CompactionService {
+    private static final Map<String, Object> vaultLocks = new ConcurrentHashMap<>();
+
+    /**
+     * Schedule background compaction of all vaults, if enabled
+     */
+    public static void startBackground() {
+        long interval = ServerConfig.getCompactionIntervalMillis();
+        if (interval <= 0) {
+            return;
+        }
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(CompactionService::compactAllVaults, interval, interval,
+                TimeUnit.MILLISECONDS);
+
+        System.out.println("[INFO]: Background compaction every " + interval + " ms");
+    }
+
+    public static void compactAllVaults() {
+        File[] vaultDirs = new File("vaults").listFiles(File::isDirectory);
+        if (vaultDirs == null) {
+            return;
+        }
+
+        for (File vaultDir : vaultDirs) {
+            try {
+                compactVault(vaultDir.getName());
+            } catch (Exception e) {
+                System.err.println("[ERROR]: Failed to compact vault " + vaultDir.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Compact a vault according to the policy
+     *
+     * @return whether anything was compacted
+     */
+    public static boolean compactVault(String vaultName) throws IOException {
+        synchronized (vaultLocks.computeIfAbsent(vaultName, name -> new Object())) {
+            ChangeLogStore store = VaultUtils.getChangeLogStore(vaultName);
+
+            TreeMap<Long, Long> parents = new TreeMap<>();
+            store.forEach((timestamp, json) -> parents.put(timestamp, ChangeLog.fromJson(json).getParent()));
+
+            ChangeLogIndex index = ChangeLogIndex.forVault(vaultName);
+            ChangeLogCompactor.Plan plan = ChangeLogCompactor.plan(parents, horizon(parents), timestamp -> {
+                // A missing change log would resolve to an empty state and wipe the vault
+                // in its base log, so the whole compaction is given up instead
+                String json = index.at(timestamp);
+                if (json == null) {
+                    throw new IOException("Change log " + timestamp + " of vault " + vaultName
+                            + " is missing from the index, not compacting");
+                }
+                return VaultStateService.getStateAt(vaultName, ChangeLog.fromJson(json));
+            });
+
+            if (plan.removed().size() < ServerConfig.getCompactionMinChangeLogs()) {
+                System.out.println("[DEBUG]: Vault " + vaultName + " has " + plan.removed().size()
+                        + " squashable change logs, not compacting");
+                return false;
+            }
+
+            Map<Long, String> replacements = new HashMap<>();
+            plan.replacements().forEach((timestamp, base) -> replacements.put(timestamp, base.toJson()));
+
+            store.compact(replacements, plan.removed());
+            ChangeLogIndex.invalidate(vaultName);
+            CheckpointService.onCompacted(vaultName, plan.removed());
+
+            System.out.println("[INFO]: Compacted vault " + vaultName + ": squashed " + plan.removed().size()
+                    + " change logs into " + replacements.size() + " base change logs");
+            return true;
+        }
+    }
+
+    /**
+     * Newest timestamp the policy allows to squash
+     */
+    private static long horizon(NavigableMap<Long, Long> parents) {
+        long horizon = System.currentTimeMillis() - ServerConfig.getCompactionRetentionMillis();
+
+        long keep = ServerConfig.getCompactionKeepChangeLogs();
+        if (parents.size() <= keep) {
+            return Long.MIN_VALUE;
+        }
+
+        Iterator<Long> newestFirst = parents.descendingKeySet().iterator();
+        for (long i = 0; i < keep; i++) {
+            newestFirst.next();
+        }
+        return Math.min(horizon, newestFirst.next());
+    }
+}
@@ -26,23 +26,7 @@ public class DirectoryStateService {
         Map<String, String> dirState = new HashMap<>();
 
         changeLogs.forEach(cl -> {
-            ChangeLog.Changes changes = cl.getChanges();
-
-            if (changes.getAdded() != null) {
-                for (FileChange fc : changes.getAdded()) {
-                    dirState.put(fc.getPath(), fc.getHash());
-                }
-            }
-            if (changes.getModified() != null) {
-                for (FileChange fc : changes.getModified()) {
-                    dirState.put(fc.getPath(), fc.getHash());
-                }
-            }
-            if (changes.getDeleted() != null) {
-                for (String delPath : changes.getDeleted()) {
-                    dirState.remove(delPath);
-                }
-            }
+            applyChangeLog(dirState, cl);
 
             System.out.println("[DEBUG]: " + cl.getTimestamp());
         });
@@ -50,6 +34,32 @@ public class DirectoryStateService {
         return dirState;
     }
 
+    /**
+     * Apply the changes of a single change log to a path -> hash directory state
+     */
+    public static void applyChangeLog(Map<String, String> dirState, ChangeLog changeLog) {
+        ChangeLog.Changes changes = changeLog.getChanges();
+        if (changes == null) {
+            return;
+        }
+
+        if (changes.getAdded() != null) {
+            for (FileChange fc : changes.getAdded()) {
+                dirState.put(fc.getPath(), fc.getHash());
+            }
+        }
+        if (changes.getModified() != null) {
+            for (FileChange fc : changes.getModified()) {
+                dirState.put(fc.getPath(), fc.getHash());
+            }
+        }
+        if (changes.getDeleted() != null) {
+            for (String delPath : changes.getDeleted()) {
+                dirState.remove(delPath);
+            }
+        }
+    }
+
     /**
      * Get current directory state by scanning local files
      */
@@ -0,0 +1,97 @@
+package org.one_cedrus.service;
+
+import org.one_cedrus.shared.ChangeLog;
+import org.one_cedrus.shared.ChangeLogCompactor;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Server-side reconstruction of the directory state of a vault. The state right after a
+ * change log is found by following its parent links back to the nearest checkpoint (or
+ * the root) and replaying that chain on top of it.
+ */
+public class VaultStateService {
+
+    /**
+     * Newest change log of the vault, or null if it has none
+     */
+    public static ChangeLog getHead(String vaultName) throws IOException {
+        String json = ChangeLogIndex.forVault(vaultName).latest();
+        return json == null ? null : ChangeLog.fromJson(json);
+    }
+
+    /**
+     * Directory state (path -> hash) right after the given change log
+     */
+    public static Map<String, String> getStateAt(String vaultName, ChangeLog changeLog) throws IOException {
+        ChangeLogIndex index = ChangeLogIndex.forVault(vaultName);
+        CheckpointService checkpoints = CheckpointService.forVault(vaultName);
+        Deque<ChangeLog> chain = new ArrayDeque<>();
+        Map<String, String> dirState = null;
+        long replayedBytes = 0;
+        Set<Long> discarded = new HashSet<>();
+
+        ChangeLog current = changeLog;
+        while (current != null) {
+            if (checkpoints.has(current.getTimestamp())) {
+                dirState = checkpoints.load(current.getTimestamp());
+                if (dirState != null) {
+                    break;
+                }
+                discarded.add(current.getTimestamp());
+            }
+
+            chain.push(current);
+            if (current.getParent() == 0) {
+                break;
+            }
+
+            if (current.getParent() >= current.getTimestamp()) {
+                System.err.println("[ERROR]: Change log " + current.getTimestamp() + " of vault " + vaultName
+                        + " has a parent that is not older, stopping there");
+                break;
+            }
+
+            String parentJson = index.at(current.getParent());
+            if (parentJson == null) {
+                System.err.println("[ERROR]: Parent " + current.getParent() + " of change log "
+                        + current.getTimestamp() + " not found in vault " + vaultName);
+                break;
+            }
+            replayedBytes += parentJson.length();
+            current = ChangeLog.fromJson(parentJson);
+        }
+
+        if (dirState == null) {
+            dirState = new HashMap<>();
+        }
+        for (ChangeLog cl : chain) {
+            DirectoryStateService.applyChangeLog(dirState, cl);
+            // Rebuild the checkpoints that could not be read
+            if (discarded.contains(cl.getTimestamp())) {
+                checkpoints.saveAsync(cl.getTimestamp(), dirState);
+            }
+        }
+
+        // Replaying more deltas than a checkpoint interval means none is close, keep this one
+        if (CheckpointService.isDue(chain.size() - 1, replayedBytes)) {
+            checkpoints.saveAsync(changeLog.getTimestamp(), dirState);
+        }
+        return dirState;
+    }
+
+    /**
+     * Build a synthetic base change log for new clients: it carries the head's timestamp,
+     * has no parent, and lists every live file at the head as added. Returns null for a
+     * vault without change logs.
+     */
+    public static ChangeLog buildHeadManifest(String vaultName) throws IOException {
+        ChangeLog head = getHead(vaultName);
+        if (head == null) {
+            return null;
+        }
+
+        return ChangeLogCompactor.toBaseChangeLog(head.getTimestamp(), getStateAt(vaultName, head));
+    }
+}
@@ -0,0 +1,38 @@
+package org.one_cedrus.shared;
+
+import java.util.zip.Deflater;
+
+/**
+ * Decides whether a blob is worth compressing. The start of the blob is deflated at the
+ * fastest level, and only blobs whose sample shrinks noticeably are compressed, so
+ * media and archives are not compressed twice. Blobs are always identified by the hash
+ * of their uncompressed content.
+ */
+public class BlobCodec {
+    public static final String GZIP = "gzip";
+    public static final int PROBE_BYTES = 64 * 1024;
+
+    // Compress only if the probe shrinks to at most this fraction of its size
+    private static final double MAX_COMPRESSED_RATIO = 0.9;
+
+    public static boolean isCompressible(byte[] sample, int length) {
+        if (length == 0) {
+            return false;
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+
+            byte[] scratch = new byte[8192];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(scratch);
+            }
+            return compressed <= length * MAX_COMPRESSED_RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package org.one_cedrus.shared;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Layout of a blob directory, shared by the server's vaults/&lt;name&gt;/files and the
+ * client's .sv/files. A blob named after its hash (possibly with a suffix such as .gz)
+ * lives two levels down under the first two byte pairs of the hash, e.g.
+ * ab/cd/abcd..., so no directory ends up with more than a small slice of the blobs.
+ * <p>
+ * Blob directories written before this layout keep their blobs at the top level. Those
+ * are still found on lookup, moved into place when touched, and moved in bulk by
+ * {@link #migrate(Path)}. Once that has run, lookups in the directory no longer check the
+ * top level, since every writer uses the fan-out layout.
+ */
+public class BlobPaths {
+    private static final Pattern BLOB_NAME_PATTERN = Pattern.compile("[0-9a-f]{64}(\\.[a-z]+)?");
+    private static final Pattern FAN_OUT_PATTERN = Pattern.compile("[0-9a-f]{2}");
+
+    // Blob directories without blobs left at the top level
+    private static final Set<Path> migratedDirs = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Where a blob belongs in the fan-out layout
+     *
+     * @throws IllegalArgumentException if the name is not a hash, possibly with a suffix,
+     *                                  so it cannot point out of the blob directory
+     */
+    public static Path resolve(Path blobsDir, String name) {
+        if (name == null || !isBlobName(name)) {
+            throw new IllegalArgumentException("Invalid blob name: " + name);
+        }
+        return blobsDir.resolve(name.substring(0, 2)).resolve(name.substring(2, 4)).resolve(name);
+    }
+
+    /**
+     * Where to write a blob, with its fan-out directories created
+     */
+    public static Path resolveForWrite(Path blobsDir, String name) throws IOException {
+        Path path = resolve(blobsDir, name);
+        // Far cheaper than createDirectories once the directories exist, as most do
+        if (!Files.isDirectory(path.getParent())) {
+            Files.createDirectories(path.getParent());
+        }
+        return path;
+    }
+
+    /**
+     * Path of a stored blob, or null if it is not stored. A blob still at the top level is
+     * moved into the fan-out layout first.
+     */
+    public static Path locate(Path blobsDir, String name) {
+        Path path = resolve(blobsDir, name);
+        if (Files.exists(path)) {
+            return path;
+        }
+        if (migratedDirs.contains(blobsDir)) {
+            return null;
+        }
+
+        Path flatPath = blobsDir.resolve(name);
+        if (!Files.exists(flatPath)) {
+            return null;
+        }
+
+        try {
+            moveIntoPlace(blobsDir, flatPath);
+            return path;
+        } catch (IOException e) {
+            // Readable where it is, the next lookup or the migration will try again
+            return Files.exists(flatPath) ? flatPath : Files.exists(path) ? path : null;
+        }
+    }
+
+    public static boolean exists(Path blobsDir, String name) {
+        return locate(blobsDir, name) != null;
+    }
+
+    public static void delete(Path blobsDir, String name) throws IOException {
+        Files.deleteIfExists(resolve(blobsDir, name));
+        Files.deleteIfExists(blobsDir.resolve(name));
+    }
+
+    /**
+     * Every stored blob, in either layout. Other entries of the blob directory, such as
+     * temporary files or upload directories, are skipped.
+     */
+    public static List<Path> list(Path blobsDir) throws IOException {
+        List<Path> blobs = new ArrayList<>();
+        if (!Files.isDirectory(blobsDir)) {
+            return blobs;
+        }
+
+        try (DirectoryStream<Path> top = Files.newDirectoryStream(blobsDir)) {
+            for (Path entry : top) {
+                String name = entry.getFileName().toString();
+                if (Files.isDirectory(entry) && FAN_OUT_PATTERN.matcher(name).matches()) {
+                    listFanOut(entry, blobs);
+                } else if (isBlobName(name) && Files.isRegularFile(entry)) {
+                    blobs.add(entry);
+                }
+            }
+        }
+        return blobs;
+    }
+
+    /**
+     * Move every blob still at the top level into the fan-out layout
+     *
+     * @return number of blobs moved
+     */
+    public static int migrate(Path blobsDir) throws IOException {
+        if (!Files.isDirectory(blobsDir)) {
+            migratedDirs.add(blobsDir);
+            return 0;
+        }
+
+        List<Path> flatBlobs;
+        try (Stream<Path> entries = Files.list(blobsDir)) {
+            flatBlobs = entries.filter(path -> isBlobName(path.getFileName().toString()))
+                    .filter(Files::isRegularFile)
+                    .toList();
+        }
+
+        int moved = 0;
+        for (Path flatPath : flatBlobs) {
+            try {
+                moveIntoPlace(blobsDir, flatPath);
+                moved++;
+            } catch (NoSuchFileException e) {
+                // Moved by a concurrent lookup
+            }
+        }
+
+        migratedDirs.add(blobsDir);
+        return moved;
+    }
+
+    private static boolean isBlobName(String name) {
+        return BLOB_NAME_PATTERN.matcher(name).matches();
+    }
+
+    private static void listFanOut(Path firstLevel, List<Path> blobs) throws IOException {
+        try (DirectoryStream<Path> secondLevels = Files.newDirectoryStream(firstLevel)) {
+            for (Path secondLevel : secondLevels) {
+                if (!Files.isDirectory(secondLevel)
+                        || !FAN_OUT_PATTERN.matcher(secondLevel.getFileName().toString()).matches()) {
+                    continue;
+                }
+
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(secondLevel)) {
+                    for (Path entry : entries) {
+                        if (isBlobName(entry.getFileName().toString()) && Files.isRegularFile(entry)) {
+                            blobs.add(entry);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void moveIntoPlace(Path blobsDir, Path flatPath) throws IOException {
+        Path path = resolveForWrite(blobsDir, flatPath.getFileName().toString());
+        if (Files.exists(path)) {
+            // Same name means same content, the copy already in place wins
+            Files.deleteIfExists(flatPath);
+            return;
+        }
+        Files.move(flatPath, path, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
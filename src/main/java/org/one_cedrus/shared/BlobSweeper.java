@@ -0,0 +1,110 @@
+package org.one_cedrus.shared;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Sweep phase of blob garbage collection, shared by the server's blob store and the
+ * client's local store. Blobs that are not live are deleted in batches with a pause in
+ * between, so a collection does not starve concurrent syncs of disk bandwidth. Blobs
+ * modified within the grace period are always kept: they may come from an upload or
+ * download whose change log is not recorded yet.
+ */
+public class BlobSweeper {
+
+    /**
+     * Outcome of a sweep
+     */
+    public record Result(int deletedBlobs, long reclaimedBytes, long elapsedMillis) {
+    }
+
+    /**
+     * Add the file hashes a change log needs to the live set, including chunks
+     */
+    public static void mark(ChangeLog changeLog, Set<String> live) {
+        ChangeLog.Changes changes = changeLog.getChanges();
+        if (changes == null) {
+            return;
+        }
+
+        for (List<FileChange> fileChanges : Arrays.asList(changes.getAdded(), changes.getModified())) {
+            if (fileChanges == null) {
+                continue;
+            }
+            for (FileChange fileChange : fileChanges) {
+                live.add(fileChange.getHash());
+                if (fileChange.isChunked()) {
+                    live.addAll(fileChange.getChunks());
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete every blob whose hash is not live and that was not modified within the grace
+     * period. Liveness is checked again under the lock right before each deletion, so a
+     * writer holding the same lock while it records a reference is never raced.
+     */
+    public static Result sweep(Path blobsDir, Predicate<String> isLive, Object lock, long graceMillis,
+                               int batchSize, long pauseMillis) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        long cutoff = start - graceMillis;
+        int deletedBlobs = 0;
+        long reclaimedBytes = 0;
+        int batch = 0;
+
+        for (Path blob : BlobPaths.list(blobsDir)) {
+            String hash = blob.getFileName().toString().substring(0, 64);
+            if (isLive.test(hash)) {
+                continue;
+            }
+
+            synchronized (lock) {
+                if (isLive.test(hash)) {
+                    continue;
+                }
+
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(blob, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                if (attributes.lastModifiedTime().toMillis() > cutoff) {
+                    continue;
+                }
+
+                Files.deleteIfExists(blob);
+                deletedBlobs++;
+                reclaimedBytes += attributes.size();
+            }
+
+            if (++batch >= batchSize) {
+                batch = 0;
+                Thread.sleep(pauseMillis);
+            }
+        }
+
+        return new Result(deletedBlobs, reclaimedBytes, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Whether a blob was modified within the grace period
+     */
+    public static boolean isRecent(Path blob, long graceMillis) throws IOException {
+        try {
+            FileTime modified = Files.getLastModifiedTime(blob);
+            return modified.toMillis() > System.currentTimeMillis() - graceMillis;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+}
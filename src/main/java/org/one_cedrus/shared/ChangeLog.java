@@ -5,6 +5,9 @@ import com.google.gson.Gson;
 import java.util.List;
 
 public class ChangeLog implements Comparable<ChangeLog> {
+    // Thread-safe and costly to build, so shared
+    private static final Gson GSON = new Gson();
+
     private long timestamp;
     // Only initial ChangeLog doesn't have parent
     private long parent;
@@ -62,7 +65,7 @@ public class ChangeLog implements Comparable<ChangeLog> {
     }
 
     public static ChangeLog fromJson(String json) {
-        return new Gson().fromJson(json, ChangeLog.class);
+        return GSON.fromJson(json, ChangeLog.class);
     }
 
     public long getTimestamp() {
@@ -82,7 +85,7 @@ public class ChangeLog implements Comparable<ChangeLog> {
     }
 
     public String toJson() {
-        return new Gson().toJson(this);
+        return GSON.toJson(this);
     }
 
     public long getParent() {
@@ -0,0 +1,477 @@
+package org.one_cedrus.shared;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Compact binary encoding of change logs, an alternative to JSON on the wire. Client and
+ * server pick it by content negotiation on {@link #MEDIA_TYPE} and fall back to JSON.
+ * Single records also make up the change log journal on disk.
+ * <p>
+ * A stream is [byte version] followed by records, each [varint length][change log], and
+ * ends with a zero length. A change log is [varint timestamp][varint parent][byte
+ * presence bits], then the added, modified and deleted lists, each [varint count] plus
+ * its entries. Paths are stored as [varint prefix length shared with the previous path of
+ * the change log][varint suffix length][UTF-8 suffix], hashes as 32 raw bytes, and
+ * change types as one byte. Null and empty lists stay distinct, so a change log decodes
+ * to the same JSON it was encoded from.
+ */
+public class ChangeLogCodec {
+    public static final String MEDIA_TYPE = "application/x-sv-changelogs";
+    private static final int VERSION = 1;
+    // Longest path accepted when decoding, far above what file systems allow
+    private static final int MAX_PATH_BYTES = 64 * 1024;
+
+    private static final int HAS_CHANGES = 1;
+    private static final int HAS_ADDED = 1 << 1;
+    private static final int HAS_MODIFIED = 1 << 2;
+    private static final int HAS_DELETED = 1 << 3;
+
+    private static final int HAS_CHUNKS = 1;
+
+    private static final int HASH_NULL = 0;
+    private static final int HASH_RAW = 1;
+    private static final int HASH_STRING = 2;
+
+    // Change types; anything else is written out as a string. Code 0 is only decoded, for
+    // records written before change types were required.
+    private static final List<String> CHANGE_TYPES = Arrays.asList(null, "ADDED", "MODIFIED", "DELETED");
+    private static final int CHANGE_TYPE_OTHER = 0xff;
+
+    /**
+     * Whether an Accept or Content-Type header names the binary encoding, as a media
+     * range not excluded with q=0
+     */
+    public static boolean matches(String header) {
+        if (header == null) {
+            return false;
+        }
+
+        for (String range : header.split(",")) {
+            String[] params = range.split(";");
+            if (!params[0].trim().equalsIgnoreCase(MEDIA_TYPE)) {
+                continue;
+            }
+
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes change logs one at a time, so a stream of any length is encoded with
+     * constant memory
+     */
+    public static class StreamWriter implements Closeable {
+        private final OutputStream out;
+
+        public StreamWriter(OutputStream out) throws IOException {
+            this.out = out;
+            writeHeader(out);
+        }
+
+        public void write(ChangeLog changeLog) throws IOException {
+            writeRecord(out, changeLog);
+        }
+
+        /**
+         * End the stream, leaving the underlying stream open
+         */
+        @Override
+        public void close() throws IOException {
+            writeEnd(out);
+            out.flush();
+        }
+    }
+
+    /**
+     * Start of a stream, followed by any number of {@link #writeRecord records} and
+     * {@link #writeEnd the end}
+     */
+    public static void writeHeader(OutputStream out) throws IOException {
+        out.write(VERSION);
+    }
+
+    public static void writeRecord(OutputStream out, ChangeLog changeLog) throws IOException {
+        byte[] record = encodeRecord(changeLog);
+        writeVarLong(out, record.length);
+        out.write(record);
+    }
+
+    /**
+     * A single change log without the stream header and length, for storage that frames
+     * its records itself
+     */
+    public static byte[] encodeRecord(ChangeLog changeLog) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        encode(changeLog, new DataOutputStream(record));
+        return record.toByteArray();
+    }
+
+    /**
+     * Reverse of {@link #encodeRecord}, the record taking exactly the given bytes
+     */
+    public static ChangeLog decodeRecord(byte[] content, int offset, int length) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(content, offset, length);
+        ChangeLog changeLog = decodeRecord(new DataInputStream(in));
+        if (in.available() > 0) {
+            throw new IOException("Trailing bytes in change log record: " + in.available());
+        }
+        return changeLog;
+    }
+
+    public static void writeEnd(OutputStream out) throws IOException {
+        writeVarLong(out, 0);
+    }
+
+    public static byte[] encode(List<ChangeLog> changeLogs) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (StreamWriter writer = new StreamWriter(out)) {
+            for (ChangeLog changeLog : changeLogs) {
+                writer.write(changeLog);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    public static List<ChangeLog> decode(InputStream in) throws IOException {
+        int version = in.read();
+        if (version != VERSION) {
+            throw new IOException("Unsupported change log encoding version: " + version);
+        }
+
+        List<ChangeLog> changeLogs = new ArrayList<>();
+        while (true) {
+            long length = readVarLong(in);
+            if (length == 0) {
+                return changeLogs;
+            }
+            if (length < 0) {
+                throw new IOException("Invalid change log record length: " + length);
+            }
+
+            // Read in place rather than into a buffer of the announced length, so a
+            // forged length cannot make the reader allocate it
+            RecordInputStream record = new RecordInputStream(in, length);
+            changeLogs.add(decodeRecord(new DataInputStream(record)));
+            if (record.remaining > 0) {
+                throw new IOException("Trailing bytes in change log record: " + record.remaining);
+            }
+        }
+    }
+
+    /**
+     * The bytes of one record, ending early at the record's end
+     */
+    private static class RecordInputStream extends FilterInputStream {
+        private long remaining;
+
+        RecordInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Check that a change log can be encoded, and so stored and read back: no missing
+     * entries, paths or change types, and no path longer than the decoder takes
+     *
+     * @throws IllegalArgumentException describing the first problem found
+     */
+    public static void validate(ChangeLog changeLog) {
+        try {
+            encode(changeLog, new DataOutputStream(OutputStream.nullOutputStream()));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    private static void encode(ChangeLog changeLog, DataOutputStream out) throws IOException {
+        if (changeLog == null) {
+            throw new IOException("Missing change log");
+        }
+
+        writeVarLong(out, changeLog.getTimestamp());
+        writeVarLong(out, changeLog.getParent());
+
+        ChangeLog.Changes changes = changeLog.getChanges();
+        int presence = 0;
+        if (changes != null) {
+            presence |= HAS_CHANGES;
+            presence |= changes.getAdded() != null ? HAS_ADDED : 0;
+            presence |= changes.getModified() != null ? HAS_MODIFIED : 0;
+            presence |= changes.getDeleted() != null ? HAS_DELETED : 0;
+        }
+        out.writeByte(presence);
+        if (changes == null) {
+            return;
+        }
+
+        byte[] previousPath = new byte[0];
+        for (List<FileChange> fileChanges : Arrays.asList(changes.getAdded(), changes.getModified())) {
+            if (fileChanges == null) {
+                continue;
+            }
+
+            writeVarLong(out, fileChanges.size());
+            for (FileChange fileChange : fileChanges) {
+                if (fileChange == null) {
+                    throw new IOException("Missing file change in change log " + changeLog.getTimestamp());
+                }
+                previousPath = writePath(out, fileChange.getPath(), previousPath);
+                writeChangeType(out, fileChange.getChangeType());
+                writeHash(out, fileChange.getHash());
+
+                List<String> chunks = fileChange.getChunks();
+                out.writeByte(chunks != null ? HAS_CHUNKS : 0);
+                if (chunks != null) {
+                    writeVarLong(out, chunks.size());
+                    for (String chunk : chunks) {
+                        writeHash(out, chunk);
+                    }
+                }
+            }
+        }
+
+        if (changes.getDeleted() != null) {
+            writeVarLong(out, changes.getDeleted().size());
+            for (String path : changes.getDeleted()) {
+                previousPath = writePath(out, path, previousPath);
+            }
+        }
+    }
+
+    private static ChangeLog decodeRecord(DataInputStream in) throws IOException {
+        long timestamp = readVarLong(in);
+        long parent = readVarLong(in);
+        int presence = in.readUnsignedByte();
+        if ((presence & HAS_CHANGES) == 0) {
+            return new ChangeLog(timestamp, null, parent);
+        }
+
+        byte[][] previousPath = {new byte[0]};
+        List<FileChange> added = (presence & HAS_ADDED) != 0 ? readFileChanges(in, previousPath) : null;
+        List<FileChange> modified = (presence & HAS_MODIFIED) != 0 ? readFileChanges(in, previousPath) : null;
+
+        List<String> deleted = null;
+        if ((presence & HAS_DELETED) != 0) {
+            int count = readCount(in);
+            deleted = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                deleted.add(readPath(in, previousPath));
+            }
+        }
+
+        return new ChangeLog(timestamp, new ChangeLog.Changes(added, modified, deleted), parent);
+    }
+
+    private static List<FileChange> readFileChanges(DataInputStream in, byte[][] previousPath) throws IOException {
+        int count = readCount(in);
+        List<FileChange> fileChanges = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            String path = readPath(in, previousPath);
+            String changeType = readChangeType(in);
+            FileChange fileChange = new FileChange(path, readHash(in), changeType);
+
+            if ((in.readUnsignedByte() & HAS_CHUNKS) != 0) {
+                int chunkCount = readCount(in);
+                List<String> chunks = new ArrayList<>(Math.min(chunkCount, 1024));
+                for (int j = 0; j < chunkCount; j++) {
+                    chunks.add(readHash(in));
+                }
+                fileChange.setChunks(chunks);
+            }
+            fileChanges.add(fileChange);
+        }
+        return fileChanges;
+    }
+
+    /**
+     * @return the encoded path, to share its prefix with the next one
+     */
+    private static byte[] writePath(DataOutputStream out, String path, byte[] previous) throws IOException {
+        if (path == null) {
+            throw new IOException("Missing path");
+        }
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_PATH_BYTES) {
+            throw new IOException("Path too long: " + bytes.length + " bytes");
+        }
+        int shared = 0;
+        int max = Math.min(bytes.length, previous.length);
+        while (shared < max && bytes[shared] == previous[shared]) {
+            shared++;
+        }
+
+        writeVarLong(out, shared);
+        writeVarLong(out, bytes.length - shared);
+        out.write(bytes, shared, bytes.length - shared);
+        return bytes;
+    }
+
+    private static String readPath(DataInputStream in, byte[][] previous) throws IOException {
+        int shared = readCount(in);
+        int suffix = readCount(in);
+        if (shared > previous[0].length) {
+            throw new IOException("Invalid path prefix length: " + shared);
+        }
+        if (suffix > MAX_PATH_BYTES - shared) {
+            throw new IOException("Path too long: " + ((long) shared + suffix) + " bytes");
+        }
+
+        byte[] bytes = Arrays.copyOf(previous[0], shared + suffix);
+        in.readFully(bytes, shared, suffix);
+        previous[0] = bytes;
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeChangeType(DataOutputStream out, String changeType) throws IOException {
+        if (changeType == null) {
+            throw new IOException("Missing change type");
+        }
+        int code = CHANGE_TYPES.indexOf(changeType);
+        if (code >= 0) {
+            out.writeByte(code);
+        } else {
+            out.writeByte(CHANGE_TYPE_OTHER);
+            out.writeUTF(changeType);
+        }
+    }
+
+    private static String readChangeType(DataInputStream in) throws IOException {
+        int code = in.readUnsignedByte();
+        if (code == CHANGE_TYPE_OTHER) {
+            return in.readUTF();
+        }
+        if (code >= CHANGE_TYPES.size()) {
+            throw new IOException("Unknown change type: " + code);
+        }
+        return CHANGE_TYPES.get(code);
+    }
+
+    private static void writeHash(DataOutputStream out, String hash) throws IOException {
+        if (hash == null) {
+            out.writeByte(HASH_NULL);
+        } else if (hash.length() == 64 && hash.equals(hash.toLowerCase()) && isHex(hash)) {
+            out.writeByte(HASH_RAW);
+            out.write(HexFormat.of().parseHex(hash));
+        } else {
+            out.writeByte(HASH_STRING);
+            out.writeUTF(hash);
+        }
+    }
+
+    private static String readHash(DataInputStream in) throws IOException {
+        int form = in.readUnsignedByte();
+        switch (form) {
+            case HASH_NULL:
+                return null;
+            case HASH_RAW:
+                byte[] raw = new byte[32];
+                in.readFully(raw);
+                return HexFormat.of().formatHex(raw);
+            case HASH_STRING:
+                return in.readUTF();
+            default:
+                throw new IOException("Unknown hash form: " + form);
+        }
+    }
+
+    private static boolean isHex(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.digit(value.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        long count = readVarLong(in);
+        if (count < 0 || count > Integer.MAX_VALUE) {
+            throw new IOException("Invalid count: " + count);
+        }
+        return (int) count;
+    }
+
+    /**
+     * Unsigned LEB128; negative values take ten bytes
+     */
+    static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated change log stream");
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+}
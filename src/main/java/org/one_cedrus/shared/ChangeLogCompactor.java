@@ -0,0 +1,99 @@
+package org.one_cedrus.shared;
+
+import org.one_cedrus.service.DirectoryStateService;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Plans the compaction of a change log history. Every change log at or before the
+ * horizon is squashed away, except the ones newer history still points at (the parents
+ * of newer change logs, plus the newest squashed one). Those are rewritten in place as
+ * synthetic base logs: same timestamp, no parent, and every live file listed as added,
+ * so parent links of newer change logs stay valid.
+ */
+public class ChangeLogCompactor {
+
+    @FunctionalInterface
+    public interface StateResolver {
+        /**
+         * Directory state (path -> hash) right after the change log with this timestamp
+         */
+        Map<String, String> stateAt(long timestamp) throws IOException;
+    }
+
+    /**
+     * @param replacements synthetic base logs, replacing the change log with the same timestamp
+     * @param removed      timestamps of the change logs to drop
+     */
+    public record Plan(Map<Long, ChangeLog> replacements, Set<Long> removed) {
+        public boolean isEmpty() {
+            return removed.isEmpty();
+        }
+    }
+
+    /**
+     * @param parents whole history as timestamp -> parent timestamp
+     * @param horizon newest timestamp that may be squashed
+     */
+    public static Plan plan(NavigableMap<Long, Long> parents, long horizon, StateResolver resolver)
+            throws IOException {
+        NavigableMap<Long, Long> old = parents.headMap(horizon, true);
+        if (old.size() < 2) {
+            return new Plan(Map.of(), Set.of());
+        }
+
+        Set<Long> kept = new TreeSet<>();
+        kept.add(old.lastKey());
+        for (long parent : parents.tailMap(horizon, false).values()) {
+            if (old.containsKey(parent)) {
+                kept.add(parent);
+            }
+        }
+
+        Map<Long, ChangeLog> replacements = new TreeMap<>();
+        for (long timestamp : kept) {
+            replacements.put(timestamp, toBaseChangeLog(timestamp, resolver.stateAt(timestamp)));
+        }
+
+        Set<Long> removed = new TreeSet<>(old.keySet());
+        removed.removeAll(kept);
+        return new Plan(replacements, removed);
+    }
+
+    /**
+     * Resolve states by replaying parent chains from the given history, for callers that
+     * have no faster way
+     */
+    public static StateResolver replaying(Map<Long, ChangeLog> changeLogs) {
+        return timestamp -> {
+            Deque<ChangeLog> chain = new ArrayDeque<>();
+            ChangeLog current = changeLogs.get(timestamp);
+            while (current != null) {
+                chain.push(current);
+                if (current.getParent() == 0 || current.getParent() >= current.getTimestamp()) {
+                    break;
+                }
+                current = changeLogs.get(current.getParent());
+            }
+
+            Map<String, String> dirState = new HashMap<>();
+            for (ChangeLog cl : chain) {
+                DirectoryStateService.applyChangeLog(dirState, cl);
+            }
+            return dirState;
+        };
+    }
+
+    /**
+     * Express a directory state as a root change log with the given timestamp
+     */
+    public static ChangeLog toBaseChangeLog(long timestamp, Map<String, String> dirState) {
+        List<FileChange> added = new ArrayList<>(dirState.size());
+        for (Map.Entry<String, String> entry : new TreeMap<>(dirState).entrySet()) {
+            added.add(new FileChange(entry.getKey(), entry.getValue(), "ADDED"));
+        }
+
+        return new ChangeLog(timestamp, new ChangeLog.Changes(added, new ArrayList<>(), new ArrayList<>()));
+    }
+}
@@ -0,0 +1,143 @@
+package org.one_cedrus.shared;
+
+import org.one_cedrus.exception.HashCalculationException;
+import org.one_cedrus.util.HashCalculator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Content-defined chunking of large files (FastCDC with normalized chunking). Chunk
+ * boundaries depend only on the bytes around them, so an edit only changes the chunks
+ * it touches and the rest of the file keeps the same chunk hashes. Client and server
+ * must agree on every constant here.
+ */
+public class ContentChunker {
+    // Files smaller than this keep a single whole-file hash
+    public static final long CHUNKING_THRESHOLD = 4L * 1024 * 1024;
+
+    private static final int MIN_SIZE = 256 * 1024;
+    private static final int AVG_SIZE = 1024 * 1024;
+    private static final int MAX_SIZE = 4 * 1024 * 1024;
+
+    // Stricter mask before the average size, looser after it, as in FastCDC level 2
+    private static final long MASK_S = mask(22);
+    private static final long MASK_L = mask(18);
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // Fixed SplitMix64 sequence, so every peer derives the same table
+        long seed = 0x5368617265564c54L;
+        for (int i = 0; i < GEAR.length; i++) {
+            seed += 0x9E3779B97F4A7C15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    public record Chunk(String hash, long offset, int length) {
+    }
+
+    /**
+     * Whole-file hash plus the ordered chunks of a file
+     */
+    public record ChunkedFile(String hash, List<Chunk> chunks) {
+        public List<String> chunkHashes() {
+            List<String> hashes = new ArrayList<>(chunks.size());
+            for (Chunk chunk : chunks) {
+                hashes.add(chunk.hash());
+            }
+            return hashes;
+        }
+    }
+
+    public static boolean shouldChunk(long fileSize) {
+        return fileSize >= CHUNKING_THRESHOLD;
+    }
+
+    /**
+     * Split a file into chunks, hashing the whole file in the same pass
+     */
+    public static ChunkedFile chunk(Path file) throws IOException, HashCalculationException {
+        MessageDigest fileDigest = HashCalculator.newMessageDigest();
+        MessageDigest chunkDigest = HashCalculator.newMessageDigest();
+        List<Chunk> chunks = new ArrayList<>();
+
+        byte[] buffer = new byte[2 * MAX_SIZE];
+        int buffered = 0;
+        long offset = 0;
+        boolean eof = false;
+
+        try (InputStream in = Files.newInputStream(file)) {
+            while (true) {
+                while (!eof && buffered < MAX_SIZE) {
+                    int n = in.read(buffer, buffered, buffer.length - buffered);
+                    if (n < 0) {
+                        eof = true;
+                    } else {
+                        buffered += n;
+                    }
+                }
+
+                if (buffered == 0) {
+                    break;
+                }
+
+                int length = cut(buffer, buffered);
+                fileDigest.update(buffer, 0, length);
+                chunkDigest.update(buffer, 0, length);
+                chunks.add(new Chunk(HashCalculator.bytesToHex(chunkDigest.digest()), offset, length));
+
+                offset += length;
+                buffered -= length;
+                System.arraycopy(buffer, length, buffer, 0, buffered);
+            }
+        }
+
+        return new ChunkedFile(HashCalculator.bytesToHex(fileDigest.digest()), chunks);
+    }
+
+    /**
+     * Length of the next chunk at the start of the buffer
+     */
+    private static int cut(byte[] buffer, int available) {
+        if (available <= MIN_SIZE) {
+            return available;
+        }
+
+        int limit = Math.min(available, MAX_SIZE);
+        int normal = Math.min(limit, AVG_SIZE);
+        long fingerprint = 0;
+
+        // The first MIN_SIZE bytes can never hold a boundary, so they are not hashed
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[buffer[i] & 0xff];
+            if ((fingerprint & MASK_S) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[buffer[i] & 0xff];
+            if ((fingerprint & MASK_L) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Mask over the top bits of the fingerprint, which depend on the most input bytes
+     */
+    private static long mask(int bits) {
+        return -1L << (64 - bits);
+    }
+}
@@ -1,9 +1,13 @@
 package org.one_cedrus.shared;
 
+import java.util.List;
+
 public class FileChange {
     private String path;
     private String hash;
     private String changeType; // "ADDED", "MODIFIED", "DELETED"
+    // Ordered chunk hashes of large files (see ContentChunker), null for whole-file storage
+    private List<String> chunks;
 
     public FileChange() {
     }
@@ -45,6 +49,18 @@ public class FileChange {
         this.changeType = changeType;
     }
 
+    public List<String> getChunks() {
+        return chunks;
+    }
+
+    public void setChunks(List<String> chunks) {
+        this.chunks = chunks;
+    }
+
+    public boolean isChunked() {
+        return chunks != null && !chunks.isEmpty();
+    }
+
     @Override
     public String toString() {
         return changeType + ": " + path;
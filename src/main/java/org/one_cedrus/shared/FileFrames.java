@@ -0,0 +1,170 @@
+package org.one_cedrus.shared;
+
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Framing used to stream many files in a single response. Each file is written as
+ * [UTF hash][long length][length bytes of content], and the stream ends with an empty
+ * hash so a truncated response can be told apart from a complete one.
+ * <p>
+ * A reader that sends {@link #ENCODING_HEADER}: gzip gets encoded frames instead,
+ * [UTF hash][byte encoding][long length][content], so blobs the server stores
+ * compressed are sent as they are stored.
+ */
+public class FileFrames {
+    public static final String ENCODING_HEADER = "Sv-Frame-Encoding";
+
+    private static final int ENCODING_RAW = 0;
+    private static final int ENCODING_GZIP = 1;
+
+    @FunctionalInterface
+    public interface FrameConsumer {
+        /**
+         * Handle one file. The content stream is limited to the frame and does not need to
+         * be read fully or closed. The length is that of the uncompressed content, or -1
+         * if the frame is compressed.
+         */
+        void accept(String hash, long length, InputStream content) throws Exception;
+    }
+
+    /**
+     * Write one file from its uncompressed content
+     */
+    public static void writeFrame(DataOutputStream out, boolean encoded, String hash, long length,
+                                  InputStream content) throws IOException {
+        out.writeUTF(hash);
+        if (encoded) {
+            out.writeByte(ENCODING_RAW);
+        }
+        out.writeLong(length);
+        copy(content, out, length);
+    }
+
+    /**
+     * Write one file from its gzip-compressed form, only for readers of encoded frames
+     */
+    public static void writeGzipFrame(DataOutputStream out, String hash, long compressedLength,
+                                      InputStream gzipContent) throws IOException {
+        out.writeUTF(hash);
+        out.writeByte(ENCODING_GZIP);
+        out.writeLong(compressedLength);
+        copy(gzipContent, out, compressedLength);
+    }
+
+    public static void writeEnd(DataOutputStream out) throws IOException {
+        out.writeUTF("");
+        out.flush();
+    }
+
+    /**
+     * Read frames until the end marker, handing each one to the consumer
+     *
+     * @return number of frames read
+     */
+    public static int readFrames(InputStream inputStream, boolean encoded, FrameConsumer consumer)
+            throws Exception {
+        DataInputStream in = new DataInputStream(inputStream);
+        int count = 0;
+
+        while (true) {
+            String hash;
+            try {
+                hash = in.readUTF();
+            } catch (EOFException e) {
+                throw new IOException("File stream ended without end marker after " + count + " files");
+            }
+
+            if (hash.isEmpty()) {
+                return count;
+            }
+
+            int encoding = encoded ? in.readUnsignedByte() : ENCODING_RAW;
+            long length = in.readLong();
+            if (length < 0) {
+                throw new IOException("Invalid length " + length + " of file frame " + hash);
+            }
+            BoundedInputStream content = new BoundedInputStream(in, length);
+            if (encoding == ENCODING_GZIP) {
+                consumer.accept(hash, -1, new GZIPInputStream(content, 64 * 1024));
+            } else if (encoding == ENCODING_RAW) {
+                consumer.accept(hash, length, content);
+            } else {
+                throw new IOException("Unknown encoding " + encoding + " of file frame " + hash);
+            }
+            content.skipRemaining();
+            count++;
+        }
+    }
+
+    /**
+     * Copy exactly length bytes, so a source that changed size cannot break the framing
+     */
+    private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long remaining = length;
+        while (remaining > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n < 0) {
+                throw new EOFException("File ended " + remaining + " bytes before its frame");
+            }
+            out.write(buffer, 0, n);
+            remaining -= n;
+        }
+    }
+
+    private static class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("File frame truncated");
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0) {
+                throw new EOFException("File frame truncated");
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            // The underlying stream carries the following frames
+        }
+
+        void skipRemaining() throws IOException {
+            while (remaining > 0) {
+                long skipped = in.skip(remaining);
+                if (skipped <= 0) {
+                    if (in.read() < 0) {
+                        throw new EOFException("File frame truncated");
+                    }
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.one_cedrus.shared;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary WebSocket frames, an alternative to the text messages for clients listing
+ * {@link MessageType#BINARY_FRAMES} in their capabilities.
+ * <p>
+ * A frame is [byte type code][varint vault id][varint payload length][payload]. Vault ids
+ * are scoped to the session: the server assigns one when a client says HELLO to a vault
+ * and tells it in the STATUS reply, whose payload is the UTF-8 vault name. Frames about
+ * no vault, such as HEARTBEAT, carry id 0. FILE_CHANGE carries the varint vault head, or
+ * no payload when unknown, and CHANGE_LOGS the change logs in {@link ChangeLogCodec}
+ * encoding.
+ */
+public class MessageFrames {
+    public static final int NO_VAULT = 0;
+    private static final byte[] EMPTY = new byte[0];
+
+    public record Frame(MessageType type, int vaultId, byte[] payload) {
+    }
+
+    public static byte[] encode(MessageType type, int vaultId, byte[] payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length + 8);
+        try {
+            out.write(type.code());
+            ChangeLogCodec.writeVarLong(out, vaultId);
+            ChangeLogCodec.writeVarLong(out, payload.length);
+            out.write(payload);
+        } catch (IOException e) {
+            // Not thrown by ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    public static byte[] encode(MessageType type, int vaultId) {
+        return encode(type, vaultId, EMPTY);
+    }
+
+    public static Frame decode(ByteBuffer frame) throws IOException {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+
+        int code = in.read();
+        MessageType type = MessageType.fromCode(code);
+        if (type == null) {
+            throw new IOException("Unknown message type: " + code);
+        }
+
+        long vaultId = ChangeLogCodec.readVarLong(in);
+        long length = ChangeLogCodec.readVarLong(in);
+        if (vaultId < 0 || vaultId > Integer.MAX_VALUE || length != in.available()) {
+            throw new IOException("Invalid " + type + " frame");
+        }
+        return new Frame(type, (int) vaultId, in.readNBytes((int) length));
+    }
+
+    public static byte[] vaultName(String vaultName) {
+        return vaultName.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static String vaultName(byte[] payload) {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    public static byte[] head(long head) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(10);
+        try {
+            ChangeLogCodec.writeVarLong(out, head);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the vault head of a FILE_CHANGE payload, or null if it has none
+     */
+    public static Long head(byte[] payload) throws IOException {
+        if (payload.length == 0) {
+            return null;
+        }
+
+        ByteArrayInputStream in = new ByteArrayInputStream(payload);
+        long head = ChangeLogCodec.readVarLong(in);
+        if (in.available() > 0) {
+            throw new IOException("Trailing bytes after vault head: " + in.available());
+        }
+        return head;
+    }
+}
@@ -1,8 +1,54 @@
 package org.one_cedrus.shared;
 
 public enum MessageType {
-    HELLO, // Client introduces itself and lists monitored vaults
-    FILE_CHANGE, // Server notifies client about changes in vault
-    HEARTBEAT, // Keep connection alive
-    STATUS // Client status update (e.g., currently processing changes)
+    HELLO(1), // Client introduces itself and lists monitored vaults
+    FILE_CHANGE(2), // Server notifies client about changes in vault
+    CHANGE_LOGS(3), // Server pushes the change logs just committed to a vault
+    HEARTBEAT(4), // Keep connection alive
+    STATUS(5); // Client status update (e.g., currently processing changes)
+
+    // WebSocket upgrade request header listing optional protocol features of the client
+    public static final String CAPABILITIES_HEADER = "Sv-Capabilities";
+    // Client applies change logs pushed as CHANGE_LOGS messages, and takes the vault head
+    // in FILE_CHANGE:vault:head when they are too large to push
+    public static final String CHANGE_LOG_PUSH = "change-logs";
+
+    // Client takes binary frames (see MessageFrames) instead of text messages
+    public static final String BINARY_FRAMES = "binary-frames";
+
+    // Type byte of binary frames, fixed whatever the order of the constants
+    private final int code;
+
+    MessageType(int code) {
+        this.code = code;
+    }
+
+    public int code() {
+        return code;
+    }
+
+    /**
+     * @return the type with the given code, or null if unknown
+     */
+    public static MessageType fromCode(int code) {
+        for (MessageType type : values()) {
+            if (type.code == code) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    public static boolean hasCapability(String capabilitiesHeader, String capability) {
+        if (capabilitiesHeader == null) {
+            return false;
+        }
+
+        for (String value : capabilitiesHeader.split(",")) {
+            if (value.trim().equalsIgnoreCase(capability)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -0,0 +1,60 @@
+package org.one_cedrus.shared;
+
+import com.google.gson.JsonParseException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bootstrap pack streamed to clients joining a vault: a manifest change log that holds
+ * the whole live directory state, followed by the files it references as
+ * {@link FileFrames}.
+ */
+public class StatePack {
+    private static final int MAGIC = 0x5356504b; // "SVPK"
+    private static final int VERSION = 1;
+
+    public static void writeManifest(DataOutputStream out, ChangeLog manifest) throws IOException {
+        byte[] json = manifest.toJson().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(json.length);
+        out.write(json);
+    }
+
+    public static ChangeLog readManifest(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a state pack");
+        }
+
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported state pack version: " + version);
+        }
+
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid state pack manifest length: " + length);
+        }
+
+        // Read as it arrives rather than trusting the length with one allocation
+        byte[] json = in.readNBytes(length);
+        if (json.length != length) {
+            throw new EOFException("State pack manifest truncated");
+        }
+
+        ChangeLog manifest;
+        try {
+            manifest = ChangeLog.fromJson(new String(json, StandardCharsets.UTF_8));
+        } catch (JsonParseException e) {
+            throw new IOException("Invalid state pack manifest: " + e.getMessage());
+        }
+        if (manifest == null || manifest.getChanges() == null || manifest.getChanges().getAdded() == null) {
+            throw new IOException("State pack manifest lists no files");
+        }
+        return manifest;
+    }
+}
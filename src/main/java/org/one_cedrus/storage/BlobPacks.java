@@ -0,0 +1,472 @@
+package org.one_cedrus.storage;
+
+import org.one_cedrus.shared.BlobSweeper;
+import org.one_cedrus.util.HashCalculator;
+import org.one_cedrus.util.VaultUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Pack files of the blob store, in blobs/packs. Small blobs cost an inode, a directory
+ * entry and an open() each, so the repacker concatenates them into packs instead.
+ * <p>
+ * A pack (pack-&lt;id&gt;.pack) holds the stored bytes of its blobs back to back after a
+ * header [int magic][int version]. Its index (pack-&lt;id&gt;.idx) is
+ * [int magic][int version][int count] followed by [32 bytes hash][long offset]
+ * [int length][byte flags] per blob, flag 1 meaning the blob is gzip-compressed. The
+ * index is written last and renamed into place, so a pack without an index is an
+ * interrupted write and is deleted on load.
+ * <p>
+ * Packs are read through read-only memory mappings and every index is held in memory.
+ * A pack is never modified: collection writes the live entries to a new pack and then
+ * deletes the old one, which readers still holding one of its blobs keep mapped.
+ */
+public class BlobPacks {
+    public static final String PACKS_DIRNAME = "packs";
+    private static final String PACK_SUFFIX = ".pack";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int PACK_MAGIC = 0x5356504B; // "SVPK"
+    private static final int INDEX_MAGIC = 0x53565049; // "SVPI"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+    private static final byte FLAG_COMPRESSED = 1;
+
+    // Packs are mapped whole, so they stay below the largest mapping
+    public static final long MAX_PACK_BYTES = Integer.MAX_VALUE;
+
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private static final Map<String, Long> freshened = new ConcurrentHashMap<>();
+    private static final List<Pack> packs = new CopyOnWriteArrayList<>();
+    private static final Object LOAD_LOCK = new Object();
+    private static volatile boolean loaded = false;
+
+    /**
+     * A blob to pack, read from its loose file or from the pack it is in
+     */
+    public record Source(String hash, Path file, boolean compressed) {
+    }
+
+    private static final class Pack {
+        final Path packPath;
+        final Path indexPath;
+        final MappedByteBuffer mapped;
+        final long createdMillis;
+        final Map<String, Entry> entries = new LinkedHashMap<>();
+
+        Pack(Path packPath, Path indexPath, MappedByteBuffer mapped, long createdMillis) {
+            this.packPath = packPath;
+            this.indexPath = indexPath;
+            this.mapped = mapped;
+            this.createdMillis = createdMillis;
+        }
+
+        ByteBuffer content(Entry entry) {
+            return mapped.slice(entry.offset(), entry.length());
+        }
+    }
+
+    private record Entry(String hash, Pack pack, int offset, int length, boolean compressed) {
+    }
+
+    public static Path getPacksDir() {
+        return VaultUtils.getBlobsDir().toPath().resolve(PACKS_DIRNAME);
+    }
+
+    /**
+     * Packed form of a blob, or null if it is not packed
+     */
+    public static StoredBlob find(String hash) {
+        ensureLoaded();
+        Entry entry = entries.get(hash);
+        if (entry == null) {
+            return null;
+        }
+        return StoredBlob.packed(entry.pack().content(entry), entry.compressed());
+    }
+
+    public static boolean contains(String hash) {
+        ensureLoaded();
+        return entries.containsKey(hash);
+    }
+
+    /**
+     * Number of packed blobs
+     */
+    public static int size() {
+        ensureLoaded();
+        return entries.size();
+    }
+
+    /**
+     * Mark a packed blob as just used. Pack files are never modified, so this is only
+     * kept in memory: after a restart, a packed blob counts as written when its pack was.
+     */
+    public static void freshen(String hash) {
+        if (contains(hash)) {
+            freshened.put(hash, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Whether a packed blob was packed or freshened within the grace period
+     */
+    public static boolean isRecent(String hash, long graceMillis) {
+        ensureLoaded();
+        Entry entry = entries.get(hash);
+        if (entry == null) {
+            return false;
+        }
+
+        long touched = Math.max(entry.pack().createdMillis, freshened.getOrDefault(hash, 0L));
+        return touched > System.currentTimeMillis() - graceMillis;
+    }
+
+    /**
+     * Write loose blobs into a new pack and delete them once the pack is in place. Blobs
+     * deleted in between are left out.
+     *
+     * @return number of blobs packed
+     */
+    public static synchronized int write(List<Source> sources) throws IOException {
+        ensureLoaded();
+
+        List<Source> packed = new ArrayList<>();
+        Pack pack = writePack(sources, packed);
+        if (pack == null) {
+            return 0;
+        }
+
+        register(pack);
+        for (Source source : packed) {
+            Files.deleteIfExists(source.file());
+        }
+        return packed.size();
+    }
+
+    /**
+     * Rewrite the packs holding blobs that are not live, keeping only the live ones. A
+     * blob packed or freshened within the grace period is kept. Liveness is checked again
+     * under the lock before a rewritten pack replaces the old one, and the rewrite is
+     * dropped if a blob came back to life meanwhile, until the next collection.
+     */
+    public static synchronized BlobSweeper.Result collect(Predicate<String> isLive, Object lock, long graceMillis)
+            throws IOException {
+        ensureLoaded();
+        long start = System.currentTimeMillis();
+        int deletedBlobs = 0;
+        long reclaimedBytes = 0;
+
+        for (Pack pack : new ArrayList<>(packs)) {
+            List<String> dead = deadEntries(pack, isLive, graceMillis);
+            if (dead.isEmpty()) {
+                continue;
+            }
+
+            Set<String> deadSet = new HashSet<>(dead);
+            List<Source> live = new ArrayList<>();
+            for (Entry entry : pack.entries.values()) {
+                if (!deadSet.contains(entry.hash())) {
+                    live.add(new Source(entry.hash(), pack.packPath, entry.compressed()));
+                }
+            }
+
+            List<Source> rewritten = new ArrayList<>();
+            Pack replacement = live.isEmpty() ? null : writePack(live, rewritten);
+
+            synchronized (lock) {
+                if (!deadEntries(pack, isLive, graceMillis).containsAll(dead)) {
+                    if (replacement != null) {
+                        deletePackFiles(replacement);
+                    }
+                    continue;
+                }
+
+                long oldSize = Files.size(pack.packPath);
+                if (replacement != null) {
+                    register(replacement);
+                }
+                unregister(pack);
+
+                // The index goes first, so a crash leaves a pack that is deleted on load
+                deletePackFiles(pack);
+                deletedBlobs += dead.size();
+                reclaimedBytes += oldSize - (replacement != null ? Files.size(replacement.packPath) : 0);
+            }
+        }
+
+        return new BlobSweeper.Result(deletedBlobs, reclaimedBytes, System.currentTimeMillis() - start);
+    }
+
+    private static List<String> deadEntries(Pack pack, Predicate<String> isLive, long graceMillis) {
+        List<String> dead = new ArrayList<>();
+        for (String hash : pack.entries.keySet()) {
+            Entry entry = entries.get(hash);
+            // Entries also found in a newer pack are dead here whatever their liveness
+            if (entry == null || entry.pack() != pack
+                    || (!isLive.test(hash) && !isRecent(hash, graceMillis))) {
+                dead.add(hash);
+            }
+        }
+        return dead;
+    }
+
+    /**
+     * Write the given blobs into a new pack, reading each one from its loose file or
+     * from the pack it is in now
+     *
+     * @param written filled with the blobs that made it into the pack
+     * @return the new pack, or null if none of the blobs could be read
+     */
+    private static Pack writePack(List<Source> sources, List<Source> written) throws IOException {
+        Path packsDir = getPacksDir();
+        Files.createDirectories(packsDir);
+
+        long id = System.currentTimeMillis();
+        while (Files.exists(packsDir.resolve("pack-" + id + PACK_SUFFIX))) {
+            id++;
+        }
+        String name = "pack-" + id;
+        Path packPath = packsDir.resolve(name + PACK_SUFFIX);
+        Path indexPath = packsDir.resolve(name + INDEX_SUFFIX);
+        Path tmpPackPath = packsDir.resolve(name + PACK_SUFFIX + TMP_SUFFIX);
+        Path tmpIndexPath = packsDir.resolve(name + INDEX_SUFFIX + TMP_SUFFIX);
+
+        List<Long> offsets = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        try {
+            try (FileChannel out = FileChannel.open(tmpPackPath, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(PACK_MAGIC).putInt(VERSION).flip();
+                while (header.hasRemaining()) {
+                    out.write(header);
+                }
+
+                for (Source source : sources) {
+                    long offset = out.position();
+                    if (offset >= MAX_PACK_BYTES) {
+                        break;
+                    }
+
+                    int length = copyInto(source, out);
+                    if (length < 0) {
+                        continue;
+                    }
+                    if (offset + length > MAX_PACK_BYTES) {
+                        out.truncate(offset);
+                        out.position(offset);
+                        break;
+                    }
+
+                    written.add(source);
+                    offsets.add(offset);
+                    lengths.add(length);
+                }
+                out.force(true);
+            }
+
+            if (written.isEmpty()) {
+                return null;
+            }
+
+            try (FileOutputStream fileOut = new FileOutputStream(tmpIndexPath.toFile());
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(written.size());
+                for (int i = 0; i < written.size(); i++) {
+                    out.write(HexFormat.of().parseHex(written.get(i).hash()));
+                    out.writeLong(offsets.get(i));
+                    out.writeInt(lengths.get(i));
+                    out.writeByte(written.get(i).compressed() ? FLAG_COMPRESSED : 0);
+                }
+                out.flush();
+                fileOut.getFD().sync();
+            }
+
+            Files.move(tmpPackPath, packPath, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tmpIndexPath, indexPath, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpPackPath);
+            Files.deleteIfExists(tmpIndexPath);
+        }
+
+        Pack pack = new Pack(packPath, indexPath, map(packPath), System.currentTimeMillis());
+        for (int i = 0; i < written.size(); i++) {
+            Source source = written.get(i);
+            pack.entries.put(source.hash(),
+                    new Entry(source.hash(), pack, (int) (long) offsets.get(i), lengths.get(i), source.compressed()));
+        }
+        return pack;
+    }
+
+    /**
+     * Copy a blob to the end of a pack
+     *
+     * @return the number of bytes copied, or -1 if the blob is gone
+     */
+    private static int copyInto(Source source, FileChannel out) throws IOException {
+        for (Pack pack : packs) {
+            Entry entry = pack.entries.get(source.hash());
+            if (entry != null && pack.packPath.equals(source.file())) {
+                ByteBuffer content = pack.content(entry);
+                while (content.hasRemaining()) {
+                    out.write(content);
+                }
+                return entry.length();
+            }
+        }
+
+        try (FileChannel in = FileChannel.open(source.file(), StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size > MAX_PACK_BYTES) {
+                return -1;
+            }
+
+            long position = 0;
+            while (position < size) {
+                long transferred = in.transferTo(position, size - position, out);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+            return (int) position;
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+    }
+
+    private static void register(Pack pack) {
+        entries.putAll(pack.entries);
+        packs.add(pack);
+    }
+
+    private static void unregister(Pack pack) {
+        for (Entry entry : pack.entries.values()) {
+            if (entries.remove(entry.hash(), entry) && !entries.containsKey(entry.hash())) {
+                freshened.remove(entry.hash());
+            }
+        }
+        packs.remove(pack);
+    }
+
+    private static void deletePackFiles(Pack pack) throws IOException {
+        Files.deleteIfExists(pack.indexPath);
+        Files.deleteIfExists(pack.packPath);
+    }
+
+    private static MappedByteBuffer map(Path packPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(packPath, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Forget the packs held in memory and load them again from disk
+     */
+    static synchronized void reload() {
+        synchronized (LOAD_LOCK) {
+            entries.clear();
+            freshened.clear();
+            packs.clear();
+            loaded = false;
+        }
+        ensureLoaded();
+    }
+
+    private static void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+
+        // Not the write lock, which is held while waiting for the references lock
+        synchronized (LOAD_LOCK) {
+            if (loaded) {
+                return;
+            }
+
+            Path packsDir = getPacksDir();
+            if (Files.isDirectory(packsDir)) {
+                try (Stream<Path> paths = Files.list(packsDir)) {
+                    for (Path path : paths.sorted().toList()) {
+                        loadPackFile(path);
+                    }
+                } catch (IOException e) {
+                    // Blobs in packs left out are uploaded again
+                    System.err.println("[ERROR]: Failed to list blob packs: " + e.getMessage());
+                }
+            }
+
+            loaded = true;
+            System.out.println("[DEBUG]: Loaded " + packs.size() + " blob packs with " + entries.size() + " blobs");
+        }
+    }
+
+    private static void loadPackFile(Path path) {
+        String name = path.getFileName().toString();
+        try {
+            if (name.endsWith(TMP_SUFFIX)) {
+                Files.deleteIfExists(path);
+                return;
+            }
+            if (!name.endsWith(PACK_SUFFIX)) {
+                return;
+            }
+
+            Path indexPath = path.resolveSibling(name.substring(0, name.length() - PACK_SUFFIX.length())
+                    + INDEX_SUFFIX);
+            if (!Files.exists(indexPath)) {
+                System.out.println("[INFO]: Deleting incomplete blob pack " + path);
+                Files.deleteIfExists(path);
+                return;
+            }
+
+            MappedByteBuffer mapped = map(path);
+            if (mapped.capacity() < HEADER_BYTES || mapped.getInt(0) != PACK_MAGIC || mapped.getInt(4) != VERSION) {
+                System.err.println("[ERROR]: Ignoring blob pack with an unknown format: " + path);
+                return;
+            }
+
+            Pack pack = new Pack(path, indexPath, mapped, Files.getLastModifiedTime(indexPath).toMillis());
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+                if (in.readInt() != INDEX_MAGIC || in.readInt() != VERSION) {
+                    System.err.println("[ERROR]: Ignoring blob pack index with an unknown format: " + indexPath);
+                    return;
+                }
+
+                int count = in.readInt();
+                if (count < 0) {
+                    throw new IOException("negative entry count");
+                }
+                byte[] hashBytes = new byte[32];
+                for (int i = 0; i < count; i++) {
+                    in.readFully(hashBytes);
+                    String hash = HashCalculator.bytesToHex(hashBytes);
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    boolean compressed = (in.readByte() & FLAG_COMPRESSED) != 0;
+                    if (offset < HEADER_BYTES || length < 0 || offset + length > mapped.capacity()) {
+                        throw new IOException("entry " + hash + " is out of the pack");
+                    }
+
+                    pack.entries.put(hash, new Entry(hash, pack, (int) offset, length, compressed));
+                }
+            }
+            register(pack);
+        } catch (EOFException e) {
+            System.err.println("[ERROR]: Failed to load blob pack " + path + ": index truncated");
+        } catch (IOException e) {
+            System.err.println("[ERROR]: Failed to load blob pack " + path + ": " + e.getMessage());
+        }
+    }
+}
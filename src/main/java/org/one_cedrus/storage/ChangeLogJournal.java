@@ -0,0 +1,612 @@
+package org.one_cedrus.storage;
+
+import org.one_cedrus.shared.ChangeLog;
+import org.one_cedrus.shared.ChangeLogCodec;
+import org.one_cedrus.util.ServerConfig;
+import org.one_cedrus.util.VaultUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only change log journal of a vault, stored in vaults/&lt;name&gt;/journal.
+ * <p>
+ * The journal is a sequence of segment files (&lt;id&gt;.seg) made of length-prefixed
+ * records: [int length][long timestamp][int crc32][change log]. The change log is either
+ * a zero byte followed by its {@link ChangeLogCodec} record, or JSON, which always
+ * starts with '{'. Readers get JSON either way. When a segment
+ * reaches the size limit it is sealed, a sparse index (&lt;id&gt;.idx) holding the offset
+ * and timestamp range of every block of records is written next to it, and a new
+ * segment is started. Reads go through read-only memory mappings and skip blocks whose
+ * timestamp range cannot match.
+ * <p>
+ * Compaction writes a new journal next to the live one (journal.compact) and swaps the
+ * directories, so only the swap itself holds the append lock.
+ */
+public class ChangeLogJournal implements ChangeLogStore, Closeable {
+    public static final String JOURNAL_DIRNAME = "journal";
+    private static final String COMPACT_DIRNAME = JOURNAL_DIRNAME + ".compact";
+    private static final String OLD_DIRNAME = JOURNAL_DIRNAME + ".old";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+    // Segment files are named after their id, zero-padded to 15 digits
+    private static final Pattern SEGMENT_NAME = Pattern.compile("\\d{1,18}" + Pattern.quote(SEGMENT_SUFFIX));
+    private static final int INDEX_MAGIC = 0x53564958; // "SVIX"
+    private static final int RECORD_HEADER_BYTES = 16;
+    private static final int BLOCK_RECORDS = 64;
+    private static final byte BINARY_RECORD = 0;
+
+    private final Path journalDir;
+    private final long maxSegmentBytes;
+    private final boolean binary;
+    private final List<Segment> segments = new ArrayList<>();
+    private FileChannel activeChannel;
+
+    private static class Block {
+        final long offset;
+        long minTimestamp = Long.MAX_VALUE;
+        long maxTimestamp = Long.MIN_VALUE;
+        int records;
+
+        Block(long offset) {
+            this.offset = offset;
+        }
+
+        Block copy() {
+            Block copy = new Block(offset);
+            copy.minTimestamp = minTimestamp;
+            copy.maxTimestamp = maxTimestamp;
+            copy.records = records;
+            return copy;
+        }
+    }
+
+    private static class Segment {
+        final long id;
+        final Path path;
+        final List<Block> blocks = new ArrayList<>();
+        long size;
+        MappedByteBuffer mapped;
+
+        Segment(Path journalDir, long id) {
+            this.id = id;
+            this.path = journalDir.resolve(String.format("%015d%s", id, SEGMENT_SUFFIX));
+        }
+
+        Path indexPath() {
+            return path.resolveSibling(String.format("%015d%s", id, INDEX_SUFFIX));
+        }
+
+        void addRecord(long offset, long timestamp, int length) {
+            Block block = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+            if (block == null || block.records >= BLOCK_RECORDS) {
+                block = new Block(offset);
+                blocks.add(block);
+            }
+
+            block.minTimestamp = Math.min(block.minTimestamp, timestamp);
+            block.maxTimestamp = Math.max(block.maxTimestamp, timestamp);
+            block.records++;
+            size = offset + RECORD_HEADER_BYTES + length;
+        }
+    }
+
+    private record SegmentView(ByteBuffer buffer, List<Block> blocks) {
+    }
+
+    @FunctionalInterface
+    private interface RecordVisitor {
+        void visit(long timestamp, byte[] content) throws IOException;
+    }
+
+    private ChangeLogJournal(Path journalDir, long maxSegmentBytes, boolean binary) {
+        this.journalDir = journalDir;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.binary = binary;
+    }
+
+    /**
+     * Open the journal of a vault, migrating its one-file-per-log change logs on first
+     * use
+     */
+    public static ChangeLogJournal openForVault(String vaultName) throws IOException {
+        Path journalDir = VaultUtils.getVaultDir(vaultName).toPath().resolve(JOURNAL_DIRNAME);
+        recoverCompaction(journalDir);
+        if (!Files.exists(journalDir)) {
+            migrateFromFiles(vaultName, journalDir);
+        }
+
+        return open(journalDir, ServerConfig.getJournalSegmentBytes());
+    }
+
+    public static ChangeLogJournal open(Path journalDir, long maxSegmentBytes) throws IOException {
+        return open(journalDir, maxSegmentBytes, ServerConfig.getJournalEncoding().equals("binary"));
+    }
+
+    /**
+     * @param binary whether appended change logs are stored in the binary encoding
+     *               rather than JSON
+     */
+    public static ChangeLogJournal open(Path journalDir, long maxSegmentBytes, boolean binary) throws IOException {
+        Files.createDirectories(journalDir);
+        ChangeLogJournal journal = new ChangeLogJournal(journalDir, maxSegmentBytes, binary);
+
+        List<Long> ids;
+        try (Stream<Path> paths = Files.list(journalDir)) {
+            ids = paths.map(p -> p.getFileName().toString())
+                    .filter(name -> name.endsWith(SEGMENT_SUFFIX))
+                    .filter(name -> {
+                        if (SEGMENT_NAME.matcher(name).matches()) {
+                            return true;
+                        }
+                        System.err.println("[ERROR]: Ignoring unexpected file " + name + " in journal " + journalDir);
+                        return false;
+                    })
+                    .map(name -> Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .toList();
+        }
+
+        for (int i = 0; i < ids.size(); i++) {
+            Segment segment = new Segment(journalDir, ids.get(i));
+            boolean active = i == ids.size() - 1;
+
+            if (active || !journal.loadIndex(segment)) {
+                journal.recover(segment, active);
+                if (!active) {
+                    journal.writeIndex(segment);
+                }
+            }
+            journal.segments.add(segment);
+        }
+
+        if (journal.segments.isEmpty()) {
+            journal.segments.add(new Segment(journalDir, 0));
+        }
+
+        journal.activeChannel = FileChannel.open(journal.activeSegment().path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        return journal;
+    }
+
+    /**
+     * The records of all change logs are written with one write into the same segment,
+     * and only become readable once all of them are written. A failed write is truncated
+     * away.
+     */
+    @Override
+    public void appendAll(List<ChangeLog> changeLogs) throws IOException {
+        long[] timestamps = new long[changeLogs.size()];
+        byte[][] contents = new byte[changeLogs.size()][];
+        for (int i = 0; i < contents.length; i++) {
+            timestamps[i] = changeLogs.get(i).getTimestamp();
+            contents[i] = encode(changeLogs.get(i));
+        }
+        appendRecords(timestamps, contents);
+    }
+
+    private void appendRecord(long timestamp, byte[] content) throws IOException {
+        appendRecords(new long[]{timestamp}, new byte[][]{content});
+    }
+
+    private synchronized void appendRecords(long[] timestamps, byte[][] contents) throws IOException {
+        int size = 0;
+        for (byte[] content : contents) {
+            size += RECORD_HEADER_BYTES + content.length;
+        }
+
+        ByteBuffer records = ByteBuffer.allocate(size);
+        for (int i = 0; i < contents.length; i++) {
+            CRC32 crc = new CRC32();
+            crc.update(contents[i]);
+            records.putInt(contents[i].length).putLong(timestamps[i]).putInt((int) crc.getValue()).put(contents[i]);
+        }
+        records.flip();
+
+        Segment active = activeSegment();
+        if (active.size > 0 && active.size + records.remaining() > maxSegmentBytes) {
+            active = rollSegment();
+        }
+
+        long offset = active.size;
+        long position = offset;
+        try {
+            while (records.hasRemaining()) {
+                position += activeChannel.write(records, position);
+            }
+        } catch (IOException e) {
+            activeChannel.truncate(offset);
+            throw e;
+        }
+
+        for (int i = 0; i < contents.length; i++) {
+            active.addRecord(offset, timestamps[i], contents[i].length);
+            offset = active.size;
+        }
+    }
+
+    @Override
+    public String get(long timestamp) throws IOException {
+        String[] found = new String[1];
+        for (SegmentView view : snapshot()) {
+            for (Block block : view.blocks()) {
+                if (timestamp < block.minTimestamp || timestamp > block.maxTimestamp) {
+                    continue;
+                }
+
+                // Keep scanning, a later record with the same timestamp replaces an earlier one
+                readBlock(view.buffer(), block, timestamp - 1, (ts, json) -> {
+                    if (ts == timestamp) {
+                        found[0] = json;
+                    }
+                });
+            }
+        }
+        return found[0];
+    }
+
+    @Override
+    public void forEach(Visitor visitor) throws IOException {
+        forEachSince(Long.MIN_VALUE, visitor);
+    }
+
+    @Override
+    public void forEachSince(long timestamp, Visitor visitor) throws IOException {
+        for (SegmentView view : snapshot()) {
+            for (Block block : view.blocks()) {
+                if (block.maxTimestamp > timestamp) {
+                    readBlock(view.buffer(), block, timestamp, visitor);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void compact(Map<Long, String> replacements, Set<Long> removed) throws IOException {
+        Path compactDir = journalDir.resolveSibling(COMPACT_DIRNAME);
+        Path oldDir = journalDir.resolveSibling(OLD_DIRNAME);
+        deleteRecursively(compactDir);
+
+        // Records of the other encoding are converted on the way
+        ChangeLogJournal compacted = open(compactDir, maxSegmentBytes, binary);
+        RecordVisitor copier = (timestamp, content) -> {
+            if (removed.contains(timestamp)) {
+                return;
+            }
+            String replacement = replacements.get(timestamp);
+            if (replacement != null) {
+                compacted.appendRecord(timestamp, compacted.encode(replacement));
+            } else if (isBinary(content) != binary) {
+                compacted.appendRecord(timestamp, compacted.encode(decode(content)));
+            } else {
+                compacted.appendRecord(timestamp, content);
+            }
+        };
+
+        // Bulk of the copy runs without the lock, appends carry on meanwhile
+        List<SegmentView> views = snapshot();
+        for (SegmentView view : views) {
+            forEachRecord(view, 0, copier);
+        }
+
+        synchronized (this) {
+            // Catch up with whatever was appended since the snapshot
+            List<SegmentView> current = snapshot();
+            for (int i = views.size() - 1; i < current.size(); i++) {
+                long fromOffset = i == views.size() - 1 ? views.get(i).buffer().capacity() : 0;
+                forEachRecord(current.get(i), fromOffset, copier);
+            }
+            compacted.close();
+
+            activeChannel.force(true);
+            activeChannel.close();
+            Files.move(journalDir, oldDir, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(compactDir, journalDir, StandardCopyOption.ATOMIC_MOVE);
+
+            // Readers still holding mappings of the old segments keep them until released
+            ChangeLogJournal reopened = open(journalDir, maxSegmentBytes, binary);
+            segments.clear();
+            segments.addAll(reopened.segments);
+            activeChannel = reopened.activeChannel;
+        }
+
+        deleteRecursively(oldDir);
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        // Sealed segments were forced when rolled. Only the data and the size are needed
+        // to read the records back, not the other metadata.
+        activeChannel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        activeChannel.force(true);
+        activeChannel.close();
+    }
+
+    private Segment activeSegment() {
+        return segments.get(segments.size() - 1);
+    }
+
+    private Segment rollSegment() throws IOException {
+        Segment sealed = activeSegment();
+        activeChannel.force(true);
+        activeChannel.close();
+        writeIndex(sealed);
+
+        Segment next = new Segment(journalDir, sealed.id + 1);
+        segments.add(next);
+        activeChannel = FileChannel.open(next.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        return next;
+    }
+
+    /**
+     * Capture the readable part of every segment. Records are never rewritten, so the
+     * views stay valid after the lock is released.
+     */
+    private synchronized List<SegmentView> snapshot() throws IOException {
+        List<SegmentView> views = new ArrayList<>(segments.size());
+        for (Segment segment : segments) {
+            if (segment.mapped == null || segment.mapped.capacity() != segment.size) {
+                try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+                    segment.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.size);
+                }
+            }
+
+            List<Block> blocks = new ArrayList<>(segment.blocks.size());
+            for (Block block : segment.blocks) {
+                blocks.add(block.copy());
+            }
+            views.add(new SegmentView(segment.mapped.duplicate(), blocks));
+        }
+        return views;
+    }
+
+    private static void forEachRecord(SegmentView view, long fromOffset, RecordVisitor visitor) throws IOException {
+        ByteBuffer buffer = view.buffer();
+        for (Block block : view.blocks()) {
+            int position = (int) block.offset;
+            for (int i = 0; i < block.records; i++) {
+                int length = buffer.getInt(position);
+                if (position >= fromOffset) {
+                    byte[] content = new byte[length];
+                    buffer.get(position + RECORD_HEADER_BYTES, content);
+                    visitor.visit(buffer.getLong(position + 4), content);
+                }
+                position += RECORD_HEADER_BYTES + length;
+            }
+        }
+    }
+
+    private static void readBlock(ByteBuffer buffer, Block block, long sinceTimestamp, Visitor visitor)
+            throws IOException {
+        int position = (int) block.offset;
+        for (int i = 0; i < block.records; i++) {
+            int length = buffer.getInt(position);
+            long timestamp = buffer.getLong(position + 4);
+
+            if (timestamp > sinceTimestamp) {
+                byte[] content = new byte[length];
+                buffer.get(position + RECORD_HEADER_BYTES, content);
+                visitor.visit(timestamp, toJson(content));
+            }
+
+            position += RECORD_HEADER_BYTES + length;
+        }
+    }
+
+    private byte[] encode(ChangeLog changeLog) throws IOException {
+        if (!binary) {
+            return changeLog.toJson().getBytes(StandardCharsets.UTF_8);
+        }
+
+        byte[] record = ChangeLogCodec.encodeRecord(changeLog);
+        byte[] content = new byte[1 + record.length];
+        content[0] = BINARY_RECORD;
+        System.arraycopy(record, 0, content, 1, record.length);
+        return content;
+    }
+
+    /**
+     * Stored as given unless appending in the binary encoding
+     */
+    private byte[] encode(String json) throws IOException {
+        return binary ? encode(ChangeLog.fromJson(json)) : json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static boolean isBinary(byte[] content) {
+        return content.length > 0 && content[0] == BINARY_RECORD;
+    }
+
+    private static ChangeLog decode(byte[] content) throws IOException {
+        if (isBinary(content)) {
+            return ChangeLogCodec.decodeRecord(content, 1, content.length - 1);
+        }
+        return ChangeLog.fromJson(new String(content, StandardCharsets.UTF_8));
+    }
+
+    private static String toJson(byte[] content) throws IOException {
+        if (isBinary(content)) {
+            return ChangeLogCodec.decodeRecord(content, 1, content.length - 1).toJson();
+        }
+        return new String(content, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Rebuild the block index of a segment by scanning it. A torn record at the end of
+     * the active segment (crash during append) is truncated away.
+     */
+    private void recover(Segment segment, boolean active) throws IOException {
+        if (!Files.exists(segment.path)) {
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            long fileSize = channel.size();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+
+            long position = 0;
+            while (position + RECORD_HEADER_BYTES <= fileSize) {
+                int length = buffer.getInt((int) position);
+                long timestamp = buffer.getLong((int) position + 4);
+                int expectedCrc = buffer.getInt((int) position + 12);
+
+                if (length < 0 || position + RECORD_HEADER_BYTES + length > fileSize) {
+                    break;
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update(buffer.slice((int) position + RECORD_HEADER_BYTES, length));
+                if ((int) crc.getValue() != expectedCrc) {
+                    break;
+                }
+
+                segment.addRecord(position, timestamp, length);
+                position = segment.size;
+            }
+
+            if (position < fileSize) {
+                System.err.println("[ERROR]: Corrupted record in journal segment " + segment.path + " at offset "
+                        + position + (active ? ", truncating" : ", ignoring the rest of the segment"));
+                if (active) {
+                    channel.truncate(position);
+                }
+            }
+        }
+    }
+
+    private void writeIndex(Segment segment) throws IOException {
+        Path tmpPath = segment.indexPath().resolveSibling(segment.indexPath().getFileName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmpPath)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeLong(segment.size);
+            out.writeInt(segment.blocks.size());
+            for (Block block : segment.blocks) {
+                out.writeLong(block.offset);
+                out.writeLong(block.minTimestamp);
+                out.writeLong(block.maxTimestamp);
+                out.writeInt(block.records);
+            }
+        }
+
+        Files.move(tmpPath, segment.indexPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private boolean loadIndex(Segment segment) throws IOException {
+        if (!Files.exists(segment.indexPath()) || !Files.exists(segment.path)) {
+            return false;
+        }
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(segment.indexPath())))) {
+            if (in.readInt() != INDEX_MAGIC) {
+                return false;
+            }
+
+            long size = in.readLong();
+            if (size != Files.size(segment.path)) {
+                return false;
+            }
+
+            // Blocks hold at least one record each, in increasing offset order from the start
+            int blockCount = in.readInt();
+            if (blockCount < 0 || blockCount > size / RECORD_HEADER_BYTES || (blockCount == 0) != (size == 0)) {
+                return false;
+            }
+            long nextOffset = 0;
+            for (int i = 0; i < blockCount; i++) {
+                Block block = new Block(in.readLong());
+                block.minTimestamp = in.readLong();
+                block.maxTimestamp = in.readLong();
+                block.records = in.readInt();
+                if ((i == 0 ? block.offset != 0 : block.offset < nextOffset) || block.offset >= size
+                        || block.records <= 0 || block.minTimestamp > block.maxTimestamp) {
+                    segment.blocks.clear();
+                    return false;
+                }
+                nextOffset = block.offset + (long) block.records * RECORD_HEADER_BYTES;
+                segment.blocks.add(block);
+            }
+            segment.size = size;
+            return true;
+        } catch (EOFException e) {
+            segment.blocks.clear();
+            return false;
+        }
+    }
+
+    /**
+     * One-shot migration from the one-file-per-log layout. The journal is built in a
+     * temporary directory and renamed into place, then the old change_logs directory is
+     * moved aside to change_logs.migrated.
+     */
+    private static void migrateFromFiles(String vaultName, Path journalDir) throws IOException {
+        Path tmpDir = journalDir.resolveSibling(JOURNAL_DIRNAME + ".tmp");
+        deleteRecursively(tmpDir);
+
+        int[] migrated = new int[1];
+        try (ChangeLogJournal journal = open(tmpDir, ServerConfig.getJournalSegmentBytes())) {
+            new FileChangeLogStore(vaultName).forEach((timestamp, json) -> {
+                journal.appendRecord(timestamp, journal.encode(json));
+                migrated[0]++;
+            });
+        }
+
+        Files.move(tmpDir, journalDir, StandardCopyOption.ATOMIC_MOVE);
+
+        File changeLogsDir = VaultUtils.getChangeLogsDir(vaultName);
+        if (changeLogsDir.exists()) {
+            Path retiredDir = changeLogsDir.toPath().resolveSibling(changeLogsDir.getName() + ".migrated");
+            Files.move(changeLogsDir.toPath(), retiredDir, StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("[INFO]: Migrated " + migrated[0] + " change logs of vault " + vaultName
+                    + " to the journal, old files kept in " + retiredDir);
+        }
+    }
+
+    /**
+     * Finish or roll back a compaction interrupted by a crash. Once the live journal has
+     * been moved aside, the compacted one is complete and only needs to be moved in.
+     */
+    private static void recoverCompaction(Path journalDir) throws IOException {
+        Path compactDir = journalDir.resolveSibling(COMPACT_DIRNAME);
+        Path oldDir = journalDir.resolveSibling(OLD_DIRNAME);
+
+        if (!Files.exists(journalDir) && Files.exists(oldDir)) {
+            Files.move(Files.exists(compactDir) ? compactDir : oldDir, journalDir, StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("[INFO]: Recovered interrupted journal compaction in " + journalDir);
+        }
+
+        deleteRecursively(oldDir);
+        deleteRecursively(compactDir);
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.one_cedrus.storage;
+
+import org.one_cedrus.shared.ChangeLog;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Server-side storage backend for the change logs of a single vault. Change logs are
+ * handed out in their serialized JSON form so callers can forward them without
+ * re-parsing.
+ */
+public interface ChangeLogStore {
+
+    @FunctionalInterface
+    interface Visitor {
+        void visit(long timestamp, String json) throws IOException;
+    }
+
+    /**
+     * Add a change log. It is readable once this returns, but only durable after the
+     * next {@link #sync()}.
+     */
+    default void append(ChangeLog changeLog) throws IOException {
+        appendAll(List.of(changeLog));
+    }
+
+    /**
+     * Add change logs as one unit, like {@link #append(ChangeLog)}: if this throws, none
+     * of them was added
+     */
+    void appendAll(List<ChangeLog> changeLogs) throws IOException;
+
+    /**
+     * Force every change log appended so far to disk
+     */
+    void sync() throws IOException;
+
+    /**
+     * Serialized change log with exactly the given timestamp, or null
+     */
+    String get(long timestamp) throws IOException;
+
+    /**
+     * Visit every stored change log. Order is storage order, which is not necessarily
+     * chronological.
+     */
+    void forEach(Visitor visitor) throws IOException;
+
+    /**
+     * Visit the change logs with a timestamp strictly greater than the given one, in
+     * storage order
+     */
+    void forEachSince(long timestamp, Visitor visitor) throws IOException;
+
+    /**
+     * Rewrite history: replace the change logs in the given map with their new JSON and
+     * drop the removed ones. Change logs appended meanwhile are kept.
+     */
+    void compact(Map<Long, String> replacements, Set<Long> removed) throws IOException;
+}
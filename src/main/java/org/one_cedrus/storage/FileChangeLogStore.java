@@ -0,0 +1,143 @@
+package org.one_cedrus.storage;
+
+import org.one_cedrus.shared.ChangeLog;
+import org.one_cedrus.util.VaultUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Original layout: one JSON file per change log in vaults/&lt;name&gt;/change_logs, named
+ * after its zero-padded timestamp. A change log is written to a temporary file and
+ * renamed into place, so readers never see it half written.
+ */
+public class FileChangeLogStore implements ChangeLogStore {
+    private final String vaultName;
+    private final List<Path> unsynced = new ArrayList<>();
+
+    public FileChangeLogStore(String vaultName) {
+        this.vaultName = vaultName;
+    }
+
+    /**
+     * Every change log is written to its temporary file before any is renamed into
+     * place. On failure the temporary files and the change logs already renamed are
+     * deleted again.
+     */
+    @Override
+    public void appendAll(List<ChangeLog> changeLogs) throws IOException {
+        File changeLogsDir = VaultUtils.getChangeLogsDir(vaultName);
+        List<Path> changeLogFiles = new ArrayList<>(changeLogs.size());
+        List<Path> tmpFiles = new ArrayList<>(changeLogs.size());
+        int moved = 0;
+        try {
+            for (ChangeLog changeLog : changeLogs) {
+                String fileName = VaultUtils.generateChangeLogFileName(changeLog.getTimestamp());
+                Path changeLogFile = new File(changeLogsDir, fileName).toPath();
+                Path tmpFile = changeLogFile.resolveSibling(fileName + ".tmp");
+
+                tmpFiles.add(tmpFile);
+                Files.writeString(tmpFile, changeLog.toJson());
+                changeLogFiles.add(changeLogFile);
+            }
+
+            for (; moved < changeLogFiles.size(); moved++) {
+                Files.move(tmpFiles.get(moved), changeLogFiles.get(moved), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (int i = 0; i < tmpFiles.size(); i++) {
+                Files.deleteIfExists(i < moved ? changeLogFiles.get(i) : tmpFiles.get(i));
+            }
+            throw e;
+        }
+
+        synchronized (unsynced) {
+            unsynced.addAll(changeLogFiles);
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        List<Path> changeLogFiles;
+        synchronized (unsynced) {
+            changeLogFiles = new ArrayList<>(unsynced);
+            unsynced.clear();
+        }
+        if (changeLogFiles.isEmpty()) {
+            return;
+        }
+
+        for (Path changeLogFile : changeLogFiles) {
+            try (FileChannel channel = FileChannel.open(changeLogFile, StandardOpenOption.WRITE)) {
+                channel.force(false);
+            } catch (NoSuchFileException e) {
+                // Replaced by compaction meanwhile, which wrote it anew
+            }
+        }
+
+        // One directory sync covers the renames of the whole batch
+        try (FileChannel channel = FileChannel.open(VaultUtils.getChangeLogsDir(vaultName).toPath(),
+                StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not every platform can sync a directory
+        }
+    }
+
+    @Override
+    public String get(long timestamp) throws IOException {
+        File changeLogFile = new File(VaultUtils.getChangeLogsDir(vaultName),
+                VaultUtils.generateChangeLogFileName(timestamp));
+        return changeLogFile.exists() ? Files.readString(changeLogFile.toPath()) : null;
+    }
+
+    @Override
+    public void forEach(Visitor visitor) throws IOException {
+        forEachSince(Long.MIN_VALUE, visitor);
+    }
+
+    @Override
+    public void forEachSince(long timestamp, Visitor visitor) throws IOException {
+        for (File changeLogFile : VaultUtils.getChangeLogFiles(vaultName)) {
+            String fileName = changeLogFile.getName();
+
+            long fileTimestamp;
+            try {
+                fileTimestamp = Long.parseLong(fileName.substring(0, fileName.length() - 5));
+            } catch (NumberFormatException e) {
+                System.err.println("[ERROR]: Invalid change log filename: " + fileName);
+                continue;
+            }
+
+            if (fileTimestamp > timestamp) {
+                visitor.visit(fileTimestamp, Files.readString(changeLogFile.toPath()));
+            }
+        }
+    }
+
+    @Override
+    public void compact(Map<Long, String> replacements, Set<Long> removed) throws IOException {
+        File changeLogsDir = VaultUtils.getChangeLogsDir(vaultName);
+
+        // Replacements first, so a change log's state is always readable from some file
+        for (Map.Entry<Long, String> entry : replacements.entrySet()) {
+            Path changeLogFile = new File(changeLogsDir,
+                    VaultUtils.generateChangeLogFileName(entry.getKey())).toPath();
+            Path tmpFile = changeLogFile.resolveSibling(changeLogFile.getFileName() + ".tmp");
+
+            Files.writeString(tmpFile, entry.getValue());
+            Files.move(tmpFile, changeLogFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        for (long timestamp : removed) {
+            Files.deleteIfExists(new File(changeLogsDir, VaultUtils.generateChangeLogFileName(timestamp)).toPath());
+        }
+    }
+}
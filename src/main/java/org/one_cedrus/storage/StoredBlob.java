@@ -0,0 +1,154 @@
+package org.one_cedrus.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A blob as stored in the blob store: either a loose file, &lt;hash&gt; or
+ * &lt;hash&gt;.gz, or an entry of a pack (see {@link BlobPacks}). Its stored bytes are
+ * the raw content or the gzip-compressed content. Compressed blobs are at most 4 GiB
+ * uncompressed, so the gzip trailer holds their exact size.
+ */
+public final class StoredBlob {
+    private final File file;
+    private final ByteBuffer packedContent;
+    private final boolean compressed;
+
+    private StoredBlob(File file, ByteBuffer packedContent, boolean compressed) {
+        this.file = file;
+        this.packedContent = packedContent;
+        this.compressed = compressed;
+    }
+
+    public static StoredBlob loose(File file, boolean compressed) {
+        return new StoredBlob(file, null, compressed);
+    }
+
+    /**
+     * @param content stored bytes, e.g. a slice of a mapped pack; never modified
+     */
+    public static StoredBlob packed(ByteBuffer content, boolean compressed) {
+        return new StoredBlob(null, content, compressed);
+    }
+
+    /**
+     * Loose file of the blob, or null if it is packed
+     */
+    public File file() {
+        return file;
+    }
+
+    public boolean compressed() {
+        return compressed;
+    }
+
+    /**
+     * Size of the uncompressed content
+     */
+    public long rawLength() throws IOException {
+        if (!compressed) {
+            return storedLength();
+        }
+
+        if (packedContent != null) {
+            ByteBuffer trailer = packedContent.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            return trailer.getInt(trailer.limit() - 4) & 0xffffffffL;
+        }
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            randomAccessFile.seek(randomAccessFile.length() - 4);
+            byte[] trailer = new byte[4];
+            randomAccessFile.readFully(trailer);
+            return (trailer[0] & 0xffL) | (trailer[1] & 0xffL) << 8 | (trailer[2] & 0xffL) << 16
+                    | (trailer[3] & 0xffL) << 24;
+        }
+    }
+
+    /**
+     * Size of the stored bytes
+     */
+    public long storedLength() {
+        return packedContent != null ? packedContent.limit() : file.length();
+    }
+
+    /**
+     * Read the stored bytes, compressed or not
+     */
+    public InputStream openStored() throws IOException {
+        return packedContent != null ? new ByteBufferInputStream(packedContent.duplicate()) : new FileInputStream(file);
+    }
+
+    /**
+     * Read the uncompressed content
+     */
+    public InputStream openRaw() throws IOException {
+        InputStream in = openStored();
+        return compressed ? new GZIPInputStream(in, 64 * 1024) : in;
+    }
+
+    /**
+     * Send part of the stored bytes, without copying them through the heap where the
+     * target allows it
+     */
+    public void transferStored(long position, long count, WritableByteChannel target) throws IOException {
+        if (packedContent != null) {
+            ByteBuffer slice = packedContent.slice((int) position, (int) count);
+            while (slice.hasRemaining()) {
+                target.write(slice);
+            }
+            return;
+        }
+
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long end = position + count;
+            while (position < end) {
+                long transferred = fileChannel.transferTo(position, end - position, target);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
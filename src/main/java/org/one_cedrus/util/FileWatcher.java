@@ -23,7 +23,7 @@ public class FileWatcher {
     private DirectoryWatcher watcher;
     private final ScheduledExecutorService debounceExecutor = Executors.newSingleThreadScheduledExecutor();
     private final Map<Path, DirectoryChangeEvent> pendingChanges = new HashMap<>();
-    private ScheduledFuture<?> applyChangeTask;
+    private volatile ScheduledFuture<?> applyChangeTask;
 
     public FileWatcher(Path folderPath, Consumer<List<FileChange>> onFileChange, int debounceSeconds) {
         this.folderPath = folderPath;
@@ -58,6 +58,14 @@ public class FileWatcher {
         }
     }
 
+    /**
+     * Whether local changes were seen that are not handed over yet
+     */
+    public boolean hasPendingChanges() {
+        ScheduledFuture<?> task = applyChangeTask;
+        return task != null && !task.isDone();
+    }
+
     private void handleDirectoryEvent(DirectoryChangeEvent event) {
         Path changedPath = event.path();
 
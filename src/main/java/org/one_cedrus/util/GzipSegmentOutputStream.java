@@ -0,0 +1,204 @@
+package org.one_cedrus.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip stream assembled from deflate segments, so parts compressed once can be reused in
+ * many streams. Each segment, whether {@link #compress precompressed} or deflated from
+ * the bytes written in between, ends on a sync flush boundary and does not refer back to
+ * earlier data, so segments concatenate into a single deflate stream. Their CRCs are
+ * combined for the trailer, and the result is one gzip member that any client inflates.
+ * <p>
+ * Closing ends the gzip stream but leaves the underlying stream open.
+ */
+public class GzipSegmentOutputStream extends OutputStream {
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    // Empty final block with fixed Huffman codes, after a byte-aligned sync flush
+    private static final byte[] FINAL_BLOCK = {0x03, 0x00};
+
+    private final OutputStream out;
+    private final int level;
+    private final byte[] buffer = new byte[64 * 1024];
+    private final CRC32 liveCrc = new CRC32();
+
+    private Deflater deflater;
+    private long liveLength = 0;
+    private long crc = 0;
+    private long length = 0;
+    private boolean closed = false;
+
+    /**
+     * A deflate segment of raw data
+     */
+    public record Segment(byte[] deflated, long crc, long rawLength) {
+    }
+
+    public GzipSegmentOutputStream(OutputStream out, int level) throws IOException {
+        this.out = out;
+        this.level = level;
+        out.write(HEADER);
+    }
+
+    /**
+     * Deflate data into a segment that can be written to any number of streams
+     */
+    public static Segment compress(byte[] data, int offset, int count, int level) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, count);
+
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data, offset, count);
+            byte[] buffer = new byte[Math.max(64, count / 2)];
+            ByteArrayOutputStream deflated = new ByteArrayOutputStream(buffer.length);
+            int n;
+            do {
+                n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                deflated.write(buffer, 0, n);
+            } while (n == buffer.length || !deflater.needsInput());
+            return new Segment(deflated.toByteArray(), crc.getValue(), count);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int count) throws IOException {
+        if (count == 0) {
+            return;
+        }
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+
+        liveCrc.update(data, offset, count);
+        liveLength += count;
+        deflater.setInput(data, offset, count);
+        while (!deflater.needsInput()) {
+            int n = deflater.deflate(buffer, 0, buffer.length, Deflater.NO_FLUSH);
+            out.write(buffer, 0, n);
+        }
+    }
+
+    /**
+     * Write a precompressed segment after the data written so far
+     */
+    public void writeSegment(Segment segment) throws IOException {
+        endLiveSegment();
+        out.write(segment.deflated());
+        crc = combineCrc(crc, segment.crc(), segment.rawLength());
+        length += segment.rawLength();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        endLiveSegment();
+        out.write(FINAL_BLOCK);
+        writeIntLE((int) crc);
+        writeIntLE((int) length);
+        out.flush();
+    }
+
+    private void endLiveSegment() throws IOException {
+        if (deflater == null) {
+            return;
+        }
+
+        try {
+            int n;
+            do {
+                n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                out.write(buffer, 0, n);
+            } while (n == buffer.length);
+        } finally {
+            deflater.end();
+            deflater = null;
+        }
+
+        crc = combineCrc(crc, liveCrc.getValue(), liveLength);
+        length += liveLength;
+        liveCrc.reset();
+        liveLength = 0;
+    }
+
+    private void writeIntLE(int value) throws IOException {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    /**
+     * CRC-32 of two concatenated blocks of data from their CRCs, as zlib's crc32_combine
+     */
+    private static long combineCrc(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+
+        long[] even = new long[32];
+        long[] odd = new long[32];
+
+        // Operator for one zero bit
+        odd[0] = 0xedb88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        // Two then four zero bits
+        squareGf2Matrix(even, odd);
+        squareGf2Matrix(odd, even);
+
+        // Apply length2 zero bytes to crc1
+        do {
+            squareGf2Matrix(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = multiplyGf2Matrix(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+
+            squareGf2Matrix(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = multiplyGf2Matrix(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static long multiplyGf2Matrix(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void squareGf2Matrix(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = multiplyGf2Matrix(matrix, matrix[n]);
+        }
+    }
+}
@@ -53,10 +53,21 @@ public class HashCalculator {
         }
     }
 
+    /**
+     * Create a fresh SHA-256 digest, e.g. to hash content while it is being written
+     */
+    public static MessageDigest newMessageDigest() throws HashCalculationException {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new HashCalculationException(ALGORITHM + " algorithm not available", e);
+        }
+    }
+
     /**
      * Convert byte array to hexadecimal string
      */
-    private static String bytesToHex(byte[] hashBytes) {
+    public static String bytesToHex(byte[] hashBytes) {
         StringBuilder sb = new StringBuilder();
         for (byte b : hashBytes) {
             sb.append(String.format("%02x", b));
@@ -0,0 +1,295 @@
+package org.one_cedrus.util;
+
+/**
+ * Server tunables. Each value is read from a JVM system property (e.g.
+ * -Dsv.changelog.index.budget.bytes=...) or the matching environment variable
+ * (SV_CHANGELOG_INDEX_BUDGET_BYTES), falling back to a built-in default.
+ */
+public class ServerConfig {
+
+    /**
+     * Upper bound for the serialized change logs kept in memory by the change log
+     * index, across all vaults
+     */
+    public static long getChangeLogIndexBudgetBytes() {
+        return getLong("sv.changelog.index.budget.bytes", 64L * 1024 * 1024);
+    }
+
+    /**
+     * Number of consecutive change logs compressed together and cached for gzip change
+     * log responses
+     */
+    public static int getChangeLogCacheBatch() {
+        return (int) Math.max(1, getLong("sv.changelog.cache.batch", 128));
+    }
+
+    /**
+     * Upper bound for the precompressed change log batches kept in memory, across all
+     * vaults. 0 disables the cache.
+     */
+    public static long getChangeLogCacheBudgetBytes() {
+        return getLong("sv.changelog.cache.budget.bytes", 32L * 1024 * 1024);
+    }
+
+    /**
+     * Change log storage backend for vaults: "files" (one JSON file per change log) or
+     * "journal" (append-only segmented journal)
+     */
+    public static String getChangeLogStorage() {
+        String value = get("sv.changelog.storage");
+        return value == null || value.isBlank() ? "files" : value.trim().toLowerCase();
+    }
+
+    /**
+     * Size at which a journal segment is sealed and a new one started
+     */
+    public static long getJournalSegmentBytes() {
+        return Math.min(getLong("sv.journal.segment.bytes", 64L * 1024 * 1024), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Encoding of the change logs appended to journals: "json" or "binary" (the binary
+     * change log encoding, less than half the size but converted to JSON on every read).
+     * Journals read records of either encoding.
+     */
+    public static String getJournalEncoding() {
+        String value = get("sv.journal.encoding");
+        return value == null || value.isBlank() ? "json" : value.trim().toLowerCase();
+    }
+
+    /**
+     * Port the server listens on, for HTTP and the WebSocket
+     */
+    public static int getHttpPort() {
+        return (int) getLong("sv.http.port", 4289);
+    }
+
+    /**
+     * Whether requests are handled on virtual threads ("virtual") instead of Jetty's
+     * bounded pool of platform threads ("platform")
+     */
+    public static boolean useVirtualThreads() {
+        String threads = get("sv.http.threads");
+        return threads != null && threads.trim().equalsIgnoreCase("virtual");
+    }
+
+    /**
+     * Most requests handled at once on virtual threads
+     */
+    public static int getHttpMaxConcurrentRequests() {
+        return (int) Math.max(1, Math.min(getLong("sv.http.max.concurrent.requests", 1024), Integer.MAX_VALUE));
+    }
+
+    /**
+     * Threads committing change logs; each vault always commits on the same one
+     */
+    public static int getCommitThreads() {
+        int defaultThreads = Runtime.getRuntime().availableProcessors();
+        return (int) Math.max(1, Math.min(getLong("sv.commit.threads", defaultThreads), 1024));
+    }
+
+    /**
+     * Largest accepted file part in a multipart upload, -1 for no limit
+     */
+    public static long getUploadMaxFileBytes() {
+        return getLong("sv.upload.max.file.bytes", -1);
+    }
+
+    /**
+     * Largest accepted multipart upload request, -1 for no limit
+     */
+    public static long getUploadMaxRequestBytes() {
+        return getLong("sv.upload.max.request.bytes", -1);
+    }
+
+    /**
+     * Size above which an uploaded part is spooled to disk instead of kept in memory
+     */
+    public static int getUploadMemoryThresholdBytes() {
+        return (int) Math.min(getLong("sv.upload.memory.threshold.bytes", 64 * 1024), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Number of change logs after which a directory state checkpoint is taken
+     */
+    public static long getCheckpointIntervalChangeLogs() {
+        return Math.max(1, getLong("sv.checkpoint.interval.changelogs", 1000));
+    }
+
+    /**
+     * Size of serialized change logs after which a directory state checkpoint is taken
+     */
+    public static long getCheckpointIntervalBytes() {
+        return Math.max(1, getLong("sv.checkpoint.interval.bytes", 16L * 1024 * 1024));
+    }
+
+    /**
+     * Delay between two background compaction runs over all vaults, 0 to disable them
+     */
+    public static long getCompactionIntervalMillis() {
+        return getLong("sv.compaction.interval.ms", 0);
+    }
+
+    /**
+     * Change logs younger than this are never squashed by compaction
+     */
+    public static long getCompactionRetentionMillis() {
+        return getLong("sv.compaction.retention.ms", 30L * 24 * 60 * 60 * 1000);
+    }
+
+    /**
+     * Number of newest change logs that compaction always keeps as they are
+     */
+    public static long getCompactionKeepChangeLogs() {
+        return Math.max(0, getLong("sv.compaction.keep.changelogs", 100));
+    }
+
+    /**
+     * Smallest number of squashable change logs for which a vault is worth compacting
+     */
+    public static long getCompactionMinChangeLogs() {
+        return Math.max(1, getLong("sv.compaction.min.changelogs", 100));
+    }
+
+    /**
+     * Delay between two background blob garbage collections, 0 to disable them
+     */
+    public static long getGcIntervalMillis() {
+        return getLong("sv.gc.interval.ms", 0);
+    }
+
+    /**
+     * Blobs and references touched more recently than this are never collected, which
+     * covers uploads whose change logs are not committed yet
+     */
+    public static long getGcGraceMillis() {
+        return Math.max(0, getLong("sv.gc.grace.ms", 24L * 60 * 60 * 1000));
+    }
+
+    /**
+     * Number of blobs the collector deletes before pausing
+     */
+    public static int getGcBatchSize() {
+        return (int) Math.max(1, Math.min(getLong("sv.gc.batch.size", 1000), Integer.MAX_VALUE));
+    }
+
+    /**
+     * Pause between two batches of deletions
+     */
+    public static long getGcBatchPauseMillis() {
+        return Math.max(0, getLong("sv.gc.batch.pause.ms", 100));
+    }
+
+    /**
+     * Delay between two background repacks of small loose blobs, 0 to disable them
+     */
+    public static long getPackIntervalMillis() {
+        return Math.max(0, getLong("sv.pack.interval.ms", 0));
+    }
+
+    /**
+     * Largest stored blob that is moved into a pack
+     */
+    public static long getPackMaxBlobBytes() {
+        return Math.max(0, getLong("sv.pack.max.blob.bytes", 16 * 1024));
+    }
+
+    /**
+     * Size at which a pack is closed and the next one started
+     */
+    public static long getPackTargetBytes() {
+        return Math.max(1, Math.min(getLong("sv.pack.target.bytes", 64L * 1024 * 1024), Integer.MAX_VALUE));
+    }
+
+    /**
+     * Smallest number of small loose blobs for which a repack is worth it
+     */
+    public static int getPackMinBlobs() {
+        return (int) Math.max(1, Math.min(getLong("sv.pack.min.blobs", 256), Integer.MAX_VALUE));
+    }
+
+    /**
+     * Largest change log batch pushed over the WebSocket to clients that apply pushed
+     * change logs; larger ones are only announced. 0 disables pushing.
+     */
+    public static long getWsPushMaxBytes() {
+        return getLong("sv.ws.push.max.bytes", 64L * 1024);
+    }
+
+    /**
+     * Whether WebSocket clients that take binary frames get them instead of text messages
+     */
+    public static boolean useWsBinaryFrames() {
+        String value = get("sv.ws.binary.frames");
+        return value == null || !value.trim().equalsIgnoreCase("false");
+    }
+
+    /**
+     * Time between two heartbeats sent to each WebSocket client
+     */
+    public static long getWsHeartbeatMillis() {
+        return Math.max(1, getLong("sv.ws.heartbeat.ms", 30_000));
+    }
+
+    /**
+     * Number of slices the WebSocket clients are split into for heartbeats, one slice
+     * being sent to per tick, so heartbeats spread across the interval
+     */
+    public static int getWsHeartbeatSlots() {
+        return (int) Math.max(1, Math.min(getLong("sv.ws.heartbeat.slots", 300), Integer.MAX_VALUE));
+    }
+
+    /**
+     * Quiet time after a commit during which further commits to the vault are announced
+     * to WebSocket clients together with it, 0 to announce every commit at once
+     */
+    public static long getWsCoalesceMillis() {
+        return Math.max(0, getLong("sv.ws.coalesce.ms", 100));
+    }
+
+    /**
+     * Longest a commit waits to be announced while later commits keep extending the
+     * coalescing window
+     */
+    public static long getWsCoalesceMaxMillis() {
+        return Math.max(0, getLong("sv.ws.coalesce.max.ms", 1000));
+    }
+
+    /**
+     * Most messages queued for one WebSocket client before it is disconnected as a slow
+     * consumer
+     */
+    public static int getWsQueueMaxMessages() {
+        return (int) Math.max(1, Math.min(getLong("sv.ws.queue.max.messages", 64), Integer.MAX_VALUE));
+    }
+
+    /**
+     * Longest a WebSocket client may take to accept a message before it is disconnected
+     * as a slow consumer
+     */
+    public static long getWsSendTimeoutMillis() {
+        return Math.max(1, getLong("sv.ws.send.timeout.ms", 30_000));
+    }
+
+    static String get(String key) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = System.getenv(key.toUpperCase().replace('.', '_'));
+        }
+        return value;
+    }
+
+    static long getLong(String key, long defaultValue) {
+        String value = get(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("[ERROR]: Invalid value for " + key + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.one_cedrus.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Timing wheel running a periodic action for every element it holds, such as a
+ * heartbeat per connection. Elements are dealt over the slots of the wheel in turn, and
+ * each tick handles one slot, so the work of an interval is split evenly across it instead of
+ * arriving in a single burst. Adding and removing an element are O(1).
+ */
+public class TimingWheel<T> {
+    private final List<Set<T>> slots;
+    private final long tickMillis;
+    private final Consumer<T> action;
+    private final AtomicInteger nextSlot = new AtomicInteger();
+    private int currentSlot = 0;
+
+    /**
+     * @param intervalMillis time between two runs of the action for the same element
+     * @param slotCount number of slots the interval is split into
+     */
+    public TimingWheel(long intervalMillis, int slotCount, Consumer<T> action) {
+        this.slots = new ArrayList<>(Math.max(1, slotCount));
+        for (int i = 0; i < Math.max(1, slotCount); i++) {
+            slots.add(ConcurrentHashMap.newKeySet());
+        }
+        this.tickMillis = Math.max(1, intervalMillis / slots.size());
+        this.action = action;
+    }
+
+    /**
+     * Start turning the wheel on the given scheduler
+     */
+    public void start(ScheduledExecutorService scheduler) {
+        scheduler.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return slot of the element, to remove it with
+     */
+    public int add(T element) {
+        int slot = Math.floorMod(nextSlot.getAndIncrement(), slots.size());
+        slots.get(slot).add(element);
+        return slot;
+    }
+
+    public void remove(T element, int slot) {
+        slots.get(slot).remove(element);
+    }
+
+    private void tick() {
+        Set<T> slot = slots.get(currentSlot);
+        currentSlot = (currentSlot + 1) % slots.size();
+
+        for (T element : slot) {
+            try {
+                action.accept(element);
+            } catch (RuntimeException e) {
+                // One failing element must not stop the wheel
+                System.err.println("[ERROR]: Timing wheel action failed: " + e.getMessage());
+            }
+        }
+    }
+}
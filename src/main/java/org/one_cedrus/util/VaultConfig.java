@@ -8,6 +8,8 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 
 public class VaultConfig {
+    private static final Gson GSON = new Gson();
+
     private String vaultName;
     private String serverUrl;
     private String websocketUrl;
@@ -69,11 +71,11 @@ public class VaultConfig {
     }
 
     public String toJson() {
-        return new Gson().toJson(this);
+        return GSON.toJson(this);
     }
 
     public static VaultConfig fromJson(String json) {
-        return new Gson().fromJson(json, VaultConfig.class);
+        return GSON.fromJson(json, VaultConfig.class);
     }
 
     public static VaultConfig loadFromFile(Path configPath) throws IOException {
@@ -2,14 +2,38 @@ package org.one_cedrus.util;
 
 import org.one_cedrus.exception.HashCalculationException;
 import org.one_cedrus.exception.VaultException;
-import org.one_cedrus.shared.ChangeLog;
+import org.one_cedrus.service.BlobIndex;
+import org.one_cedrus.service.BlobMetrics;
+import org.one_cedrus.shared.BlobCodec;
+import org.one_cedrus.shared.BlobPaths;
+import org.one_cedrus.shared.BlobSweeper;
+import org.one_cedrus.storage.BlobPacks;
+import org.one_cedrus.storage.ChangeLogJournal;
+import org.one_cedrus.storage.ChangeLogStore;
+import org.one_cedrus.storage.FileChangeLogStore;
+import org.one_cedrus.storage.StoredBlob;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
 
 public class VaultUtils {
+    private static final String BLOBS_DIRNAME = "blobs";
+    private static final String INCOMING_DIRNAME = ".incoming";
+    public static final String CHUNKS_SUFFIX = ".chunks";
+    public static final String COMPRESSED_SUFFIX = ".gz";
+    private static final Pattern HASH_PATTERN = Pattern.compile("[0-9a-f]{64}");
+    private static final Map<String, ChangeLogStore> changeLogStores = new HashMap<>();
 
     public static String calculateFileHash(File file) throws IOException, HashCalculationException {
         return HashCalculator.calculateFileHash(file);
@@ -27,7 +51,6 @@ public class VaultUtils {
     public static void ensureVaultStructure(String vaultName) throws VaultException {
         File vaultDir = new File("vaults/" + vaultName);
         File changeLogsDir = new File(vaultDir, "change_logs");
-        File filesDir = new File(vaultDir, "files");
 
         // This is rarely happen!
         if (vaultDir.exists()) {
@@ -35,7 +58,7 @@ public class VaultUtils {
                     "There was a vaultDir with the same name existed! Let's use a different vaultName");
         }
 
-        boolean success = vaultDir.mkdirs() && changeLogsDir.mkdirs() && filesDir.mkdirs();
+        boolean success = vaultDir.mkdirs() && changeLogsDir.mkdirs();
         if (!success) {
             throw new VaultException("Failed to create vault directory structure for: " + vaultName);
         }
@@ -49,6 +72,10 @@ public class VaultUtils {
         return new File("vaults/" + vaultName + "/change_logs");
     }
 
+    /**
+     * A vault's own files directory, from before the global blob store. It only holds
+     * blobs until {@link org.one_cedrus.service.BlobStoreMigration} moves them.
+     */
     public static File getFilesDir(String vaultName) {
         return new File("vaults/" + vaultName + "/files");
     }
@@ -77,41 +104,352 @@ public class VaultUtils {
         return String.format("%015d.json", timestamp);
     }
 
-    public static void saveChangeLog(String vaultName, ChangeLog changeLog) throws IOException {
-        File changeLogsDir = getChangeLogsDir(vaultName);
-        String fileName = generateChangeLogFileName(changeLog.getTimestamp());
-        File changeLogFile = new File(changeLogsDir, fileName);
+    /**
+     * Get the change log storage backend of a vault, as selected by
+     * {@link ServerConfig#getChangeLogStorage()}
+     */
+    public static ChangeLogStore getChangeLogStore(String vaultName) throws IOException {
+        synchronized (changeLogStores) {
+            ChangeLogStore store = changeLogStores.get(vaultName);
+            if (store == null) {
+                store = "journal".equals(ServerConfig.getChangeLogStorage())
+                        ? ChangeLogJournal.openForVault(vaultName)
+                        : new FileChangeLogStore(vaultName);
+                changeLogStores.put(vaultName, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Server-wide content-addressed blob store: each unique content is stored once, in
+     * the layout of {@link BlobPaths}, and vaults reference it through their
+     * {@link BlobIndex}
+     */
+    public static File getBlobsDir() {
+        return new File(BLOBS_DIRNAME);
+    }
+
+    /**
+     * Directory for uploads in progress. It lives inside the blob store so that finished
+     * uploads can be renamed into place atomically.
+     */
+    public static File getIncomingDir() {
+        return new File(getBlobsDir(), INCOMING_DIRNAME);
+    }
+
+    public static boolean isValidHash(String hash) {
+        return hash != null && HASH_PATTERN.matcher(hash).matches();
+    }
+
+    /**
+     * Stream content into the blob store under its hash name. The content is hashed while it
+     * is written to a temporary file, which is renamed into place only if the hash
+     * matches, so a partial or corrupt upload never becomes visible. Content that passes
+     * the compressibility probe is stored gzip-compressed.
+     *
+     * @return uncompressed size
+     */
+    public static long saveFileByHash(String hash, InputStream inputStream)
+            throws IOException, HashCalculationException {
+        if (!isValidHash(hash)) {
+            throw new IllegalArgumentException("Invalid file hash: " + hash);
+        }
+
+        byte[] sample = inputStream.readNBytes(BlobCodec.PROBE_BYTES);
+        boolean compress = BlobCodec.isCompressible(sample, sample.length);
+
+        Path incomingDir = getIncomingDir().toPath();
+        Files.createDirectories(incomingDir);
+        Path tmpFile = Files.createTempFile(incomingDir, hash, ".tmp");
+
+        try {
+            MessageDigest digest = HashCalculator.newMessageDigest();
+            long rawBytes;
+            try (OutputStream fileOutputStream = Files.newOutputStream(tmpFile);
+                 OutputStream outputStream = new DigestOutputStream(compress
+                         ? new GZIPOutputStream(fileOutputStream, 64 * 1024)
+                         : fileOutputStream, digest)) {
+                outputStream.write(sample);
+                rawBytes = sample.length + inputStream.transferTo(outputStream);
+            }
+
+            String actualHash = HashCalculator.bytesToHex(digest.digest());
+            if (!hash.equals(actualHash)) {
+                throw new IllegalArgumentException(
+                        "Hash mismatch for file. Expected: " + hash + ", Actual: " + actualHash);
+            }
+
+            commitBlob(hash, tmpFile, compress, rawBytes);
+            return rawBytes;
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    /**
+     * Save a blob received gzip-compressed as it is, once the hash of its uncompressed
+     * content is verified
+     *
+     * @return uncompressed size
+     */
+    public static long saveCompressedFileByHash(String hash, InputStream gzipStream)
+            throws IOException, HashCalculationException {
+        if (!isValidHash(hash)) {
+            throw new IllegalArgumentException("Invalid file hash: " + hash);
+        }
+
+        Path incomingDir = getIncomingDir().toPath();
+        Files.createDirectories(incomingDir);
+        Path tmpFile = Files.createTempFile(incomingDir, hash, ".tmp");
+
+        try {
+            Files.copy(gzipStream, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+
+            MessageDigest digest = HashCalculator.newMessageDigest();
+            long rawBytes;
+            try (InputStream inputStream = new GZIPInputStream(Files.newInputStream(tmpFile), 64 * 1024);
+                 OutputStream outputStream = new DigestOutputStream(OutputStream.nullOutputStream(), digest)) {
+                rawBytes = inputStream.transferTo(outputStream);
+            } catch (ZipException | EOFException e) {
+                throw new IllegalArgumentException("Invalid gzip content for file " + hash + ": " + e.getMessage());
+            }
+
+            String actualHash = HashCalculator.bytesToHex(digest.digest());
+            if (!hash.equals(actualHash)) {
+                throw new IllegalArgumentException(
+                        "Hash mismatch for file. Expected: " + hash + ", Actual: " + actualHash);
+            }
+
+            commitBlob(hash, tmpFile, true, rawBytes);
+            return rawBytes;
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    /**
+     * Check that uploaded content, plain or gzip-compressed, has the given hash without
+     * storing it, for a blob the store already has
+     *
+     * @return uncompressed size
+     */
+    public static long verifyFileHash(String hash, InputStream inputStream, boolean gzip)
+            throws IOException, HashCalculationException {
+        MessageDigest digest = HashCalculator.newMessageDigest();
+        long rawBytes;
+        try (InputStream rawStream = gzip ? new GZIPInputStream(inputStream, 64 * 1024) : inputStream;
+             OutputStream outputStream = new DigestOutputStream(OutputStream.nullOutputStream(), digest)) {
+            rawBytes = rawStream.transferTo(outputStream);
+        } catch (ZipException | EOFException e) {
+            throw new IllegalArgumentException("Invalid gzip content for file " + hash + ": " + e.getMessage());
+        }
+
+        String actualHash = HashCalculator.bytesToHex(digest.digest());
+        if (!hash.equals(actualHash)) {
+            throw new IllegalArgumentException("Hash mismatch for file. Expected: " + hash + ", Actual: " + actualHash);
+        }
+        return rawBytes;
+    }
+
+    private static void commitBlob(String hash, Path tmpFile, boolean compressed, long rawBytes) throws IOException {
+        if (compressed && rawBytes > 0xFFFFFFFFL) {
+            // The gzip trailer only holds the size modulo 4 GiB, keep such blobs uncompressed
+            Path rawFile = Files.createTempFile(tmpFile.getParent(), hash, ".tmp");
+            try {
+                try (InputStream inputStream = new GZIPInputStream(Files.newInputStream(tmpFile), 64 * 1024)) {
+                    Files.copy(inputStream, rawFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+                Files.move(rawFile, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(rawFile);
+            }
+            compressed = false;
+        }
+
+        Path blobsDir = getBlobsDir().toPath();
+        long diskBytes = Files.size(tmpFile);
+        Files.move(tmpFile, BlobPaths.resolveForWrite(blobsDir, compressed ? hash + COMPRESSED_SUFFIX : hash),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
 
-        try (FileWriter writer = new FileWriter(changeLogFile)) {
-            writer.write(changeLog.toJson());
+        // Only one form of a blob is kept
+        BlobPaths.delete(blobsDir, compressed ? hash : hash + COMPRESSED_SUFFIX);
+        BlobMetrics.onStored(rawBytes, diskBytes, compressed);
+    }
+
+    /**
+     * Whether the blob store has a file, loose, packed or as chunks, for any vault
+     */
+    public static boolean hasBlob(String hash) {
+        Path blobsDir = getBlobsDir().toPath();
+        return BlobPacks.contains(hash) || BlobPaths.exists(blobsDir, hash) || BlobPaths.exists(blobsDir, hash + COMPRESSED_SUFFIX)
+                || BlobPaths.exists(blobsDir, hash + CHUNKS_SUFFIX);
+    }
+
+    /**
+     * Mark a stored file as just used, so garbage collection keeps it through its grace
+     * period while the reference to it is being recorded. Covers the chunks of a chunked
+     * file too.
+     */
+    public static void freshenBlob(String hash) throws IOException {
+        Path blobsDir = getBlobsDir().toPath();
+        FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        BlobPacks.freshen(hash);
+
+        for (String name : List.of(hash, hash + COMPRESSED_SUFFIX, hash + CHUNKS_SUFFIX)) {
+            Path blob = BlobPaths.locate(blobsDir, name);
+            if (blob == null) {
+                continue;
+            }
+
+            try {
+                Files.setLastModifiedTime(blob, now);
+            } catch (NoSuchFileException e) {
+                // Moved into a pack in between, freshened there
+                continue;
+            }
+            if (name.endsWith(CHUNKS_SUFFIX)) {
+                for (String chunk : Files.readAllLines(blob)) {
+                    freshenBlob(chunk);
+                }
+            }
         }
     }
 
-    public static void saveFileByHash(String vaultName, String hash, InputStream inputStream) throws IOException {
-        File filesDir = getFilesDir(vaultName);
-        File targetFile = new File(filesDir, hash);
+    /**
+     * Whether any stored form of a file was written or freshened within the grace period
+     */
+    public static boolean isRecentBlob(String hash, long graceMillis) throws IOException {
+        if (BlobPacks.isRecent(hash, graceMillis)) {
+            return true;
+        }
 
-        try (FileOutputStream fos = new FileOutputStream(targetFile)) {
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                fos.write(buffer, 0, bytesRead);
+        Path blobsDir = getBlobsDir().toPath();
+        for (String name : List.of(hash, hash + COMPRESSED_SUFFIX, hash + CHUNKS_SUFFIX)) {
+            Path blob = BlobPaths.locate(blobsDir, name);
+            if (blob != null && BlobSweeper.isRecent(blob, graceMillis)) {
+                return true;
             }
         }
+        return false;
     }
 
-    public static void saveFileByHash(String vaultName, String hash, byte[] fileContent) throws IOException {
-        File filesDir = getFilesDir(vaultName);
-        File targetFile = new File(filesDir, hash);
+    /**
+     * Stored form of a blob, or null if the vault does not reference it or it is stored
+     * as chunks
+     */
+    public static StoredBlob getStoredBlob(String vaultName, String hash) {
+        if (!BlobIndex.forVault(vaultName).contains(hash)) {
+            return null;
+        }
+
+        StoredBlob packed = BlobPacks.find(hash);
+        if (packed != null) {
+            return packed;
+        }
 
-        try (FileOutputStream fos = new FileOutputStream(targetFile)) {
-            fos.write(fileContent);
+        Path file = locateBlob(vaultName, hash);
+        if (file != null) {
+            return StoredBlob.loose(file.toFile(), false);
         }
+
+        Path compressedFile = locateBlob(vaultName, hash + COMPRESSED_SUFFIX);
+        return compressedFile != null ? StoredBlob.loose(compressedFile.toFile(), true) : null;
     }
 
-    public static File getFileByHash(String vaultName, String hash) {
-        File filesDir = getFilesDir(vaultName);
-        File file = new File(filesDir, hash);
-        return file.exists() ? file : null;
+    /**
+     * Find a blob in the blob store, or in the vault's own files directory while it is
+     * not migrated yet. The blob store is checked again last, in case the migration moved
+     * the blob in between.
+     */
+    private static Path locateBlob(String vaultName, String name) {
+        Path blobsDir = getBlobsDir().toPath();
+
+        Path path = BlobPaths.locate(blobsDir, name);
+        if (path == null) {
+            path = BlobPaths.locate(getFilesDir(vaultName).toPath(), name);
+        }
+        if (path == null) {
+            path = BlobPaths.locate(blobsDir, name);
+        }
+        return path;
+    }
+
+    /**
+     * Record a chunked file: its chunks must already be referenced by the vault, and
+     * their concatenation must hash to the file hash. The manifest lists the chunk hashes
+     * in order, one per line, in &lt;hash&gt;.chunks in the blob store.
+     */
+    public static void saveChunkManifest(String vaultName, String hash, List<String> chunks)
+            throws IOException, HashCalculationException {
+        if (!isValidHash(hash)) {
+            throw new IllegalArgumentException("Invalid file hash: " + hash);
+        }
+
+        if (locateBlob(vaultName, hash + CHUNKS_SUFFIX) != null) {
+            return;
+        }
+
+        MessageDigest digest = HashCalculator.newMessageDigest();
+        try (OutputStream outputStream = new DigestOutputStream(OutputStream.nullOutputStream(), digest)) {
+            for (String chunk : chunks) {
+                StoredBlob chunkBlob = isValidHash(chunk) ? getStoredBlob(vaultName, chunk) : null;
+                if (chunkBlob == null) {
+                    throw new IllegalArgumentException("Missing chunk " + chunk + " of file " + hash);
+                }
+                try (InputStream inputStream = chunkBlob.openRaw()) {
+                    inputStream.transferTo(outputStream);
+                }
+            }
+        }
+
+        String actualHash = HashCalculator.bytesToHex(digest.digest());
+        if (!hash.equals(actualHash)) {
+            throw new IllegalArgumentException("Hash mismatch for chunked file. Expected: " + hash + ", Actual: "
+                    + actualHash);
+        }
+
+        Path incomingDir = getIncomingDir().toPath();
+        Files.createDirectories(incomingDir);
+        Path tmpFile = Files.createTempFile(incomingDir, hash, ".tmp");
+        try {
+            Files.write(tmpFile, chunks);
+            Files.move(tmpFile, BlobPaths.resolveForWrite(getBlobsDir().toPath(), hash + CHUNKS_SUFFIX),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    /**
+     * Chunk hashes of a chunked file, in order, or null if the vault does not reference
+     * the file or it is not stored as chunks
+     */
+    public static List<String> getChunkHashes(String vaultName, String hash) throws IOException {
+        Path manifestFile = BlobIndex.forVault(vaultName).contains(hash)
+                ? locateBlob(vaultName, hash + CHUNKS_SUFFIX)
+                : null;
+        return manifestFile != null ? Files.readAllLines(manifestFile) : null;
+    }
+
+    /**
+     * Chunks making up a chunked file, in order, or null if the vault does not reference
+     * the file or it is not stored as chunks
+     */
+    public static List<StoredBlob> getChunkBlobs(String vaultName, String hash) throws IOException {
+        List<String> chunks = getChunkHashes(vaultName, hash);
+        if (chunks == null) {
+            return null;
+        }
+
+        List<StoredBlob> chunkBlobs = new ArrayList<>();
+        for (String chunk : chunks) {
+            StoredBlob chunkBlob = getStoredBlob(vaultName, chunk);
+            if (chunkBlob == null) {
+                throw new IOException("Missing chunk " + chunk + " of file " + hash);
+            }
+            chunkBlobs.add(chunkBlob);
+        }
+        return chunkBlobs;
     }
 }
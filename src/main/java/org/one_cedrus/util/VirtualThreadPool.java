@@ -0,0 +1,63 @@
+package org.one_cedrus.util;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Jetty thread pool starting a virtual thread per task, so a request blocked on disk or
+ * on a slow client does not hold a platform thread. It has no size: Jetty never finds it
+ * low on threads, and callers bound concurrency themselves where they need to.
+ * <p>
+ * Not being a TryExecutor, it makes Jetty's selectors hand every connection event to a
+ * fresh thread instead of running it on the selector thread.
+ */
+public class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("http-virtual-", 0).factory());
+    private final AtomicInteger running = new AtomicInteger();
+
+    @Override
+    public void execute(Runnable task) {
+        executor.execute(() -> {
+            running.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                running.decrementAndGet();
+            }
+        });
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            // Until stopped
+        }
+    }
+
+    @Override
+    public int getThreads() {
+        return running.get();
+    }
+
+    @Override
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        executor.shutdown();
+        super.doStop();
+    }
+}
@@ -0,0 +1,153 @@
+package org.one_cedrus;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A server started in its own JVM and working directory, for load tests that measure
+ * it from the outside
+ */
+public class ServerProcess implements AutoCloseable {
+    private static final Pattern HEAP_USED = Pattern.compile("total \\d+K, used (\\d+)K");
+    private static final Pattern RSS = Pattern.compile("VmRSS:\\s+(\\d+) kB");
+
+    private final Process process;
+    private final int port;
+    private final Path log;
+
+    private ServerProcess(Process process, int port, Path log) {
+        this.process = process;
+        this.port = port;
+        this.log = log;
+    }
+
+    /**
+     * Start a server on the given port with the given system properties, and wait until
+     * it answers
+     */
+    public static ServerProcess start(Path workDir, int port, Map<String, String> properties, String... jvmOptions)
+            throws IOException, InterruptedException {
+        Files.createDirectories(workDir);
+        Path log = workDir.resolve("server.log");
+
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(List.of(jvmOptions));
+        command.add("-Dsv.http.port=" + port);
+        properties.forEach((key, value) -> command.add("-D" + key + "=" + value));
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"), Server.class.getName()));
+
+        Process process = new ProcessBuilder(command)
+                .directory(workDir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile())
+                .start();
+        ServerProcess server = new ServerProcess(process, port, log);
+
+        HttpClient client = HttpClient.newHttpClient();
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (System.currentTimeMillis() < deadline) {
+            if (!process.isAlive()) {
+                throw new IllegalStateException("Server exited, see " + log);
+            }
+            try {
+                HttpResponse<Void> response = client.send(HttpRequest.newBuilder(server.uri("/metrics"))
+                        .timeout(Duration.ofSeconds(1)).build(), HttpResponse.BodyHandlers.discarding());
+                if (response.statusCode() == 200) {
+                    return server;
+                }
+            } catch (IOException e) {
+                // Not listening yet
+            }
+            Thread.sleep(200);
+        }
+
+        server.close();
+        throw new IllegalStateException("Server did not start within 30 s, see " + log);
+    }
+
+    public URI uri(String path) {
+        return URI.create("http://127.0.0.1:" + port + path);
+    }
+
+    public int port() {
+        return port;
+    }
+
+    public boolean isAlive() {
+        return process.isAlive();
+    }
+
+    /**
+     * CPU time the server has used so far, in milliseconds
+     */
+    public long cpuMillis() {
+        return process.toHandle().info().totalCpuDuration().orElseThrow().toMillis();
+    }
+
+    /**
+     * Heap in use right after a full collection, summed over the generations of
+     * collectors that report them separately
+     */
+    public long heapUsedBytes() throws IOException, InterruptedException {
+        jcmd("GC.run");
+        Matcher matcher = HEAP_USED.matcher(jcmd("GC.heap_info"));
+        if (!matcher.find()) {
+            throw new IllegalStateException("Unexpected GC.heap_info output");
+        }
+        long used = 0;
+        do {
+            used += Long.parseLong(matcher.group(1)) * 1024;
+        } while (matcher.find());
+        return used;
+    }
+
+    /**
+     * Resident memory of the server process, heap and native
+     */
+    public long residentBytes() throws IOException {
+        Matcher matcher = RSS.matcher(Files.readString(Path.of("/proc", String.valueOf(process.pid()), "status")));
+        if (!matcher.find()) {
+            throw new IllegalStateException("No VmRSS for the server process");
+        }
+        return Long.parseLong(matcher.group(1)) * 1024;
+    }
+
+    private String jcmd(String command) throws IOException, InterruptedException {
+        Process jcmd = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "jcmd").toString(),
+                String.valueOf(process.pid()), command).redirectErrorStream(true).start();
+        String output = new String(jcmd.getInputStream().readAllBytes());
+        jcmd.waitFor();
+        return output;
+    }
+
+    /**
+     * Stop the server, killing it if it does not exit within 10 s. An interrupt while
+     * waiting kills it at once and is passed on.
+     */
+    @Override
+    public void close() {
+        process.destroy();
+        try {
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("[INFO]: Server log: " + log);
+    }
+}
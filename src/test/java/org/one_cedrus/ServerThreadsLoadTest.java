@@ -0,0 +1,305 @@
+package org.one_cedrus;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Request handling on Jetty's platform thread pool against virtual threads
+ * ({@code sv.http.threads}), under a mixed workload: clients syncing change logs with a
+ * file, downloading small files and fetching recent change logs, while slow clients
+ * hold connections open downloading a large file.
+ * <p>
+ * Run with {@code mvn test -Pload -Dtest=ServerThreadsLoadTest}. Tunables:
+ * {@code -Dsv.load.clients} (100), {@code -Dsv.load.slow.clients} (250, above the
+ * platform pool's 200 threads) and {@code -Dsv.load.seconds} (30 per mode).
+ */
+@Tag("load")
+class ServerThreadsLoadTest {
+    private static final int CLIENTS = Integer.getInteger("sv.load.clients", 100);
+    private static final int SLOW_CLIENTS = Integer.getInteger("sv.load.slow.clients", 250);
+    private static final int SECONDS = Integer.getInteger("sv.load.seconds", 30);
+    private static final int PORT = Integer.getInteger("sv.load.port", 14290);
+    private static final int SMALL_FILES = 100;
+    private static final int SMALL_FILE_BYTES = 16 * 1024;
+    private static final int LARGE_FILE_BYTES = 64 * 1024 * 1024;
+    // Bytes a slow client reads per second
+    private static final int SLOW_READ_RATE = 64 * 1024;
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+
+    private enum Operation {SYNC, DOWNLOAD, CHANGE_LOGS}
+
+    private record Result(Map<Operation, List<Long>> latencies, long errors, long timeouts, long slowBytes) {
+    }
+
+    @Test
+    void platformThreadsAgainstVirtualThreads() throws Exception {
+        Result platform = run("platform");
+        Result virtual = run("virtual");
+
+        System.out.printf("[INFO]: %d clients, %d slow clients, %d s per mode%n", CLIENTS, SLOW_CLIENTS, SECONDS);
+        print("platform", platform);
+        print("virtual", virtual);
+
+        assertEquals(0, virtual.errors(), "failed requests on virtual threads");
+        assertEquals(0, virtual.timeouts(), "timed out requests on virtual threads");
+        for (Operation operation : Operation.values()) {
+            assertFalse(virtual.latencies().get(operation).isEmpty(), operation + " never completed");
+        }
+    }
+
+    private Result run(String threads) throws Exception {
+        Path workDir = Path.of("load", "threads-" + threads + "-" + System.currentTimeMillis());
+        try (ServerProcess server = ServerProcess.start(workDir, PORT, Map.of("sv.http.threads", threads),
+                "-Xmx1g");
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).executor(executor).build();
+            Vault vault = Vault.create(client, server);
+
+            Map<Operation, List<Long>> latencies = new EnumMap<>(Operation.class);
+            for (Operation operation : Operation.values()) {
+                latencies.put(operation, Collections.synchronizedList(new ArrayList<>()));
+            }
+            AtomicLong errors = new AtomicLong();
+            AtomicLong timeouts = new AtomicLong();
+            AtomicLong slowBytes = new AtomicLong();
+            long end = System.currentTimeMillis() + SECONDS * 1000L;
+
+            // Slow clients first, so they hold their connections when the others start
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < SLOW_CLIENTS; i++) {
+                tasks.add(executor.submit(() -> slowDownload(client, server, vault, end, slowBytes)));
+            }
+            Thread.sleep(2_000);
+
+            for (int i = 0; i < CLIENTS; i++) {
+                tasks.add(executor.submit(() -> {
+                    while (System.currentTimeMillis() < end) {
+                        Operation operation = pick();
+                        long start = System.nanoTime();
+                        try {
+                            int status = vault.perform(client, server, operation);
+                            if (status == 200) {
+                                latencies.get(operation).add(System.nanoTime() - start);
+                            } else {
+                                errors.incrementAndGet();
+                            }
+                        } catch (HttpTimeoutException e) {
+                            timeouts.incrementAndGet();
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+            assertTrue(server.isAlive());
+            return new Result(latencies, errors.get(), timeouts.get(), slowBytes.get());
+        }
+    }
+
+    private static Operation pick() {
+        double roll = ThreadLocalRandom.current().nextDouble();
+        return roll < 0.2 ? Operation.SYNC : roll < 0.6 ? Operation.DOWNLOAD : Operation.CHANGE_LOGS;
+    }
+
+    private static Void slowDownload(HttpClient client, ServerProcess server, Vault vault, long end,
+                                     AtomicLong slowBytes) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(server.uri(vault.path("/files/" + vault.largeHash))).build();
+        while (System.currentTimeMillis() < end) {
+            try (InputStream in = client.send(request, HttpResponse.BodyHandlers.ofInputStream()).body()) {
+                byte[] buffer = new byte[SLOW_READ_RATE / 10];
+                while (System.currentTimeMillis() < end) {
+                    int n = in.readNBytes(buffer, 0, buffer.length);
+                    if (n <= 0) {
+                        break;
+                    }
+                    slowBytes.addAndGet(n);
+                    Thread.sleep(100);
+                }
+            } catch (IOException e) {
+                // The server gave up on the connection, start over
+            }
+        }
+        return null;
+    }
+
+    private static void print(String threads, Result result) {
+        int total = 0;
+        for (List<Long> latencies : result.latencies().values()) {
+            total += latencies.size();
+        }
+        System.out.printf("[INFO]: %s: %.0f requests/s, %d errors, %d timeouts, slow clients read %.0f KiB/s%n",
+                threads, total / (double) SECONDS, result.errors(), result.timeouts(),
+                result.slowBytes() / 1024.0 / SECONDS);
+
+        for (Map.Entry<Operation, List<Long>> entry : result.latencies().entrySet()) {
+            List<Long> sorted = new ArrayList<>(entry.getValue());
+            Collections.sort(sorted);
+            System.out.printf("[INFO]:   %-11s %6d ok, p50 %7.1f ms, p99 %7.1f ms%n", entry.getKey(), sorted.size(),
+                    percentile(sorted, 0.50), percentile(sorted, 0.99));
+        }
+    }
+
+    private static double percentile(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) {
+            return Double.NaN;
+        }
+        return sorted.get((int) Math.min(sorted.size() - 1, sorted.size() * percentile)) / 1e6;
+    }
+
+    /**
+     * A vault seeded with small files and one large file, and the change logs committed
+     * to it so far
+     */
+    private static class Vault {
+        final String name;
+        final String largeHash;
+        final List<String> smallHashes;
+        final List<Long> timestamps = Collections.synchronizedList(new ArrayList<>());
+        final AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+
+        private Vault(String name, String largeHash, List<String> smallHashes, long root) {
+            this.name = name;
+            this.largeHash = largeHash;
+            this.smallHashes = smallHashes;
+            timestamps.add(root);
+        }
+
+        static Vault create(HttpClient client, ServerProcess server) throws Exception {
+            Random random = new Random(1);
+            Multipart body = new Multipart();
+            StringBuilder added = new StringBuilder();
+            List<String> smallHashes = new ArrayList<>();
+            String largeHash = null;
+
+            for (int i = 0; i <= SMALL_FILES; i++) {
+                byte[] content = new byte[i < SMALL_FILES ? SMALL_FILE_BYTES : LARGE_FILE_BYTES];
+                random.nextBytes(content);
+                String hash = sha256(content);
+                if (i < SMALL_FILES) {
+                    smallHashes.add(hash);
+                } else {
+                    largeHash = hash;
+                }
+                body.part("file_" + hash, content);
+                added.append(added.isEmpty() ? "" : ",").append(fileChange("seed/" + i + ".bin", hash));
+            }
+
+            long root = System.currentTimeMillis() - 60_000;
+            body.part("change_logs", changeLogs(root, 0, added.toString()));
+            HttpResponse<String> response = client.send(body.post(server.uri("/vault")).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, response.statusCode(), response.body());
+
+            return new Vault(response.body(), largeHash, smallHashes, root);
+        }
+
+        String path(String suffix) {
+            return "/vault/" + name + suffix;
+        }
+
+        int perform(HttpClient client, ServerProcess server, Operation operation)
+                throws IOException, InterruptedException {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            return switch (operation) {
+                case SYNC -> {
+                    byte[] content = new byte[4096];
+                    random.nextBytes(content);
+                    String hash = sha256(content);
+                    long timestamp = clock.incrementAndGet();
+                    long parent = timestamps.get(timestamps.size() - 1);
+
+                    Multipart body = new Multipart();
+                    body.part("change_logs", changeLogs(timestamp, parent, fileChange("synced/" + timestamp, hash)));
+                    body.part("file_" + hash, content);
+                    int status = client.send(body.post(server.uri(path("/sync"))).timeout(REQUEST_TIMEOUT).build(),
+                            HttpResponse.BodyHandlers.discarding()).statusCode();
+                    if (status == 200) {
+                        timestamps.add(timestamp);
+                    }
+                    yield status;
+                }
+                case DOWNLOAD -> get(client, server.uri(path("/files/"
+                        + smallHashes.get(random.nextInt(smallHashes.size())))));
+                case CHANGE_LOGS -> {
+                    long since = timestamps.get(Math.max(0, timestamps.size() - 1 - random.nextInt(50)));
+                    yield get(client, server.uri(path("/change_logs/since/" + since)));
+                }
+            };
+        }
+
+        private static int get(HttpClient client, URI uri) throws IOException, InterruptedException {
+            return client.send(HttpRequest.newBuilder(uri).timeout(REQUEST_TIMEOUT).build(),
+                    HttpResponse.BodyHandlers.discarding()).statusCode();
+        }
+    }
+
+    private static String changeLogs(long timestamp, long parent, String added) {
+        return "[{\"timestamp\":" + timestamp + ",\"parent\":" + parent
+                + ",\"changes\":{\"added\":[" + added + "],\"modified\":[],\"deleted\":[]}}]";
+    }
+
+    private static String fileChange(String path, String hash) {
+        return "{\"path\":\"" + path + "\",\"hash\":\"" + hash + "\",\"changeType\":\"ADDED\"}";
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * multipart/form-data request body, as the client sends on sync
+     */
+    private static class Multipart {
+        private final String boundary = UUID.randomUUID().toString();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        void part(String name, String content) {
+            part(name, content.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void part(String name, byte[] content) {
+            body.writeBytes(("--" + boundary + "\r\nContent-Disposition: form-data; name=\"" + name
+                    + "\"\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            body.writeBytes(content);
+            body.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
+        }
+
+        HttpRequest.Builder post(URI uri) {
+            byte[] bytes = body.toByteArray();
+            ByteArrayOutputStream complete = new ByteArrayOutputStream(bytes.length + 64);
+            complete.writeBytes(bytes);
+            complete.writeBytes(("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+            return HttpRequest.newBuilder(uri)
+                    .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(complete.toByteArray()));
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.one_cedrus.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Scratch directories of the benchmarks, under -Dsv.bench.dir or the temporary
+ * directory, so they can be pointed at the disk being measured
+ */
+class BenchmarkDirs {
+
+    static Path root() {
+        return Path.of(System.getProperty("sv.bench.dir", System.getProperty("java.io.tmpdir")));
+    }
+
+    static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.one_cedrus.bench;
+
+import org.one_cedrus.shared.BlobPaths;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Blob lookups in a flat directory against the two-level fan-out of {@link BlobPaths}:
+ * finding a stored blob, missing one, writing then deleting a new one among many, and
+ * listing them all.
+ * <p>
+ * The flat layout is looked up directly, as before the fan-out, since
+ * {@link BlobPaths#locate} would move its blobs into place.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlobLookupBenchmark {
+    @Param({"10000", "100000"})
+    int blobs;
+
+    @Param({"flat", "fanout"})
+    String layout;
+
+    private Path blobsDir;
+    private List<String> stored;
+
+    @Setup(Level.Trial)
+    public void createBlobs() throws IOException {
+        blobsDir = Files.createTempDirectory(BenchmarkDirs.root(), "blob-lookup");
+        stored = hashes(blobs, 1);
+        for (String hash : stored) {
+            Files.createFile(pathForWrite(hash));
+        }
+        if (layout.equals("fanout")) {
+            BlobPaths.migrate(blobsDir);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteBlobs() throws IOException {
+        BenchmarkDirs.delete(blobsDir);
+    }
+
+    @Benchmark
+    public Path lookupStored() {
+        return find(stored.get(ThreadLocalRandom.current().nextInt(stored.size())));
+    }
+
+    @Benchmark
+    public Path lookupMissing() {
+        return find(randomHash(ThreadLocalRandom.current()));
+    }
+
+    @Benchmark
+    public void writeAndDelete() throws IOException {
+        Path path = pathForWrite(randomHash(ThreadLocalRandom.current()));
+        Files.write(path, new byte[0]);
+        Files.delete(path);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int listAll() throws IOException {
+        if (layout.equals("fanout")) {
+            return BlobPaths.list(blobsDir).size();
+        }
+        try (Stream<Path> paths = Files.list(blobsDir)) {
+            return (int) paths.count();
+        }
+    }
+
+    private Path find(String hash) {
+        if (layout.equals("fanout")) {
+            return BlobPaths.locate(blobsDir, hash);
+        }
+
+        Path path = blobsDir.resolve(hash);
+        return Files.exists(path) ? path : null;
+    }
+
+    private Path pathForWrite(String hash) throws IOException {
+        return layout.equals("fanout") ? BlobPaths.resolveForWrite(blobsDir, hash) : blobsDir.resolve(hash);
+    }
+
+    static List<String> hashes(int count, long seed) {
+        Random random = new Random(seed);
+        return Stream.generate(() -> randomHash(random)).limit(count).toList();
+    }
+
+    static String randomHash(Random random) {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        return HexFormat.of().formatHex(hash);
+    }
+}
@@ -0,0 +1,98 @@
+package org.one_cedrus.bench;
+
+import org.one_cedrus.shared.BlobPaths;
+import org.one_cedrus.storage.BlobPacks;
+import org.one_cedrus.storage.StoredBlob;
+import org.one_cedrus.util.VaultUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading small blobs from loose files against reading them from a mapped pack, from
+ * lookup to the last byte.
+ * <p>
+ * The blob store is the one of the working directory, so run this from an empty
+ * directory; it refuses to start next to an existing blob store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlobPackReadBenchmark {
+    @Param({"20000"})
+    int blobs;
+
+    @Param({"1024", "16384"})
+    int blobBytes;
+
+    private Path blobsDir;
+    private List<String> loose;
+    private List<String> packed;
+
+    @Setup(Level.Trial)
+    public void storeBlobs() throws IOException {
+        blobsDir = VaultUtils.getBlobsDir().toPath();
+        if (Files.exists(blobsDir)) {
+            throw new IllegalStateException("Run from a directory without a blob store");
+        }
+
+        Random random = new Random(1);
+        byte[] content = new byte[blobBytes];
+        loose = BlobLookupBenchmark.hashes(blobs, 2);
+        for (String hash : loose) {
+            random.nextBytes(content);
+            Files.write(BlobPaths.resolveForWrite(blobsDir, hash), content);
+        }
+
+        Path staging = Files.createTempDirectory(BenchmarkDirs.root(), "blob-pack");
+        packed = BlobLookupBenchmark.hashes(blobs, 3);
+        List<BlobPacks.Source> sources = new ArrayList<>();
+        for (String hash : packed) {
+            random.nextBytes(content);
+            Path file = staging.resolve(hash);
+            Files.write(file, content);
+            sources.add(new BlobPacks.Source(hash, file, false));
+        }
+        BlobPacks.write(sources);
+        BenchmarkDirs.delete(staging);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteBlobs() throws IOException {
+        BenchmarkDirs.delete(blobsDir);
+    }
+
+    @Benchmark
+    public long readLoose() throws IOException {
+        String hash = loose.get(ThreadLocalRandom.current().nextInt(loose.size()));
+        return readFully(StoredBlob.loose(BlobPaths.locate(blobsDir, hash).toFile(), false));
+    }
+
+    @Benchmark
+    public long readPacked() throws IOException {
+        String hash = packed.get(ThreadLocalRandom.current().nextInt(packed.size()));
+        return readFully(BlobPacks.find(hash));
+    }
+
+    private static long readFully(StoredBlob blob) throws IOException {
+        byte[] buffer = new byte[8192];
+        long total = 0;
+        try (InputStream in = blob.openStored()) {
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                total += n;
+            }
+        }
+        return total;
+    }
+}
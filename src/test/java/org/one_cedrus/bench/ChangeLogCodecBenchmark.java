@@ -0,0 +1,89 @@
+package org.one_cedrus.bench;
+
+import org.one_cedrus.shared.ChangeLog;
+import org.one_cedrus.shared.ChangeLogCodec;
+import org.one_cedrus.shared.FileChange;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The binary change log encoding against Gson JSON, encoding and decoding one change log
+ * of the given number of files. Also measures what a journal read costs for each: JSON
+ * records are handed out as they are, binary ones decoded and turned into JSON.
+ * <p>
+ * Encoded sizes are printed once per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChangeLogCodecBenchmark {
+    @Param({"10", "1000"})
+    int files;
+
+    private ChangeLog changeLog;
+    private byte[] json;
+    private byte[] binary;
+
+    @Setup(Level.Trial)
+    public void createChangeLog() throws IOException {
+        Random random = new Random(1);
+        List<FileChange> added = new ArrayList<>();
+        List<FileChange> modified = new ArrayList<>();
+        List<String> deleted = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            String path = "notes/" + (i % 20) + "/note-" + i + ".md";
+            String hash = BlobLookupBenchmark.randomHash(random);
+            switch (i % 4) {
+                case 0, 1 -> added.add(new FileChange(path, hash, "ADDED"));
+                case 2 -> modified.add(new FileChange(path, hash, "MODIFIED"));
+                default -> deleted.add(path);
+            }
+        }
+        changeLog = new ChangeLog(1_700_000_000_000L, new ChangeLog.Changes(added, modified, deleted),
+                1_699_999_999_000L);
+
+        json = changeLog.toJson().getBytes(StandardCharsets.UTF_8);
+        binary = ChangeLogCodec.encodeRecord(changeLog);
+        System.out.println("[INFO]: " + files + " files: " + json.length + " bytes of JSON, " + binary.length
+                + " bytes binary");
+    }
+
+    @Benchmark
+    public byte[] encodeJson() {
+        return changeLog.toJson().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() throws IOException {
+        return ChangeLogCodec.encodeRecord(changeLog);
+    }
+
+    @Benchmark
+    public ChangeLog decodeJson() {
+        return ChangeLog.fromJson(new String(json, StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public ChangeLog decodeBinary() throws IOException {
+        return ChangeLogCodec.decodeRecord(binary, 0, binary.length);
+    }
+
+    @Benchmark
+    public String readJsonRecord() {
+        return new String(json, StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String readBinaryRecord() throws IOException {
+        return ChangeLogCodec.decodeRecord(binary, 0, binary.length).toJson();
+    }
+}
@@ -0,0 +1,117 @@
+package org.one_cedrus.bench;
+
+import org.one_cedrus.service.ChangeLogIndex;
+import org.one_cedrus.service.ChangeLogResponseCache;
+import org.one_cedrus.shared.ChangeLog;
+import org.one_cedrus.shared.FileChange;
+import org.one_cedrus.storage.ChangeLogStore;
+import org.one_cedrus.util.VaultUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Change log responses for a client far behind: the whole history of a vault, or its
+ * last change logs, written plain, gzip-compressed per request, or gzip-compressed
+ * from the cache of precompressed batches. Response sizes are printed once per trial.
+ * <p>
+ * The vault is created in the vaults directory of the working directory, so run this
+ * from an empty directory; it refuses to start next to existing vaults.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChangeLogResponseBenchmark {
+    private static final String VAULT_NAME = "response-benchmark";
+
+    @Param({"10000"})
+    int changeLogs;
+
+    @Param({"all", "last100"})
+    String range;
+
+    private Path vaultsDir;
+    private ChangeLogIndex index;
+    private long since;
+
+    @Setup(Level.Trial)
+    public void createVault() throws IOException {
+        vaultsDir = VaultUtils.getVaultDir(VAULT_NAME).toPath().getParent();
+        if (Files.exists(vaultsDir)) {
+            throw new IllegalStateException("Run from a directory without vaults");
+        }
+
+        Files.createDirectories(VaultUtils.getChangeLogsDir(VAULT_NAME).toPath());
+        ChangeLogStore store = VaultUtils.getChangeLogStore(VAULT_NAME);
+        Random random = new Random(1);
+        for (int i = 0; i < changeLogs; i++) {
+            long timestamp = 1_700_000_000_000L + i * 1000L;
+            FileChange modified = new FileChange("notes/" + (i % 50) + ".md",
+                    BlobLookupBenchmark.randomHash(random), "MODIFIED");
+            store.append(new ChangeLog(timestamp, new ChangeLog.Changes(List.of(), List.of(modified), List.of()),
+                    timestamp - 1000));
+        }
+        store.sync();
+
+        index = ChangeLogIndex.forVault(VAULT_NAME);
+        since = range.equals("all") ? 0 : 1_700_000_000_000L + (changeLogs - 101) * 1000L;
+
+        System.out.println("[INFO]: " + range + ": " + plain() + " bytes plain, " + gzipUncached()
+                + " bytes gzip, " + gzipCached() + " bytes from the cache");
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteVault() throws IOException {
+        System.clearProperty("sv.changelog.cache.budget.bytes");
+        BenchmarkDirs.delete(vaultsDir);
+    }
+
+    @Benchmark
+    public long plain() throws IOException {
+        CountingStream out = new CountingStream();
+        ChangeLogResponseCache.write(index, since, ChangeLogResponseCache.Format.JSON, out);
+        return out.count;
+    }
+
+    @Benchmark
+    public long gzipUncached() throws IOException {
+        System.setProperty("sv.changelog.cache.budget.bytes", "0");
+        try {
+            CountingStream out = new CountingStream();
+            ChangeLogResponseCache.writeGzip(VAULT_NAME, index, since, ChangeLogResponseCache.Format.JSON, out);
+            return out.count;
+        } finally {
+            System.clearProperty("sv.changelog.cache.budget.bytes");
+        }
+    }
+
+    @Benchmark
+    public long gzipCached() throws IOException {
+        CountingStream out = new CountingStream();
+        ChangeLogResponseCache.writeGzip(VAULT_NAME, index, since, ChangeLogResponseCache.Format.JSON, out);
+        return out.count;
+    }
+
+    private static class CountingStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            count += length;
+        }
+    }
+}
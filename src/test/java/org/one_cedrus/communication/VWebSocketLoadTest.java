@@ -0,0 +1,204 @@
+package org.one_cedrus.communication;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.one_cedrus.ServerProcess;
+import org.one_cedrus.shared.MessageType;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Idle WebSocket clients held open against a server in its own JVM, measuring the
+ * server's memory per session and the CPU its heartbeats take.
+ * <p>
+ * Run with {@code mvn test -Pload -Dtest=VWebSocketLoadTest}. The number of connections
+ * is {@code -Dsv.load.connections} (100000 by default); both JVMs need a file descriptor
+ * limit above it.
+ */
+@Tag("load")
+class VWebSocketLoadTest {
+    private static final int CONNECTIONS = Integer.getInteger("sv.load.connections", 100_000);
+    private static final long HEARTBEAT_MILLIS = Long.getLong("sv.load.heartbeat.ms", 5_000);
+    private static final int PORT = Integer.getInteger("sv.load.port", 14289);
+    // Handshakes in flight, so the accept backlog does not overflow
+    private static final int MAX_PENDING = 256;
+    // Connections per loopback source address, below the ephemeral port range
+    private static final int CONNECTIONS_PER_ADDRESS = 25_000;
+
+    private static class Connection {
+        final StringBuilder handshake = new StringBuilder();
+        boolean upgraded;
+        boolean registered;
+        long lastReadAt;
+    }
+
+    @Test
+    void idleConnectionsAndHeartbeats() throws Exception {
+        Path workDir = Path.of("load", "websocket-" + System.currentTimeMillis());
+        try (ServerProcess server = ServerProcess.start(workDir, PORT,
+                Map.of("sv.ws.heartbeat.ms", String.valueOf(HEARTBEAT_MILLIS)),
+                "-Xmx" + System.getProperty("sv.load.server.xmx", "2g"));
+             Selector selector = Selector.open()) {
+            long baseHeap = server.heapUsedBytes();
+            long baseResident = server.residentBytes();
+            long baseCpu = cpuOver(server, selector, List.of(), 3 * HEARTBEAT_MILLIS);
+
+            List<Connection> connections = connect(selector, server.port());
+            long heap = server.heapUsedBytes();
+            long resident = server.residentBytes();
+
+            long windowStart = System.currentTimeMillis();
+            long cpu = cpuOver(server, selector, connections, 3 * HEARTBEAT_MILLIS);
+
+            long missed = connections.stream().filter(connection -> connection.lastReadAt < windowStart).count();
+            System.out.printf("[INFO]: %d connections: %.0f heap bytes and %.0f resident bytes per session%n",
+                    CONNECTIONS, (heap - baseHeap) / (double) CONNECTIONS,
+                    (resident - baseResident) / (double) CONNECTIONS);
+            System.out.printf("[INFO]: Heartbeat CPU: %d ms per interval (idle server: %d ms), %.2f us per session%n",
+                    cpu / 3, baseCpu / 3, (cpu - baseCpu) / 3 * 1000.0 / CONNECTIONS);
+
+            assertEquals(0, missed, "connections without a heartbeat");
+            assertTrue(server.isAlive());
+        }
+    }
+
+    private static List<Connection> connect(Selector selector, int port) throws IOException {
+        List<Connection> connections = new ArrayList<>(CONNECTIONS);
+        int[] registered = {0};
+        long deadline = System.currentTimeMillis() + 60_000 + CONNECTIONS;
+
+        while (registered[0] < CONNECTIONS) {
+            assertTrue(System.currentTimeMillis() < deadline,
+                    "only " + registered[0] + " of " + CONNECTIONS + " connections registered");
+
+            while (connections.size() < CONNECTIONS && connections.size() - registered[0] < MAX_PENDING) {
+                int i = connections.size();
+                SocketChannel channel = SocketChannel.open();
+                channel.bind(new InetSocketAddress("127.0.0." + (1 + i / CONNECTIONS_PER_ADDRESS), 0));
+                channel.configureBlocking(false);
+                channel.connect(new InetSocketAddress("127.0.0.1", port));
+
+                Connection connection = new Connection();
+                channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                connections.add(connection);
+            }
+
+            poll(selector, 100, connection -> registered[0]++);
+        }
+        return connections;
+    }
+
+    /**
+     * Server CPU time over a period, while the connections keep reading
+     */
+    private static long cpuOver(ServerProcess server, Selector selector, List<Connection> connections,
+                                long millis) throws IOException {
+        long cpu = server.cpuMillis();
+        long end = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < end) {
+            poll(selector, 100, connection -> {
+            });
+        }
+        return server.cpuMillis() - cpu;
+    }
+
+    private static void poll(Selector selector, long timeoutMillis,
+                             Consumer<Connection> onRegistered) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        selector.select(timeoutMillis);
+
+        for (SelectionKey key : selector.selectedKeys()) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Connection connection = (Connection) key.attachment();
+
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                writeFully(channel, ByteBuffer.wrap(handshake().getBytes(StandardCharsets.US_ASCII)));
+                continue;
+            }
+
+            buffer.clear();
+            int n = channel.read(buffer);
+            if (n < 0) {
+                fail("Server closed a connection");
+            }
+            connection.lastReadAt = System.currentTimeMillis();
+
+            if (!connection.upgraded) {
+                connection.handshake.append(new String(buffer.array(), 0, n, StandardCharsets.US_ASCII));
+                int end = connection.handshake.indexOf("\r\n\r\n");
+                if (end < 0) {
+                    continue;
+                }
+                assertTrue(connection.handshake.toString().startsWith("HTTP/1.1 101"), connection.handshake.toString());
+
+                connection.upgraded = true;
+                boolean frameFollows = connection.handshake.length() > end + 4;
+                connection.handshake.setLength(0);
+                writeFully(channel, helloFrame("load-vault-" + ThreadLocalRandom.current().nextInt(100)));
+                if (!frameFollows) {
+                    continue;
+                }
+            }
+
+            // The first frame after the upgrade is the reply to HELLO
+            if (!connection.registered) {
+                connection.registered = true;
+                onRegistered.accept(connection);
+            }
+        }
+        selector.selectedKeys().clear();
+    }
+
+    private static String handshake() {
+        byte[] key = new byte[16];
+        ThreadLocalRandom.current().nextBytes(key);
+        return "GET /v HTTP/1.1\r\n"
+                + "Host: 127.0.0.1\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: " + Base64.getEncoder().encodeToString(key) + "\r\n"
+                + "Sec-WebSocket-Version: 13\r\n"
+                + MessageType.CAPABILITIES_HEADER + ": " + MessageType.CHANGE_LOG_PUSH + ", "
+                + MessageType.BINARY_FRAMES + "\r\n"
+                + "\r\n";
+    }
+
+    /**
+     * Masked text frame, as clients must send
+     */
+    private static ByteBuffer helloFrame(String vaultName) {
+        byte[] payload = (MessageType.HELLO + ":" + vaultName).getBytes(StandardCharsets.UTF_8);
+        byte[] mask = new byte[4];
+        ThreadLocalRandom.current().nextBytes(mask);
+
+        ByteBuffer frame = ByteBuffer.allocate(6 + payload.length);
+        frame.put((byte) 0x81).put((byte) (0x80 | payload.length)).put(mask);
+        for (int i = 0; i < payload.length; i++) {
+            frame.put((byte) (payload[i] ^ mask[i % 4]));
+        }
+        return frame.flip();
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
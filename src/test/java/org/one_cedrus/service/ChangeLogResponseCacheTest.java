@@ -0,0 +1,132 @@
+package org.one_cedrus.service;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.one_cedrus.shared.ChangeLog;
+import org.one_cedrus.shared.FileChange;
+import org.one_cedrus.storage.ChangeLogStore;
+import org.one_cedrus.util.VaultUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChangeLogResponseCacheTest {
+    private static final int BATCH = 4;
+
+    private final String vaultName = "response-cache-test-" + System.nanoTime();
+
+    @BeforeAll
+    static void useSmallBatches() {
+        System.setProperty("sv.changelog.cache.batch", String.valueOf(BATCH));
+    }
+
+    @AfterAll
+    static void restoreBatches() {
+        System.clearProperty("sv.changelog.cache.batch");
+        System.clearProperty("sv.changelog.cache.budget.bytes");
+    }
+
+    @BeforeEach
+    void createVault() throws IOException {
+        Files.createDirectories(VaultUtils.getChangeLogsDir(vaultName).toPath());
+        for (int i = 0; i < 11; i++) {
+            save(changeLog(1000 + i * 10L, "file" + i + ".md"));
+        }
+    }
+
+    @AfterEach
+    void deleteVault() throws IOException {
+        System.clearProperty("sv.changelog.cache.budget.bytes");
+        ChangeLogIndex.invalidate(vaultName);
+        try (Stream<Path> paths = Files.walk(VaultUtils.getVaultDir(vaultName).toPath())) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    void gzipResponsesMatchPlainOnesWhetherBatchesAreCachedOrNot() throws IOException {
+        // Before, at, inside and past the full batches, twice so the second pass is cached
+        List<Long> sinces = List.of(0L, 1000L, 1020L, 1030L, 1070L, 1100L, 5000L);
+        for (int pass = 0; pass < 2; pass++) {
+            for (ChangeLogResponseCache.Format format : ChangeLogResponseCache.Format.values()) {
+                for (long since : sinces) {
+                    assertArrayEquals(plain(since, format), gzip(since, format), format + " since " + since);
+                }
+            }
+        }
+    }
+
+    @Test
+    void changeLogsAppendedAfterCachingAreServed() throws IOException {
+        gzip(0, ChangeLogResponseCache.Format.JSON);
+
+        for (int i = 11; i < 20; i++) {
+            save(changeLog(1000 + i * 10L, "file" + i + ".md"));
+        }
+
+        assertArrayEquals(plain(0, ChangeLogResponseCache.Format.JSON), gzip(0, ChangeLogResponseCache.Format.JSON));
+        assertArrayEquals(plain(1050, ChangeLogResponseCache.Format.BINARY),
+                gzip(1050, ChangeLogResponseCache.Format.BINARY));
+    }
+
+    @Test
+    void replacedChangeLogIsNotServedFromAStaleBatch() throws IOException {
+        byte[] before = gzip(0, ChangeLogResponseCache.Format.JSON);
+
+        save(changeLog(1020, "replaced.md"));
+
+        byte[] after = gzip(0, ChangeLogResponseCache.Format.JSON);
+        assertArrayEquals(plain(0, ChangeLogResponseCache.Format.JSON), after);
+        assertFalse(new String(before).contains("replaced.md"));
+        assertTrue(new String(after).contains("replaced.md"));
+    }
+
+    @Test
+    void responsesAreServedWithoutACache() throws IOException {
+        System.setProperty("sv.changelog.cache.budget.bytes", "0");
+
+        for (ChangeLogResponseCache.Format format : ChangeLogResponseCache.Format.values()) {
+            assertArrayEquals(plain(1010, format), gzip(1010, format));
+        }
+    }
+
+    private void save(ChangeLog changeLog) throws IOException {
+        ChangeLogStore store = VaultUtils.getChangeLogStore(vaultName);
+        store.append(changeLog);
+        store.sync();
+        ChangeLogIndex.onChangeLogSaved(vaultName, changeLog);
+    }
+
+    private byte[] plain(long since, ChangeLogResponseCache.Format format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChangeLogResponseCache.write(ChangeLogIndex.forVault(vaultName), since, format, out);
+        return out.toByteArray();
+    }
+
+    private byte[] gzip(long since, ChangeLogResponseCache.Format format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChangeLogResponseCache.writeGzip(vaultName, ChangeLogIndex.forVault(vaultName), since, format, out);
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static ChangeLog changeLog(long timestamp, String path) {
+        FileChange added = new FileChange(path, "c4".repeat(32));
+        return new ChangeLog(timestamp, new ChangeLog.Changes(List.of(added), List.of(), List.of()), timestamp - 10);
+    }
+}
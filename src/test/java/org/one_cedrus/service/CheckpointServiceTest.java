@@ -0,0 +1,123 @@
+package org.one_cedrus.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.one_cedrus.util.VaultUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CheckpointServiceTest {
+    private static final String HASH_A = "0a".repeat(32);
+    private static final String HASH_B = "b1".repeat(32);
+    private static final Map<String, String> STATE = Map.of(
+            "docs/readme.md", HASH_A,
+            "docs/report.md", HASH_B,
+            "docs/réport €.md", HASH_A,
+            "src/Main.java", HASH_B);
+
+    private final String vaultName = "checkpoint-test-" + System.nanoTime();
+    private final CheckpointService checkpoints = CheckpointService.forVault(vaultName);
+
+    @AfterEach
+    void deleteVault() throws IOException {
+        if (!VaultUtils.vaultExists(vaultName)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(VaultUtils.getVaultDir(vaultName).toPath())) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    void stateRoundTrips() throws IOException {
+        checkpoints.save(1000, STATE);
+
+        assertTrue(checkpoints.has(1000));
+        assertEquals(STATE, checkpoints.load(1000));
+    }
+
+    @Test
+    void emptyStateRoundTrips() throws IOException {
+        checkpoints.save(1000, Map.of());
+
+        assertEquals(Map.of(), checkpoints.load(1000));
+    }
+
+    @Test
+    void stateWithAnInvalidHashIsNotSaved() throws IOException {
+        checkpoints.save(1000, Map.of("a", "not-a-hash"));
+
+        assertFalse(checkpoints.has(1000));
+    }
+
+    @Test
+    void truncatedCheckpointIsDiscarded() throws IOException {
+        checkpoints.save(1000, STATE);
+        Path file = checkpointFile(1000);
+        byte[] content = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(content, content.length - 7));
+
+        assertNull(checkpoints.load(1000));
+        assertFalse(checkpoints.has(1000));
+        assertFalse(Files.exists(file));
+
+        // A rebuilt checkpoint takes its place
+        checkpoints.save(1000, STATE);
+        assertEquals(STATE, checkpoints.load(1000));
+    }
+
+    @Test
+    void checkpointOfAnotherTimestampIsDiscarded() throws IOException {
+        checkpoints.save(1000, STATE);
+        Path file = checkpointFile(1000);
+        ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(file));
+        content.putLong(8, 2000);
+        Files.write(file, content.array());
+
+        assertNull(checkpoints.load(1000));
+        assertFalse(checkpoints.has(1000));
+    }
+
+    @Test
+    void negativeCountIsDiscarded() throws IOException {
+        checkpoints.save(1000, STATE);
+        Path file = checkpointFile(1000);
+        ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(file));
+        content.putInt(16, -1);
+        Files.write(file, content.array());
+
+        assertNull(checkpoints.load(1000));
+    }
+
+    @Test
+    void prefixLongerThanThePreviousPathIsDiscarded() throws IOException {
+        checkpoints.save(1000, STATE);
+        Path file = checkpointFile(1000);
+        ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(file));
+        // The first path has no previous one to share a prefix with
+        content.putShort(20, (short) 3);
+        Files.write(file, content.array());
+
+        assertNull(checkpoints.load(1000));
+    }
+
+    private Path checkpointFile(long timestamp) throws IOException {
+        Path dir = VaultUtils.getVaultDir(vaultName).toPath().resolve(CheckpointService.CHECKPOINTS_DIRNAME);
+        try (Stream<Path> paths = Files.list(dir)) {
+            return paths.filter(path -> path.getFileName().toString().startsWith(String.format("%015d", timestamp)))
+                    .findFirst()
+                    .orElseThrow();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.one_cedrus.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.one_cedrus.shared.ChangeLog;
+import org.one_cedrus.shared.FileChange;
+import org.one_cedrus.storage.ChangeLogStore;
+import org.one_cedrus.util.VaultUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompactionServiceTest {
+    private static final Map<String, String> POLICY = Map.of(
+            "sv.compaction.retention.ms", "0",
+            "sv.compaction.keep.changelogs", "1",
+            "sv.compaction.min.changelogs", "1");
+
+    private final String vaultName = "compaction-test-" + System.nanoTime();
+
+    @BeforeEach
+    void createVault() throws IOException {
+        POLICY.forEach(System::setProperty);
+        Files.createDirectories(VaultUtils.getChangeLogsDir(vaultName).toPath());
+    }
+
+    @AfterEach
+    void deleteVault() throws IOException {
+        POLICY.keySet().forEach(System::clearProperty);
+        ChangeLogIndex.invalidate(vaultName);
+        try (Stream<Path> paths = Files.walk(VaultUtils.getVaultDir(vaultName).toPath())) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    void oldChangeLogsAreSquashedIntoABaseLog() throws IOException {
+        save(changeLog(1000, 0, "a.md", null));
+        save(changeLog(1010, 1000, "b.md", null));
+        save(changeLog(1020, 1010, "c.md", "a.md"));
+        save(changeLog(1030, 1020, "d.md", null));
+
+        assertTrue(CompactionService.compactVault(vaultName));
+
+        List<ChangeLog> changeLogs = readAll();
+        assertEquals(List.of(1020L, 1030L), changeLogs.stream().map(ChangeLog::getTimestamp).toList());
+        ChangeLog base = changeLogs.get(0);
+        assertEquals(0, base.getParent());
+        assertEquals(List.of("b.md", "c.md"), base.getChanges().getAdded().stream().map(FileChange::getPath).toList());
+        // Clients at a squashed version are told to bootstrap again from this one
+        assertEquals(1020L, ChangeLogIndex.forVault(vaultName).oldestTimestamp());
+    }
+
+    @Test
+    void changeLogMissingFromTheIndexAbortsCompaction() throws IOException {
+        save(changeLog(1000, 0, "a.md", null));
+        save(changeLog(1010, 1000, "b.md", null));
+        ChangeLogIndex.forVault(vaultName);
+
+        // Stored, but never published to the loaded index
+        ChangeLogStore store = VaultUtils.getChangeLogStore(vaultName);
+        store.append(changeLog(1020, 1010, "c.md", null));
+        store.append(changeLog(1030, 1020, "d.md", null));
+        store.sync();
+        List<String> before = readAllJson();
+
+        IOException e = assertThrows(IOException.class, () -> CompactionService.compactVault(vaultName));
+        assertTrue(e.getMessage().contains("1020"), e.getMessage());
+        assertEquals(before, readAllJson());
+    }
+
+    private void save(ChangeLog changeLog) throws IOException {
+        ChangeLogStore store = VaultUtils.getChangeLogStore(vaultName);
+        store.append(changeLog);
+        store.sync();
+        ChangeLogIndex.onChangeLogSaved(vaultName, changeLog);
+    }
+
+    private List<ChangeLog> readAll() throws IOException {
+        return readAllJson().stream().map(ChangeLog::fromJson).toList();
+    }
+
+    private List<String> readAllJson() throws IOException {
+        List<String> read = new ArrayList<>();
+        VaultUtils.getChangeLogStore(vaultName).forEach((timestamp, json) -> read.add(json));
+        return read;
+    }
+
+    private static ChangeLog changeLog(long timestamp, long parent, String added, String deleted) {
+        FileChange file = new FileChange(added, "d5".repeat(32));
+        return new ChangeLog(timestamp, new ChangeLog.Changes(List.of(file), List.of(),
+                deleted == null ? List.of() : List.of(deleted)), parent);
+    }
+}
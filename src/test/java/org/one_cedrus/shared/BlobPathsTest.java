@@ -0,0 +1,89 @@
+package org.one_cedrus.shared;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlobPathsTest {
+    private static final String HASH = "abcd" + "0".repeat(60);
+    private static final String OTHER_HASH = "ef01" + "1".repeat(60);
+
+    @TempDir
+    Path blobsDir;
+
+    @Test
+    void blobsLiveUnderTheirFirstTwoBytePairs() throws IOException {
+        Path path = BlobPaths.resolveForWrite(blobsDir, HASH + ".gz");
+
+        assertEquals(blobsDir.resolve("ab").resolve("cd").resolve(HASH + ".gz"), path);
+        assertTrue(Files.isDirectory(path.getParent()));
+    }
+
+    @Test
+    void flatBlobIsMovedIntoPlaceWhenLookedUp() throws IOException {
+        Files.writeString(blobsDir.resolve(HASH), "content");
+
+        Path path = BlobPaths.locate(blobsDir, HASH);
+
+        assertEquals(BlobPaths.resolve(blobsDir, HASH), path);
+        assertEquals("content", Files.readString(path));
+        assertFalse(Files.exists(blobsDir.resolve(HASH)));
+    }
+
+    @Test
+    void migrateMovesBlobsAndLeavesOtherEntries() throws IOException {
+        Files.writeString(blobsDir.resolve(HASH), "a");
+        Files.writeString(blobsDir.resolve(OTHER_HASH + ".gz"), "b");
+        Files.writeString(blobsDir.resolve("upload.tmp"), "c");
+
+        assertEquals(2, BlobPaths.migrate(blobsDir));
+
+        assertTrue(Files.exists(BlobPaths.resolve(blobsDir, HASH)));
+        assertTrue(Files.exists(BlobPaths.resolve(blobsDir, OTHER_HASH + ".gz")));
+        assertTrue(Files.exists(blobsDir.resolve("upload.tmp")));
+        assertEquals(Set.of(HASH, OTHER_HASH + ".gz"), BlobPaths.list(blobsDir).stream()
+                .map(path -> path.getFileName().toString())
+                .collect(Collectors.toSet()));
+    }
+
+    @Test
+    void migratedDirectoryIsNotSearchedAtTheTopLevel() throws IOException {
+        BlobPaths.migrate(blobsDir);
+        Files.writeString(blobsDir.resolve(HASH), "written by hand");
+
+        assertNull(BlobPaths.locate(blobsDir, HASH));
+        assertFalse(BlobPaths.exists(blobsDir, OTHER_HASH));
+    }
+
+    @Test
+    void namesThatAreNotBlobNamesAreRejected() throws IOException {
+        Path outside = Files.writeString(blobsDir.resolveSibling(blobsDir.getFileName() + "-secret"), "secret");
+        String escaping = "../" + outside.getFileName();
+
+        for (String name : new String[]{escaping, "abc", HASH.toUpperCase(), HASH + "/x", null}) {
+            assertThrows(IllegalArgumentException.class, () -> BlobPaths.locate(blobsDir, name), name);
+            assertThrows(IllegalArgumentException.class, () -> BlobPaths.resolveForWrite(blobsDir, name), name);
+            assertThrows(IllegalArgumentException.class, () -> BlobPaths.delete(blobsDir, name), name);
+        }
+        assertEquals("secret", Files.readString(outside));
+        Files.delete(outside);
+    }
+
+    @Test
+    void deleteRemovesEitherLayout() throws IOException {
+        Files.writeString(BlobPaths.resolveForWrite(blobsDir, HASH), "a");
+        Files.writeString(blobsDir.resolve(OTHER_HASH), "b");
+
+        BlobPaths.delete(blobsDir, HASH);
+        BlobPaths.delete(blobsDir, OTHER_HASH);
+
+        assertTrue(BlobPaths.list(blobsDir).isEmpty());
+    }
+}
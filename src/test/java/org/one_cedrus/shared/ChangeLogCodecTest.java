@@ -0,0 +1,244 @@
+package org.one_cedrus.shared;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChangeLogCodecTest {
+    private static final String HASH = "0f".repeat(32);
+    private static final String OTHER_HASH = "e1".repeat(32);
+
+    @Test
+    void changeLogsDecodeToTheJsonTheyWereEncodedFrom() throws IOException {
+        List<ChangeLog> changeLogs = List.of(full(), empty(), withoutChanges());
+
+        List<ChangeLog> decoded = ChangeLogCodec.decode(new ByteArrayInputStream(ChangeLogCodec.encode(changeLogs)));
+
+        assertEquals(json(changeLogs), json(decoded));
+    }
+
+    @Test
+    void encodingIsSmallerThanJson() throws IOException {
+        List<ChangeLog> changeLogs = List.of(full());
+
+        assertTrue(ChangeLogCodec.encode(changeLogs).length < full().toJson().length() / 2);
+    }
+
+    @Test
+    void singleRecordRoundTrips() throws IOException {
+        byte[] record = ChangeLogCodec.encodeRecord(full());
+
+        assertEquals(full().toJson(), ChangeLogCodec.decodeRecord(record, 0, record.length).toJson());
+    }
+
+    @Test
+    void mediaRangesExcludedWithAZeroQualityDoNotMatch() {
+        assertTrue(ChangeLogCodec.matches(ChangeLogCodec.MEDIA_TYPE));
+        assertTrue(ChangeLogCodec.matches("application/json;q=0.5, application/x-sv-changelogs"));
+        assertTrue(ChangeLogCodec.matches("Application/X-SV-Changelogs; q=0.1"));
+        assertFalse(ChangeLogCodec.matches("application/x-sv-changelogs;q=0"));
+        assertFalse(ChangeLogCodec.matches("application/x-sv-changelogs;q=0.0, application/json"));
+        assertFalse(ChangeLogCodec.matches("application/x-sv-changelogs-v2"));
+        assertFalse(ChangeLogCodec.matches("application/json"));
+        assertFalse(ChangeLogCodec.matches(null));
+    }
+
+    @Test
+    void unsupportedVersionIsRejected() {
+        byte[] encoded = encode(full());
+        encoded[0] = 2;
+
+        assertThrows(IOException.class, () -> decode(encoded));
+    }
+
+    @Test
+    void everyTruncationIsRejected() {
+        byte[] encoded = encode(full());
+
+        for (int length = 0; length < encoded.length; length++) {
+            byte[] truncated = Arrays.copyOf(encoded, length);
+            assertThrows(IOException.class, () -> decode(truncated), "truncated to " + length + " bytes");
+        }
+    }
+
+    @Test
+    void negativeRecordLengthIsRejected() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChangeLogCodec.writeHeader(out);
+        ChangeLogCodec.writeVarLong(out, -1);
+
+        IOException e = assertThrows(IOException.class, () -> decode(out.toByteArray()));
+        assertTrue(e.getMessage().contains("record length"), e.getMessage());
+    }
+
+    @Test
+    void forgedRecordLengthIsNotAllocated() throws IOException {
+        byte[] record = ChangeLogCodec.encodeRecord(full());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChangeLogCodec.writeHeader(out);
+        ChangeLogCodec.writeVarLong(out, Long.MAX_VALUE);
+        out.write(record);
+
+        assertThrows(IOException.class, () -> decode(out.toByteArray()));
+    }
+
+    @Test
+    void trailingBytesInARecordAreRejected() throws IOException {
+        byte[] record = Arrays.copyOf(ChangeLogCodec.encodeRecord(withoutChanges()), 20);
+
+        IOException e = assertThrows(IOException.class, () -> decode(stream(record)));
+        assertTrue(e.getMessage().contains("Trailing"), e.getMessage());
+        assertThrows(IOException.class, () -> ChangeLogCodec.decodeRecord(record, 0, record.length));
+    }
+
+    @Test
+    void negativeCountIsRejected() throws IOException {
+        ByteArrayOutputStream record = recordStart(0b11);
+        ChangeLogCodec.writeVarLong(record, -1);
+
+        IOException e = assertThrows(IOException.class, () -> decode(stream(record.toByteArray())));
+        assertTrue(e.getMessage().contains("count"), e.getMessage());
+    }
+
+    @Test
+    void pathPrefixLongerThanThePreviousPathIsRejected() throws IOException {
+        ByteArrayOutputStream record = recordStart(0b1001);
+        ChangeLogCodec.writeVarLong(record, 1);
+        ChangeLogCodec.writeVarLong(record, 4);
+        ChangeLogCodec.writeVarLong(record, 1);
+        record.write('a');
+
+        IOException e = assertThrows(IOException.class, () -> decode(stream(record.toByteArray())));
+        assertTrue(e.getMessage().contains("prefix"), e.getMessage());
+    }
+
+    @Test
+    void oversizedPathIsRejectedBeforeItIsRead() throws IOException {
+        ByteArrayOutputStream record = recordStart(0b1001);
+        ChangeLogCodec.writeVarLong(record, 1);
+        ChangeLogCodec.writeVarLong(record, 0);
+        ChangeLogCodec.writeVarLong(record, Integer.MAX_VALUE);
+
+        IOException e = assertThrows(IOException.class, () -> decode(stream(record.toByteArray())));
+        assertTrue(e.getMessage().contains("too long"), e.getMessage());
+    }
+
+    @Test
+    void unknownChangeTypeAndHashFormAreRejected() throws IOException {
+        ByteArrayOutputStream changeType = recordStart(0b11);
+        ChangeLogCodec.writeVarLong(changeType, 1);
+        ChangeLogCodec.writeVarLong(changeType, 0);
+        ChangeLogCodec.writeVarLong(changeType, 1);
+        changeType.write('a');
+        changeType.write(7);
+
+        ByteArrayOutputStream hash = recordStart(0b11);
+        ChangeLogCodec.writeVarLong(hash, 1);
+        ChangeLogCodec.writeVarLong(hash, 0);
+        ChangeLogCodec.writeVarLong(hash, 1);
+        hash.write('a');
+        hash.write(1);
+        hash.write(9);
+
+        assertThrows(IOException.class, () -> decode(stream(changeType.toByteArray())));
+        assertThrows(IOException.class, () -> decode(stream(hash.toByteArray())));
+    }
+
+    @Test
+    void changeLogsTheDecoderWouldRejectAreNotEncoded() {
+        FileChange longPath = new FileChange("a".repeat(70_000), HASH);
+        FileChange noPath = new FileChange(null, HASH);
+        FileChange noChangeType = new FileChange("a.md", HASH, null);
+        List<ChangeLog> invalid = new ArrayList<>();
+        invalid.add(new ChangeLog(1, new ChangeLog.Changes(List.of(longPath), null, null)));
+        invalid.add(new ChangeLog(2, new ChangeLog.Changes(null, List.of(noPath), null)));
+        invalid.add(new ChangeLog(3, new ChangeLog.Changes(List.of(noChangeType), null, null)));
+        invalid.add(new ChangeLog(4, new ChangeLog.Changes(Arrays.asList((FileChange) null), null, null)));
+        invalid.add(new ChangeLog(5, new ChangeLog.Changes(null, null, Arrays.asList("b.md", null))));
+        invalid.add(new ChangeLog(6, new ChangeLog.Changes(null, null, List.of("é".repeat(40_000)))));
+
+        for (ChangeLog changeLog : invalid) {
+            assertThrows(IOException.class, () -> ChangeLogCodec.encodeRecord(changeLog), changeLog.toJson());
+            assertThrows(IllegalArgumentException.class, () -> ChangeLogCodec.validate(changeLog));
+        }
+        assertThrows(IllegalArgumentException.class, () -> ChangeLogCodec.validate(null));
+    }
+
+    @Test
+    void longestAcceptedPathRoundTrips() throws IOException {
+        String path = "a".repeat(64 * 1024);
+        ChangeLog changeLog = new ChangeLog(1, new ChangeLog.Changes(null, null, List.of(path)));
+
+        ChangeLogCodec.validate(changeLog);
+        byte[] record = ChangeLogCodec.encodeRecord(changeLog);
+        assertEquals(changeLog.toJson(), ChangeLogCodec.decodeRecord(record, 0, record.length).toJson());
+    }
+
+    /**
+     * Change log with every field used: chunks, a change type and a hash outside the
+     * compact forms, and paths sharing prefixes
+     */
+    private static ChangeLog full() {
+        FileChange chunked = new FileChange("docs/notes/a.md", HASH);
+        chunked.setChunks(List.of(HASH, OTHER_HASH));
+        FileChange renamed = new FileChange("docs/notes/b.md", "not-a-sha256", "RENAMED");
+        List<FileChange> modified = new ArrayList<>();
+        modified.add(new FileChange("docs/ünïcode.md", null, "MODIFIED"));
+        List<String> deleted = List.of("docs/notes/old.md", "docs/notes/older.md", "z.txt");
+
+        return new ChangeLog(1_700_000_000_123L,
+                new ChangeLog.Changes(List.of(chunked, renamed), modified, deleted), 1_700_000_000_000L);
+    }
+
+    private static ChangeLog empty() {
+        return new ChangeLog(2, new ChangeLog.Changes(List.of(), null, List.of()), 1);
+    }
+
+    private static ChangeLog withoutChanges() {
+        return new ChangeLog(1, null);
+    }
+
+    /**
+     * Record holding a timestamp, a parent and the given presence bits, to be followed by
+     * its lists
+     */
+    private static ByteArrayOutputStream recordStart(int presence) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        ChangeLogCodec.writeVarLong(record, 10);
+        ChangeLogCodec.writeVarLong(record, 5);
+        record.write(presence);
+        return record;
+    }
+
+    private static byte[] stream(byte[] record) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChangeLogCodec.writeHeader(out);
+        ChangeLogCodec.writeVarLong(out, record.length);
+        out.write(record);
+        ChangeLogCodec.writeEnd(out);
+        return out.toByteArray();
+    }
+
+    private static byte[] encode(ChangeLog changeLog) {
+        try {
+            return ChangeLogCodec.encode(List.of(changeLog));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static List<ChangeLog> decode(byte[] encoded) throws IOException {
+        return ChangeLogCodec.decode(new ByteArrayInputStream(encoded));
+    }
+
+    private static List<String> json(List<ChangeLog> changeLogs) {
+        return changeLogs.stream().map(ChangeLog::toJson).toList();
+    }
+}
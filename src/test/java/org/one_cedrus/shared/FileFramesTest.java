@@ -0,0 +1,148 @@
+package org.one_cedrus.shared;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileFramesTest {
+    private static final byte[] FIRST = "first file".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SECOND = "second file, a little longer".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    void plainFramesRoundTrip() throws Exception {
+        byte[] stream = write(out -> {
+            FileFrames.writeFrame(out, false, "a", FIRST.length, new ByteArrayInputStream(FIRST));
+            FileFrames.writeFrame(out, false, "b", SECOND.length, new ByteArrayInputStream(SECOND));
+            FileFrames.writeFrame(out, false, "empty", 0, new ByteArrayInputStream(new byte[0]));
+        });
+
+        Map<String, byte[]> read = new LinkedHashMap<>();
+        Map<String, Long> lengths = new LinkedHashMap<>();
+        int count = FileFrames.readFrames(new ByteArrayInputStream(stream), false, (hash, length, content) -> {
+            read.put(hash, content.readAllBytes());
+            lengths.put(hash, length);
+        });
+
+        assertEquals(3, count);
+        assertArrayEquals(FIRST, read.get("a"));
+        assertArrayEquals(SECOND, read.get("b"));
+        assertArrayEquals(new byte[0], read.get("empty"));
+        assertEquals(Map.of("a", (long) FIRST.length, "b", (long) SECOND.length, "empty", 0L), lengths);
+    }
+
+    @Test
+    void encodedFramesCarryRawAndGzipContent() throws Exception {
+        byte[] compressed = gzip(SECOND);
+        byte[] stream = write(out -> {
+            FileFrames.writeFrame(out, true, "a", FIRST.length, new ByteArrayInputStream(FIRST));
+            FileFrames.writeGzipFrame(out, "b", compressed.length, new ByteArrayInputStream(compressed));
+        });
+
+        Map<String, byte[]> read = new LinkedHashMap<>();
+        Map<String, Long> lengths = new LinkedHashMap<>();
+        FileFrames.readFrames(new ByteArrayInputStream(stream), true, (hash, length, content) -> {
+            read.put(hash, content.readAllBytes());
+            lengths.put(hash, length);
+        });
+
+        assertArrayEquals(FIRST, read.get("a"));
+        assertArrayEquals(SECOND, read.get("b"));
+        assertEquals(FIRST.length, lengths.get("a"));
+        assertEquals(-1, lengths.get("b"));
+    }
+
+    @Test
+    void unreadContentIsSkipped() throws Exception {
+        byte[] stream = write(out -> {
+            FileFrames.writeFrame(out, false, "a", FIRST.length, new ByteArrayInputStream(FIRST));
+            FileFrames.writeFrame(out, false, "b", SECOND.length, new ByteArrayInputStream(SECOND));
+        });
+
+        Map<String, Integer> firstBytes = new LinkedHashMap<>();
+        FileFrames.readFrames(new ByteArrayInputStream(stream), false,
+                (hash, length, content) -> firstBytes.put(hash, content.read()));
+
+        assertEquals(Map.of("a", (int) FIRST[0], "b", (int) SECOND[0]), firstBytes);
+    }
+
+    @Test
+    void sourceShorterThanItsLengthIsRejected() {
+        assertThrows(IOException.class, () -> write(out -> FileFrames.writeFrame(out, false, "a",
+                FIRST.length + 1, new ByteArrayInputStream(FIRST))));
+    }
+
+    @Test
+    void streamWithoutEndMarkerIsRejected() throws Exception {
+        byte[] stream = write(out ->
+                FileFrames.writeFrame(out, false, "a", FIRST.length, new ByteArrayInputStream(FIRST)));
+        byte[] withoutEnd = Arrays.copyOf(stream, stream.length - 2);
+
+        IOException e = assertThrows(IOException.class, () -> readAll(withoutEnd, false));
+        assertTrue(e.getMessage().contains("end marker"), e.getMessage());
+    }
+
+    @Test
+    void truncatedFrameIsRejected() throws Exception {
+        byte[] stream = write(out ->
+                FileFrames.writeFrame(out, false, "a", SECOND.length, new ByteArrayInputStream(SECOND)));
+
+        assertThrows(IOException.class, () -> readAll(Arrays.copyOf(stream, stream.length - 10), false));
+    }
+
+    @Test
+    void negativeLengthIsRejected() throws Exception {
+        byte[] stream = write(out ->
+                FileFrames.writeFrame(out, false, "a", FIRST.length, new ByteArrayInputStream(FIRST)));
+        // Hash "a" is a 2-byte length and 1 byte, the frame length follows
+        ByteBuffer.wrap(stream).putLong(3, -1);
+
+        assertThrows(IOException.class, () -> readAll(stream, false));
+    }
+
+    @Test
+    void unknownEncodingIsRejected() throws Exception {
+        byte[] stream = write(out ->
+                FileFrames.writeFrame(out, true, "a", FIRST.length, new ByteArrayInputStream(FIRST)));
+        stream[3] = 7;
+
+        IOException e = assertThrows(IOException.class, () -> readAll(stream, true));
+        assertTrue(e.getMessage().contains("Unknown encoding"), e.getMessage());
+    }
+
+    @FunctionalInterface
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] write(Writer writer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writer.write(out);
+        FileFrames.writeEnd(out);
+        return bytes.toByteArray();
+    }
+
+    private static void readAll(byte[] stream, boolean encoded) throws Exception {
+        FileFrames.readFrames(new ByteArrayInputStream(stream), encoded,
+                (hash, length, content) -> content.readAllBytes());
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(content);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,101 @@
+package org.one_cedrus.shared;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageFramesTest {
+    private static final String VAULT_NAME = "kq3v0c1j2w4x5y6z7a8b9c0d1e2f3g4h5i6j7k8l9m0";
+
+    @Test
+    void framesRoundTrip() throws IOException {
+        for (MessageType type : MessageType.values()) {
+            byte[] payload = MessageFrames.vaultName(VAULT_NAME);
+
+            MessageFrames.Frame frame = decode(MessageFrames.encode(type, 300, payload));
+
+            assertEquals(type, frame.type());
+            assertEquals(300, frame.vaultId());
+            assertEquals(VAULT_NAME, MessageFrames.vaultName(frame.payload()));
+        }
+    }
+
+    @Test
+    void frameAboutNoVaultIsThreeBytes() throws IOException {
+        byte[] encoded = MessageFrames.encode(MessageType.HEARTBEAT, MessageFrames.NO_VAULT);
+
+        assertEquals(3, encoded.length);
+        MessageFrames.Frame frame = decode(encoded);
+        assertEquals(MessageType.HEARTBEAT, frame.type());
+        assertEquals(MessageFrames.NO_VAULT, frame.vaultId());
+        assertEquals(0, frame.payload().length);
+    }
+
+    @Test
+    void headsRoundTrip() throws IOException {
+        for (long head : new long[]{0, 127, 128, 1_700_000_000_000L, Long.MAX_VALUE}) {
+            MessageFrames.Frame frame = decode(MessageFrames.encode(MessageType.FILE_CHANGE, 1, MessageFrames.head(head)));
+
+            assertEquals(head, MessageFrames.head(frame.payload()));
+        }
+        assertNull(MessageFrames.head(new byte[0]));
+    }
+
+    @Test
+    void unknownTypeAndEmptyFrameAreRejected() {
+        byte[] unknown = MessageFrames.encode(MessageType.STATUS, 1);
+        unknown[0] = 42;
+
+        assertThrows(IOException.class, () -> decode(unknown));
+        assertThrows(IOException.class, () -> decode(new byte[0]));
+    }
+
+    @Test
+    void vaultIdOutOfRangeIsRejected() throws IOException {
+        for (long vaultId : new long[]{-1, Integer.MAX_VALUE + 1L}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(MessageType.FILE_CHANGE.code());
+            ChangeLogCodec.writeVarLong(out, vaultId);
+            ChangeLogCodec.writeVarLong(out, 0);
+
+            assertThrows(IOException.class, () -> decode(out.toByteArray()), "vault id " + vaultId);
+        }
+    }
+
+    @Test
+    void payloadLengthMustMatchTheFrame() {
+        byte[] encoded = MessageFrames.encode(MessageType.CHANGE_LOGS, 2, new byte[10]);
+        byte[] extra = Arrays.copyOf(encoded, encoded.length + 1);
+
+        assertThrows(IOException.class, () -> decode(Arrays.copyOf(encoded, encoded.length - 1)));
+        assertThrows(IOException.class, () -> decode(extra));
+    }
+
+    @Test
+    void truncatedHeaderIsRejected() {
+        byte[] encoded = MessageFrames.encode(MessageType.FILE_CHANGE, 1000, new byte[0]);
+
+        for (int length = 1; length < encoded.length; length++) {
+            byte[] truncated = Arrays.copyOf(encoded, length);
+            assertThrows(IOException.class, () -> decode(truncated), "truncated to " + length + " bytes");
+        }
+    }
+
+    @Test
+    void malformedHeadIsRejected() {
+        byte[] unterminated = {(byte) 0x80};
+        byte[] trailing = {0x05, 0x01};
+
+        assertThrows(IOException.class, () -> MessageFrames.head(unterminated));
+        assertThrows(IOException.class, () -> MessageFrames.head(trailing));
+    }
+
+    private static MessageFrames.Frame decode(byte[] encoded) throws IOException {
+        return MessageFrames.decode(ByteBuffer.wrap(encoded));
+    }
+}
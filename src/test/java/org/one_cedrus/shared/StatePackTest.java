@@ -0,0 +1,110 @@
+package org.one_cedrus.shared;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StatePackTest {
+    private static final String HASH_A = "aa".repeat(32);
+    private static final String HASH_B = "bb".repeat(32);
+
+    @Test
+    void manifestAndFilesRoundTrip() throws Exception {
+        ChangeLog manifest = ChangeLogCompactor.toBaseChangeLog(1234, Map.of("a.txt", HASH_A, "dir/b.txt", HASH_B));
+        byte[] a = "content of a".getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        StatePack.writeManifest(out, manifest);
+        FileFrames.writeFrame(out, false, HASH_A, a.length, new ByteArrayInputStream(a));
+        FileFrames.writeEnd(out);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        ChangeLog read = StatePack.readManifest(in);
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        FileFrames.readFrames(in, false, (hash, length, content) -> files.put(hash, content.readAllBytes()));
+
+        assertEquals(manifest.toJson(), read.toJson());
+        assertEquals(0, read.getParent());
+        assertArrayEquals(a, files.get(HASH_A));
+    }
+
+    @Test
+    void wrongMagicIsRejected() throws IOException {
+        byte[] pack = pack();
+        pack[0] ^= 0x01;
+
+        IOException e = assertThrows(IOException.class, () -> read(pack));
+        assertEquals("Not a state pack", e.getMessage());
+    }
+
+    @Test
+    void unknownVersionIsRejected() throws IOException {
+        byte[] pack = pack();
+        ByteBuffer.wrap(pack).putInt(4, 2);
+
+        assertThrows(IOException.class, () -> read(pack));
+    }
+
+    @Test
+    void negativeLengthIsRejected() throws IOException {
+        byte[] pack = pack();
+        ByteBuffer.wrap(pack).putInt(8, -1);
+
+        assertThrows(IOException.class, () -> read(pack));
+    }
+
+    @Test
+    void lengthBeyondTheStreamIsRejectedWithoutAllocatingIt() throws IOException {
+        byte[] pack = pack();
+        ByteBuffer.wrap(pack).putInt(8, Integer.MAX_VALUE - 8);
+
+        assertThrows(IOException.class, () -> read(pack));
+    }
+
+    @Test
+    void truncatedManifestIsRejected() throws IOException {
+        byte[] pack = pack();
+
+        assertThrows(IOException.class, () -> read(Arrays.copyOf(pack, pack.length - 3)));
+    }
+
+    @Test
+    void malformedManifestIsRejected() throws IOException {
+        byte[] json = "{\"timestamp\": [".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer pack = ByteBuffer.allocate(12 + json.length);
+        pack.put(pack(), 0, 8).putInt(json.length).put(json);
+
+        assertThrows(IOException.class, () -> read(pack.array()));
+    }
+
+    @Test
+    void manifestWithoutFilesIsRejected() throws IOException {
+        byte[] json = "{\"timestamp\": 5}".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer pack = ByteBuffer.allocate(12 + json.length);
+        pack.put(pack(), 0, 8).putInt(json.length).put(json);
+
+        assertThrows(IOException.class, () -> read(pack.array()));
+    }
+
+    private static byte[] pack() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        StatePack.writeManifest(new DataOutputStream(bytes), ChangeLogCompactor.toBaseChangeLog(1, Map.of("a", HASH_A)));
+        return bytes.toByteArray();
+    }
+
+    private static ChangeLog read(byte[] pack) throws IOException {
+        return StatePack.readManifest(new DataInputStream(new ByteArrayInputStream(pack)));
+    }
+}
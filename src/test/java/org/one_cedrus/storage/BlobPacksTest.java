@@ -0,0 +1,172 @@
+package org.one_cedrus.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlobPacksTest {
+    private static final String HASH_A = "a1".repeat(32);
+    private static final String HASH_B = "b2".repeat(32);
+    private static final String HASH_C = "c3".repeat(32);
+
+    @TempDir
+    Path looseDir;
+
+    @BeforeEach
+    @AfterEach
+    void deletePacks() throws IOException {
+        Path packsDir = BlobPacks.getPacksDir();
+        if (Files.exists(packsDir)) {
+            try (Stream<Path> paths = Files.walk(packsDir)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(path);
+                }
+            }
+        }
+        BlobPacks.reload();
+    }
+
+    @Test
+    void packedBlobsAreReadBackAndTheirLooseFilesDeleted() throws IOException {
+        List<BlobPacks.Source> sources = sources(HASH_A, HASH_B, HASH_C);
+
+        assertEquals(3, BlobPacks.write(sources));
+
+        for (BlobPacks.Source source : sources) {
+            assertFalse(Files.exists(source.file()));
+            assertEquals(content(source.hash()), read(source.hash()));
+        }
+        assertNull(BlobPacks.find("d4".repeat(32)));
+    }
+
+    @Test
+    void packsAreLoadedBackFromDisk() throws IOException {
+        BlobPacks.write(sources(HASH_A, HASH_B));
+
+        BlobPacks.reload();
+
+        assertEquals(2, BlobPacks.size());
+        assertEquals(content(HASH_A), read(HASH_A));
+        assertEquals(content(HASH_B), read(HASH_B));
+    }
+
+    @Test
+    void blobsDeletedBeforePackingAreLeftOut() throws IOException {
+        List<BlobPacks.Source> sources = sources(HASH_A, HASH_B);
+        Files.delete(sources.get(0).file());
+
+        assertEquals(1, BlobPacks.write(sources));
+        assertFalse(BlobPacks.contains(HASH_A));
+        assertTrue(BlobPacks.contains(HASH_B));
+    }
+
+    @Test
+    void collectKeepsOnlyLiveBlobs() throws IOException {
+        BlobPacks.write(sources(HASH_A, HASH_B, HASH_C));
+
+        BlobPacks.collect(hash -> !hash.equals(HASH_B), new Object(), 0);
+
+        assertFalse(BlobPacks.contains(HASH_B));
+        assertEquals(content(HASH_A), read(HASH_A));
+        assertEquals(content(HASH_C), read(HASH_C));
+
+        BlobPacks.reload();
+        assertEquals(2, BlobPacks.size());
+        assertEquals(1, files(".pack").size());
+    }
+
+    @Test
+    void packWithoutIndexIsDeletedOnLoad() throws IOException {
+        BlobPacks.write(sources(HASH_A));
+        Files.delete(files(".idx").get(0));
+        Files.writeString(BlobPacks.getPacksDir().resolve("pack-1.pack.tmp"), "interrupted");
+
+        BlobPacks.reload();
+
+        assertFalse(BlobPacks.contains(HASH_A));
+        assertEquals(List.of(), files(""));
+    }
+
+    @Test
+    void indexWithAnEntryOutOfThePackIsIgnored() throws IOException {
+        BlobPacks.write(sources(HASH_A, HASH_B));
+        Path index = files(".idx").get(0);
+
+        // Length of the second entry, past the end of the pack
+        ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(index));
+        content.putInt(12 + 45 + 32 + 8, Integer.MAX_VALUE);
+        Files.write(index, content.array());
+
+        BlobPacks.reload();
+
+        assertEquals(0, BlobPacks.size());
+    }
+
+    @Test
+    void truncatedIndexIsIgnored() throws IOException {
+        BlobPacks.write(sources(HASH_A, HASH_B));
+        Path index = files(".idx").get(0);
+        byte[] content = Files.readAllBytes(index);
+        Files.write(index, Arrays.copyOf(content, content.length - 10));
+
+        BlobPacks.reload();
+
+        assertEquals(0, BlobPacks.size());
+    }
+
+    @Test
+    void packWithAnUnknownHeaderIsIgnored() throws IOException {
+        BlobPacks.write(sources(HASH_A));
+        Path pack = files(".pack").get(0);
+        byte[] content = Files.readAllBytes(pack);
+        content[0] ^= 0x01;
+        Files.write(pack, content);
+
+        BlobPacks.reload();
+
+        assertFalse(BlobPacks.contains(HASH_A));
+    }
+
+    private List<BlobPacks.Source> sources(String... hashes) throws IOException {
+        List<BlobPacks.Source> sources = new ArrayList<>();
+        for (String hash : hashes) {
+            Path file = looseDir.resolve(hash);
+            Files.writeString(file, content(hash));
+            sources.add(new BlobPacks.Source(hash, file, false));
+        }
+        return sources;
+    }
+
+    private static String content(String hash) {
+        return "content of " + hash.substring(0, 2);
+    }
+
+    private static String read(String hash) throws IOException {
+        StoredBlob blob = BlobPacks.find(hash);
+        assertNotNull(blob, hash);
+        try (InputStream in = blob.openStored()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static List<Path> files(String suffix) throws IOException {
+        try (Stream<Path> paths = Files.list(BlobPacks.getPacksDir())) {
+            return paths.filter(path -> path.getFileName().toString().endsWith(suffix)).sorted().toList();
+        }
+    }
+}
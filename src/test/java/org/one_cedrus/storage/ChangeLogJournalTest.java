@@ -0,0 +1,343 @@
+package org.one_cedrus.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.one_cedrus.shared.ChangeLog;
+import org.one_cedrus.shared.FileChange;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChangeLogJournalTest {
+    // Small enough for a handful of change logs to span several segments
+    private static final long SEGMENT_BYTES = 1024;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void changeLogsSpanningSegmentsAreReadBackAfterReopen() throws IOException {
+        List<ChangeLog> written = changeLogs(100);
+        try (ChangeLogJournal journal = ChangeLogJournal.open(dir, SEGMENT_BYTES)) {
+            for (ChangeLog changeLog : written) {
+                journal.append(changeLog);
+            }
+        }
+        assertTrue(files(".idx").size() > 1, "sealed segments have an index");
+
+        try (ChangeLogJournal journal = ChangeLogJournal.open(dir, SEGMENT_BYTES)) {
+            assertEquals(json(written), readAll(journal));
+            assertEquals(written.get(42).toJson(), journal.get(written.get(42).getTimestamp()));
+            assertNull(journal.get(5));
+
+            long since = written.get(89).getTimestamp();
+            assertEquals(json(written.subList(90, 100)), readSince(journal, since));
+        }
+    }
+
+    @Test
+    void laterRecordWithTheSameTimestampWins() throws IOException {
+        try (ChangeLogJournal journal = ChangeLogJournal.open(dir, SEGMENT_BYTES)) {
+            journal.append(changeLog(1000, "first"));
+            journal.append(changeLog(1000, "second"));
+
+            assertEquals(changeLog(1000, "second").toJson(), journal.get(1000));
+        }
+    }
+
+    @Test
+    void tornRecordAtTheEndIsTruncated() throws IOException {
+        List<ChangeLog> written = changeLogs(3);
+        appendAll(written);
+        Path active = lastSegment();
+        long size = Files.size(active);
+
+        // Header of a record whose content never made it to disk
+        ByteBuffer torn = ByteBuffer.allocate(16).putInt(500).putLong(9999).putInt(0).flip();
+        Files.write(active, torn.array(), StandardOpenOption.APPEND);
+
+        try (ChangeLogJournal journal = ChangeLogJournal.open(dir, SEGMENT_BYTES)) {
+            assertEquals(size, Files.size(active));
+            assertEquals(json(written), readAll(journal));
+
+            ChangeLog next = changeLog(5000, "next");
+            journal.append(next);
+            assertEquals(next.toJson(), journal.get(5000));
+        }
+    }
+
+    @Test
+    void recordWithBadCrcEndsTheActiveSegment() throws IOException {
+        List<ChangeLog> written = changeLogs(3);
+        appendAll(written);
+        Path active = lastSegment();
+
+        // Flip the last byte of the last record's content
+        try (FileChannel channel = FileChannel.open(active, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) (last.get(0) ^ 0x01)}), channel.size() - 1);
+        }
+
+        try (ChangeLogJournal journal = ChangeLogJournal.open(dir, SEGMENT_BYTES)) {
+            assertEquals(json(written.subList(0, 2)), readAll(journal));
+        }
+    }
+
+    @Test
+    void corruptIndexIsRebuiltFromTheSegment() throws IOException {
+        List<ChangeLog> written = changeLogs(100);
+        appendAll(written);
+        Path index = files(".idx").get(0);
+
+        // Valid magic and size, but a negative block count
+        ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(index));
+        header.putInt(12, -1);
+        Files.write(index, header.array());
+
+        try (ChangeLogJournal journal = ChangeLogJournal.open(dir, SEGMENT_BYTES)) {
+            assertEquals(json(written), readAll(journal));
+        }
+    }
+
+    @Test
+    void indexWithBlocksOutOfTheSegmentIsRebuilt() throws IOException {
+        List<ChangeLog> written = changeLogs(100);
+        appendAll(written);
+        Path index = files(".idx").get(0);
+
+        // First block moved past the end of the segment
+        ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(index));
+        content.putLong(16, Long.MAX_VALUE / 2);
+        Files.write(index, content.array());
+
+        try (ChangeLogJournal journal = ChangeLogJournal.open(dir, SEGMENT_BYTES)) {
+            assertEquals(json(written), readAll(journal));
+        }
+    }
+
+    @Test
+    void truncatedIndexIsRebuilt() throws IOException {
+        List<ChangeLog> written = changeLogs(100);
+        appendAll(written);
+        Path index = files(".idx").get(0);
+
+        byte[] content = Files.readAllBytes(index);
+        Files.write(index, Arrays.copyOf(content, content.length - 5));
+
+        try (ChangeLogJournal journal = ChangeLogJournal.open(dir, SEGMENT_BYTES)) {
+            assertEquals(json(written), readAll(journal));
+        }
+    }
+
+    @Test
+    void compactReplacesAndRemovesChangeLogs() throws IOException {
+        List<ChangeLog> written = changeLogs(20);
+        ChangeLog replacement = changeLog(written.get(3).getTimestamp(), "replaced");
+        Path journalDir = dir.resolve(ChangeLogJournal.JOURNAL_DIRNAME);
+        List<String> expected = new ArrayList<>(json(written));
+        expected.set(3, replacement.toJson());
+        expected.remove(5);
+
+        try (ChangeLogJournal journal = ChangeLogJournal.open(journalDir, SEGMENT_BYTES)) {
+            for (ChangeLog changeLog : written) {
+                journal.append(changeLog);
+            }
+            journal.compact(Map.of(replacement.getTimestamp(), replacement.toJson()),
+                    Set.of(written.get(5).getTimestamp()));
+            assertEquals(expected, readAll(journal));
+
+            ChangeLog next = changeLog(99_000, "after compaction");
+            journal.append(next);
+            expected.add(next.toJson());
+            assertEquals(expected, readAll(journal));
+        }
+
+        try (ChangeLogJournal journal = ChangeLogJournal.open(journalDir, SEGMENT_BYTES)) {
+            assertEquals(expected, readAll(journal));
+        }
+    }
+
+    @Test
+    void strayFilesNamedLikeSegmentsAreIgnored() throws IOException {
+        List<ChangeLog> written = changeLogs(3);
+        appendAll(written);
+        Files.writeString(dir.resolve("notes.seg"), "not a segment");
+        Files.writeString(dir.resolve("99999999999999999999.seg"), "id out of range");
+
+        try (ChangeLogJournal journal = ChangeLogJournal.open(dir, SEGMENT_BYTES)) {
+            assertEquals(json(written), readAll(journal));
+        }
+    }
+
+    @Test
+    void jsonAndBinaryRecordsAreBothReadBackAsJson() throws IOException {
+        List<ChangeLog> written = changeLogs(6);
+        try (ChangeLogJournal journal = ChangeLogJournal.open(dir, SEGMENT_BYTES, false)) {
+            for (ChangeLog changeLog : written.subList(0, 3)) {
+                journal.append(changeLog);
+            }
+        }
+        try (ChangeLogJournal journal = ChangeLogJournal.open(dir, SEGMENT_BYTES, true)) {
+            for (ChangeLog changeLog : written.subList(3, 6)) {
+                journal.append(changeLog);
+            }
+
+            assertEquals(json(written), readAll(journal));
+            assertEquals(written.get(4).toJson(), journal.get(written.get(4).getTimestamp()));
+        }
+        assertEquals(List.of('{', '{', '{', 0, 0, 0), recordEncodings(dir));
+    }
+
+    @Test
+    void binaryRecordsAreSmallerThanJson() throws IOException {
+        List<ChangeLog> written = changeLogs(5);
+        Path jsonDir = dir.resolve("json");
+        Path binaryDir = dir.resolve("binary");
+        for (Path journalDir : List.of(jsonDir, binaryDir)) {
+            try (ChangeLogJournal journal = ChangeLogJournal.open(journalDir, SEGMENT_BYTES, journalDir == binaryDir)) {
+                for (ChangeLog changeLog : written) {
+                    journal.append(changeLog);
+                }
+            }
+        }
+
+        assertTrue(size(binaryDir) < size(jsonDir) / 2, size(binaryDir) + " bytes against " + size(jsonDir));
+    }
+
+    @Test
+    void changeLogsAppendedTogetherAreAddedAllOrNone() throws IOException {
+        List<ChangeLog> written = changeLogs(3);
+        List<ChangeLog> unit = new ArrayList<>(changeLogs(6).subList(3, 6));
+        unit.add(1, new ChangeLog(1200, new ChangeLog.Changes(List.of(new FileChange(null, "ab".repeat(32))),
+                List.of(), List.of()), 1040));
+
+        try (ChangeLogJournal journal = ChangeLogJournal.open(dir, SEGMENT_BYTES, true)) {
+            journal.appendAll(written);
+
+            assertThrows(IOException.class, () -> journal.appendAll(unit));
+            assertEquals(json(written), readAll(journal));
+
+            unit.remove(1);
+            journal.appendAll(unit);
+        }
+
+        try (ChangeLogJournal journal = ChangeLogJournal.open(dir, SEGMENT_BYTES, true)) {
+            assertEquals(json(changeLogs(6)), readAll(journal));
+        }
+    }
+
+    @Test
+    void compactionConvertsRecordsToTheJournalEncoding() throws IOException {
+        List<ChangeLog> written = changeLogs(10);
+        Path journalDir = dir.resolve(ChangeLogJournal.JOURNAL_DIRNAME);
+        try (ChangeLogJournal journal = ChangeLogJournal.open(journalDir, SEGMENT_BYTES, false)) {
+            for (ChangeLog changeLog : written) {
+                journal.append(changeLog);
+            }
+        }
+
+        try (ChangeLogJournal journal = ChangeLogJournal.open(journalDir, SEGMENT_BYTES, true)) {
+            ChangeLog replacement = changeLog(written.get(2).getTimestamp(), "replaced");
+            journal.compact(Map.of(replacement.getTimestamp(), replacement.toJson()), Set.of());
+
+            List<String> expected = new ArrayList<>(json(written));
+            expected.set(2, replacement.toJson());
+            assertEquals(expected, readAll(journal));
+        }
+        assertEquals(Collections.nCopies(10, 0), recordEncodings(journalDir));
+    }
+
+    private void appendAll(List<ChangeLog> changeLogs) throws IOException {
+        try (ChangeLogJournal journal = ChangeLogJournal.open(dir, SEGMENT_BYTES)) {
+            for (ChangeLog changeLog : changeLogs) {
+                journal.append(changeLog);
+            }
+        }
+    }
+
+    private Path lastSegment() throws IOException {
+        List<Path> segments = files(".seg");
+        return segments.get(segments.size() - 1);
+    }
+
+    /**
+     * First content byte of every record, as a char for JSON
+     */
+    private static List<Object> recordEncodings(Path journalDir) throws IOException {
+        List<Object> encodings = new ArrayList<>();
+        List<Path> segments;
+        try (Stream<Path> paths = Files.list(journalDir)) {
+            segments = paths.filter(path -> path.getFileName().toString().endsWith(".seg")).sorted().toList();
+        }
+        for (Path segment : segments) {
+            ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(segment));
+            while (content.hasRemaining()) {
+                int length = content.getInt(content.position());
+                byte first = content.get(content.position() + 16);
+                encodings.add(first == '{' ? (Object) '{' : (Object) (int) first);
+                content.position(content.position() + 16 + length);
+            }
+        }
+        return encodings;
+    }
+
+    private static long size(Path journalDir) throws IOException {
+        try (Stream<Path> paths = Files.list(journalDir)) {
+            long size = 0;
+            for (Path path : paths.filter(path -> path.getFileName().toString().endsWith(".seg")).toList()) {
+                size += Files.size(path);
+            }
+            return size;
+        }
+    }
+
+    private List<Path> files(String suffix) throws IOException {
+        try (Stream<Path> paths = Files.list(dir)) {
+            return paths.filter(path -> path.getFileName().toString().endsWith(suffix)).sorted().toList();
+        }
+    }
+
+    private static List<String> readAll(ChangeLogStore store) throws IOException {
+        List<String> read = new ArrayList<>();
+        store.forEach((timestamp, json) -> read.add(json));
+        return read;
+    }
+
+    private static List<String> readSince(ChangeLogStore store, long since) throws IOException {
+        Map<Long, String> read = new LinkedHashMap<>();
+        store.forEachSince(since, read::put);
+        return new ArrayList<>(read.values());
+    }
+
+    private static List<String> json(List<ChangeLog> changeLogs) {
+        return changeLogs.stream().map(ChangeLog::toJson).toList();
+    }
+
+    private static List<ChangeLog> changeLogs(int count) {
+        List<ChangeLog> changeLogs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            changeLogs.add(changeLog(1000 + i * 10L, "file" + i + ".txt"));
+        }
+        return changeLogs;
+    }
+
+    static ChangeLog changeLog(long timestamp, String path) {
+        FileChange added = new FileChange(path, "ab".repeat(32));
+        return new ChangeLog(timestamp, new ChangeLog.Changes(List.of(added), List.of(), List.of()), timestamp - 10);
+    }
+}
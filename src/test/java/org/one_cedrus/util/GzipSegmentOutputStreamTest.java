@@ -0,0 +1,133 @@
+package org.one_cedrus.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GzipSegmentOutputStreamTest {
+    private static final byte[] TEXT = "{\"timestamp\":1000,\"changes\":{}},".repeat(500).getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    void liveDataRoundTrips() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GzipSegmentOutputStream gzip = new GzipSegmentOutputStream(out, Deflater.DEFAULT_COMPRESSION)) {
+            gzip.write(TEXT);
+        }
+
+        assertArrayEquals(TEXT, gunzip(out.toByteArray()));
+        assertTrue(out.size() < TEXT.length / 10);
+    }
+
+    @Test
+    void emptyStreamRoundTrips() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new GzipSegmentOutputStream(out, Deflater.DEFAULT_COMPRESSION).close();
+
+        assertArrayEquals(new byte[0], gunzip(out.toByteArray()));
+    }
+
+    @Test
+    void segmentsAndLiveDataMakeOneMember() throws IOException {
+        byte[] random = randomBytes(200 * 1024);
+        GzipSegmentOutputStream.Segment text = GzipSegmentOutputStream.compress(TEXT, 0, TEXT.length,
+                Deflater.BEST_COMPRESSION);
+        GzipSegmentOutputStream.Segment incompressible = GzipSegmentOutputStream.compress(random, 0, random.length,
+                Deflater.BEST_COMPRESSION);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GzipSegmentOutputStream gzip = new GzipSegmentOutputStream(out, Deflater.DEFAULT_COMPRESSION)) {
+            gzip.write('[');
+            gzip.writeSegment(text);
+            gzip.writeSegment(incompressible);
+            gzip.write(random, 0, 100 * 1024);
+            gzip.writeSegment(text);
+            gzip.write(']');
+        }
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write('[');
+        expected.write(TEXT);
+        expected.write(random);
+        expected.write(random, 0, 100 * 1024);
+        expected.write(TEXT);
+        expected.write(']');
+        assertArrayEquals(expected.toByteArray(), gunzip(out.toByteArray()));
+        assertEquals(8, bytesAfterDeflateStream(out.toByteArray()), "one member, ending with its trailer");
+    }
+
+    @Test
+    void segmentIsReusableAcrossStreams() throws IOException {
+        GzipSegmentOutputStream.Segment segment = GzipSegmentOutputStream.compress(TEXT, 10, 100,
+                Deflater.BEST_COMPRESSION);
+
+        for (String prefix : new String[]{"", "first", "second"}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (GzipSegmentOutputStream gzip = new GzipSegmentOutputStream(out, Deflater.BEST_SPEED)) {
+                gzip.write(prefix.getBytes(StandardCharsets.UTF_8));
+                gzip.writeSegment(segment);
+            }
+
+            assertEquals(prefix + new String(TEXT, 10, 100, StandardCharsets.UTF_8),
+                    new String(gunzip(out.toByteArray()), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void corruptedTrailerIsDetected() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GzipSegmentOutputStream gzip = new GzipSegmentOutputStream(out, Deflater.DEFAULT_COMPRESSION)) {
+            gzip.write(TEXT, 0, 300);
+            gzip.writeSegment(GzipSegmentOutputStream.compress(TEXT, 300, 300, Deflater.BEST_COMPRESSION));
+        }
+        byte[] crcFlipped = out.toByteArray();
+        crcFlipped[crcFlipped.length - 8] ^= 0x01;
+        byte[] lengthFlipped = out.toByteArray();
+        lengthFlipped[lengthFlipped.length - 4] ^= 0x01;
+
+        assertThrows(ZipException.class, () -> gunzip(crcFlipped));
+        assertThrows(ZipException.class, () -> gunzip(lengthFlipped));
+    }
+
+    private static byte[] gunzip(byte[] gzipped) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Bytes left after the deflate stream that follows the 10 byte header
+     */
+    private static int bytesAfterDeflateStream(byte[] gzipped) {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(Arrays.copyOfRange(gzipped, 10, gzipped.length));
+            byte[] buffer = new byte[64 * 1024];
+            while (!inflater.finished()) {
+                inflater.inflate(buffer);
+            }
+            return inflater.getRemaining();
+        } catch (DataFormatException e) {
+            throw new AssertionError(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(1).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,84 @@
+package org.one_cedrus.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimingWheelTest {
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Map<String, AtomicInteger> runs = new ConcurrentHashMap<>();
+
+    @AfterEach
+    void stopScheduler() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void addDealsElementsOverTheSlotsInTurn() {
+        TimingWheel<String> wheel = new TimingWheel<>(300, 3, element -> {
+        });
+
+        assertEquals(List.of(0, 1, 2, 0), List.of(wheel.add("a"), wheel.add("b"), wheel.add("c"), wheel.add("d")));
+    }
+
+    @Test
+    void runsTheActionForEveryElementOncePerInterval() throws InterruptedException {
+        TimingWheel<String> wheel = new TimingWheel<>(200, 4, this::count);
+        for (int i = 0; i < 8; i++) {
+            wheel.add("element" + i);
+        }
+        wheel.start(scheduler);
+
+        Thread.sleep(1_100);
+
+        assertEquals(8, runs.size());
+        for (AtomicInteger count : runs.values()) {
+            // Five intervals, give or take a tick of scheduling jitter
+            assertTrue(count.get() >= 4 && count.get() <= 6, "runs: " + count.get());
+        }
+    }
+
+    @Test
+    void removedElementsAreNoLongerRun() throws InterruptedException {
+        TimingWheel<String> wheel = new TimingWheel<>(100, 2, this::count);
+        int removedSlot = wheel.add("removed");
+        wheel.add("kept");
+        wheel.remove("removed", removedSlot);
+        wheel.start(scheduler);
+
+        Thread.sleep(500);
+
+        assertNull(runs.get("removed"));
+        assertTrue(runs.get("kept").get() >= 3);
+    }
+
+    @Test
+    void failingActionDoesNotStopTheWheel() throws InterruptedException {
+        TimingWheel<String> wheel = new TimingWheel<>(100, 1, element -> {
+            count(element);
+            if (element.equals("failing")) {
+                throw new IllegalStateException("Send failed");
+            }
+        });
+        wheel.add("failing");
+        wheel.add("healthy");
+        wheel.start(scheduler);
+
+        Thread.sleep(500);
+
+        assertTrue(runs.get("failing").get() >= 3);
+        assertTrue(runs.get("healthy").get() >= 3);
+    }
+
+    private void count(String element) {
+        runs.computeIfAbsent(element, key -> new AtomicInteger()).incrementAndGet();
+    }
+}